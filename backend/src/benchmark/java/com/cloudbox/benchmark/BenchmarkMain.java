@@ -0,0 +1,111 @@
+package com.cloudbox.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entry point of the benchmark profile:
+ * <pre>
+ *   micro [jmh options]          JMH microbenchmarks
+ *   load [name=value ...]        end-to-end scenarios, see {@link LoadBenchmark}
+ *   all                          both, with default options
+ *   compare old.json new.json    diff two reports of the same kind
+ * </pre>
+ * Reports go to target/benchmark-reports, named by kind and start time.
+ */
+public final class BenchmarkMain {
+
+    static final Path REPORT_DIR = Path.of("target", "benchmark-reports");
+
+    private static final DateTimeFormatter FILE_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneOffset.UTC);
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] : "all";
+        List<String> rest = Arrays.asList(args).subList(Math.min(1, args.length), args.length);
+        switch (command) {
+            case "micro" -> micro(rest);
+            case "load" -> LoadBenchmark.run(rest);
+            case "all" -> {
+                micro(List.of());
+                LoadBenchmark.run(List.of());
+            }
+            case "compare" -> {
+                if (rest.size() != 2) {
+                    throw new IllegalArgumentException("compare needs two report files");
+                }
+                System.out.println(ReportComparison.compare(Path.of(rest.get(0)), Path.of(rest.get(1))));
+            }
+            default -> throw new IllegalArgumentException("Unknown benchmark command: " + command);
+        }
+        // The application context and JMH leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private static void micro(List<String> jmhArgs) throws Exception {
+        Files.createDirectories(REPORT_DIR);
+        Path result = REPORT_DIR.resolve("micro-" + fileStamp(Instant.now()) + ".json");
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(new CommandLineOptions(jmhArgs.toArray(String[]::new)));
+        if (jmhArgs.stream().noneMatch(arg -> !arg.startsWith("-"))) {
+            options.include("com\\.cloudbox\\..*Benchmark");
+        }
+        options.resultFormat(ResultFormatType.JSON)
+                .result(result.toString())
+                .jvmArgsAppend("-Dbenchmark.version=" + version(), "-Dbenchmark.commit=" + commit());
+        if (jmhArgs.isEmpty()) {
+            options.forks(1)
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(2))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(2))
+                    .timeUnit(TimeUnit.MICROSECONDS);
+        }
+        new Runner(options.build()).run();
+    }
+
+    static String version() {
+        return System.getProperty("benchmark.version", "dev");
+    }
+
+    /**
+     * The commit under test, so that reports of unreleased builds can still
+     * be told apart.
+     */
+    static String commit() {
+        String commit = System.getProperty("benchmark.commit");
+        if (commit != null) {
+            return commit;
+        }
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            String out = new String(git.getInputStream().readAllBytes()).trim();
+            return git.waitFor() == 0 ? out : "unknown";
+        } catch (IOException e) {
+            return "unknown";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "unknown";
+        }
+    }
+
+    static String fileStamp(Instant instant) {
+        return FILE_STAMP.format(instant);
+    }
+}
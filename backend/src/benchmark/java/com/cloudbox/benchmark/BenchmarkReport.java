@@ -0,0 +1,92 @@
+package com.cloudbox.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of one load run, written as JSON so that runs of different
+ * releases can be diffed with {@link ReportComparison}. Field names are part
+ * of that contract; add fields rather than renaming them.
+ */
+public record BenchmarkReport(String version, String commit, Instant startedAt, Map<String, Object> config,
+                              List<ScenarioResult> results) {
+
+    static final ObjectMapper JSON = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        JSON.writeValue(file.toFile(), this);
+    }
+
+    public static BenchmarkReport read(Path file) throws IOException {
+        return JSON.readValue(file.toFile(), BenchmarkReport.class);
+    }
+
+    public String toMarkdown() {
+        StringBuilder table = new StringBuilder()
+                .append("CloudBox ").append(version).append(" (").append(commit).append("), ")
+                .append(startedAt).append('\n')
+                .append(config).append("\n\n")
+                .append("| scenario | objects | ops | errors | ops/s | MB/s | mean ms | p50 ms | p90 ms | p99 ms | max ms |\n")
+                .append("|---|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|\n");
+        for (ScenarioResult result : results) {
+            Latency latency = result.latencyMs();
+            table.append(String.format("| %s | %d | %d | %d | %.1f | %.2f | %.2f | %.2f | %.2f | %.2f | %.2f |%n",
+                    result.scenario(), result.objects(), result.operations(), result.errors(),
+                    result.opsPerSecond(), result.mbPerSecond(), latency.mean(), latency.p50(), latency.p90(),
+                    latency.p99(), latency.max()));
+        }
+        return table.toString();
+    }
+
+    /**
+     * One scenario at one object count. {@code scenario} and {@code objects}
+     * together identify a result across reports.
+     */
+    public record ScenarioResult(String scenario, int objects, long operations, long errors, double seconds,
+                                 double opsPerSecond, double mbPerSecond, Latency latencyMs) {
+
+        static ScenarioResult of(String scenario, int objects, long[] latencyNanos, long errors, long elapsedNanos,
+                                 long bytes) {
+            double seconds = elapsedNanos / 1e9;
+            return new ScenarioResult(scenario, objects, latencyNanos.length, errors, seconds,
+                    latencyNanos.length / seconds, bytes / seconds / (1024 * 1024), Latency.of(latencyNanos));
+        }
+    }
+
+    public record Latency(double mean, double p50, double p90, double p99, double max) {
+
+        static Latency of(long[] nanos) {
+            if (nanos.length == 0) {
+                return new Latency(0, 0, 0, 0, 0);
+            }
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            return new Latency(millis(Arrays.stream(sorted).average().orElse(0)), percentile(sorted, 0.50),
+                    percentile(sorted, 0.90), percentile(sorted, 0.99), millis(sorted[sorted.length - 1]));
+        }
+
+        // Nearest-rank percentile
+        private static double percentile(long[] sorted, double p) {
+            int rank = (int) Math.ceil(p * sorted.length);
+            return millis(sorted[Math.max(0, rank - 1)]);
+        }
+
+        private static double millis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
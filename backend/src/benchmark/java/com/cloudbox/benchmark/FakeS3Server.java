@@ -0,0 +1,702 @@
+package com.cloudbox.benchmark;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for one S3 bucket, served over HTTP on localhost.
+ * It speaks the path-style subset of the S3 REST API that CloudBox uses:
+ * object PUT/GET (with ranges)/HEAD/DELETE and copy, ListObjectsV2,
+ * DeleteObjects, and multipart uploads including part copies.
+ *
+ * Every request waits {@code latencyMs} before it is answered, and request
+ * and response bodies are throttled to {@code bytesPerSecond} per
+ * connection, so that runs see the costs of a remote store rather than of a
+ * memcpy. Signatures are not checked.
+ */
+public class FakeS3Server implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(FakeS3Server.class);
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final Pattern XML_KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+    private static final Pattern XML_PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    static {
+        // Otherwise Nagle's algorithm and delayed ACKs add ~40 ms to small responses
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final String bucket;
+    private final long latencyMs;
+    private final long bytesPerSecond;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param latencyMs      added to every request before it is answered
+     * @param bytesPerSecond per-connection body bandwidth; 0 for unlimited
+     */
+    public FakeS3Server(String bucket, long latencyMs, long bytesPerSecond) throws IOException {
+        this.bucket = bucket;
+        this.latencyMs = latencyMs;
+        this.bytesPerSecond = bytesPerSecond;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-s3");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public FakeS3Server start() {
+        server.start();
+        log.info("Fake S3 for bucket {} listening on {} ({} ms latency, {} B/s)",
+                bucket, endpoint(), latencyMs, bytesPerSecond);
+        return this;
+    }
+
+    public URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public int objectCount() {
+        return objects.size();
+    }
+
+    public long requestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try (exchange) {
+            sleep(latencyMs);
+            route(exchange);
+        } catch (Exception e) {
+            log.warn("Fake S3 failed {} {}: {}", exchange.getRequestMethod(), exchange.getRequestURI(), e.toString());
+            try {
+                sendError(exchange, 500, "InternalError", e.toString());
+            } catch (IOException ignored) {
+                // Response already started
+            }
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET") || method.equals("HEAD") || method.equals("DELETE")) {
+            // The server drops keep-alive connections whose request body was
+            // never read to the end, even an empty one
+            exchange.getRequestBody().close();
+        }
+
+        String bucketPath = "/" + bucket;
+        if (!path.equals(bucketPath) && !path.startsWith(bucketPath + "/")) {
+            sendError(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+            return;
+        }
+        String key = path.length() > bucketPath.length() + 1
+                ? URLDecoder.decode(path.substring(bucketPath.length() + 1).replace("+", "%2B"), StandardCharsets.UTF_8)
+                : "";
+
+        if (key.isEmpty()) {
+            if (method.equals("GET") && query.containsKey("uploads")) {
+                listUploads(exchange, query);
+            } else if (method.equals("GET")) {
+                listObjects(exchange, query);
+            } else if (method.equals("POST") && query.containsKey("delete")) {
+                deleteObjects(exchange);
+            } else if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                sendError(exchange, 405, "MethodNotAllowed", method + " on bucket");
+            }
+            return;
+        }
+
+        switch (method) {
+            case "PUT" -> {
+                if (query.containsKey("uploadId")) {
+                    uploadPart(exchange, key, query);
+                } else if (exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+                    copyObject(exchange, key);
+                } else {
+                    putObject(exchange, key);
+                }
+            }
+            case "GET", "HEAD" -> {
+                if (method.equals("GET") && query.containsKey("uploadId")) {
+                    listParts(exchange, key, query.get("uploadId"));
+                } else {
+                    getObject(exchange, key, method.equals("HEAD"));
+                }
+            }
+            case "DELETE" -> {
+                if (query.containsKey("uploadId")) {
+                    uploads.remove(query.get("uploadId"));
+                } else {
+                    objects.remove(key);
+                }
+                exchange.sendResponseHeaders(204, -1);
+            }
+            case "POST" -> {
+                if (query.containsKey("uploads")) {
+                    createUpload(exchange, key);
+                } else if (query.containsKey("uploadId")) {
+                    completeUpload(exchange, key, query.get("uploadId"));
+                } else {
+                    sendError(exchange, 405, "MethodNotAllowed", "POST on object");
+                }
+            }
+            default -> sendError(exchange, 405, "MethodNotAllowed", method);
+        }
+    }
+
+    private void putObject(HttpExchange exchange, String key) throws IOException {
+        byte[] data = readBody(exchange);
+        StoredObject object = new StoredObject(data, md5(data), contentType(exchange), userMetadata(exchange),
+                Instant.now());
+        objects.put(key, object);
+        exchange.getResponseHeaders().set("ETag", quote(object.etag()));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void copyObject(HttpExchange exchange, String key) throws IOException {
+        StoredObject source = copySource(exchange);
+        if (source == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        boolean replace = "REPLACE".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("x-amz-metadata-directive"));
+        StoredObject copy = new StoredObject(source.data(), source.etag(),
+                replace ? contentType(exchange) : source.contentType(),
+                replace ? userMetadata(exchange) : source.metadata(), Instant.now());
+        objects.put(key, copy);
+        sendXml(exchange, 200, "<CopyObjectResult><LastModified>" + copy.lastModified()
+                + "</LastModified><ETag>" + xml(quote(copy.etag())) + "</ETag></CopyObjectResult>");
+    }
+
+    private void getObject(HttpExchange exchange, String key, boolean headOnly) throws IOException {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !unquote(ifMatch).equals(object.etag())) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", quote(object.etag()));
+        headers.set("Last-Modified", HTTP_DATE.format(object.lastModified()));
+        headers.set("Content-Type", object.contentType());
+        headers.set("Accept-Ranges", "bytes");
+        object.metadata().forEach((name, value) -> headers.set("x-amz-meta-" + name, value));
+
+        long length = object.data().length;
+        long start = 0;
+        long end = length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches() || length == 0) {
+                sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            if (matcher.group(1).isEmpty()) {
+                start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+            } else {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+            }
+            if (start >= length || start > end) {
+                sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            status = 206;
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+
+        long count = end - start + 1;
+        if (headOnly) {
+            headers.set("Content-Length", Long.toString(count));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+        if (count > 0) {
+            try (OutputStream out = throttled(exchange.getResponseBody())) {
+                out.write(object.data(), (int) start, (int) count);
+            }
+        }
+    }
+
+    private void listObjects(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        int maxKeys = Math.min(1000, Integer.parseInt(query.getOrDefault("max-keys", "1000")));
+        String token = query.get("continuation-token");
+        String startAfter = token != null
+                ? new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+                : query.get("start-after");
+
+        StringBuilder contents = new StringBuilder();
+        StringBuilder prefixes = new StringBuilder();
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+
+        String next = startAfter != null && startAfter.compareTo(prefix) >= 0
+                ? objects.higherKey(startAfter)
+                : objects.ceilingKey(prefix);
+        while (next != null && next.startsWith(prefix)) {
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            int cut = delimiter != null && !delimiter.isEmpty() ? next.indexOf(delimiter, prefix.length()) : -1;
+            if (cut >= 0) {
+                // Roll up the common prefix and skip every key under it
+                String common = next.substring(0, cut + delimiter.length());
+                prefixes.append("<CommonPrefixes><Prefix>").append(xml(common)).append("</Prefix></CommonPrefixes>");
+                last = common + Character.MAX_VALUE;
+            } else {
+                StoredObject object = objects.get(next);
+                if (object != null) {
+                    contents.append("<Contents><Key>").append(xml(next))
+                            .append("</Key><LastModified>").append(object.lastModified())
+                            .append("</LastModified><ETag>").append(xml(quote(object.etag())))
+                            .append("</ETag><Size>").append(object.data().length)
+                            .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                }
+                last = next;
+            }
+            count++;
+            next = objects.higherKey(last);
+        }
+        sendListing(exchange, query, prefix, delimiter, maxKeys, contents, prefixes, count, truncated, last);
+    }
+
+    private void sendListing(HttpExchange exchange, Map<String, String> query, String prefix, String delimiter,
+                             int maxKeys, StringBuilder contents, StringBuilder prefixes, int count,
+                             boolean truncated, String last) throws IOException {
+        StringBuilder body = new StringBuilder("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+                .append("<Name>").append(xml(bucket)).append("</Name>")
+                .append("<Prefix>").append(xml(prefix)).append("</Prefix>")
+                .append("<KeyCount>").append(count).append("</KeyCount>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (delimiter != null) {
+            body.append("<Delimiter>").append(xml(delimiter)).append("</Delimiter>");
+        }
+        body.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (query.containsKey("continuation-token")) {
+            body.append("<ContinuationToken>").append(xml(query.get("continuation-token")))
+                    .append("</ContinuationToken>");
+        }
+        if (truncated) {
+            body.append("<NextContinuationToken>")
+                    .append(Base64.getUrlEncoder().encodeToString(last.getBytes(StandardCharsets.UTF_8)))
+                    .append("</NextContinuationToken>");
+        }
+        body.append(contents).append(prefixes).append("</ListBucketResult>");
+        sendXml(exchange, 200, body.toString());
+    }
+
+    private void deleteObjects(HttpExchange exchange) throws IOException {
+        String request = new String(readBody(exchange), StandardCharsets.UTF_8);
+        StringBuilder body = new StringBuilder("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        boolean quiet = request.contains("<Quiet>true</Quiet>");
+        Matcher matcher = XML_KEY.matcher(request);
+        while (matcher.find()) {
+            String key = unxml(matcher.group(1));
+            objects.remove(key);
+            if (!quiet) {
+                body.append("<Deleted><Key>").append(xml(key)).append("</Key></Deleted>");
+            }
+        }
+        sendXml(exchange, 200, body.append("</DeleteResult>").toString());
+    }
+
+    private void createUpload(HttpExchange exchange, String key) throws IOException {
+        readBody(exchange);
+        String uploadId = UUID.randomUUID().toString().replace("-", "");
+        uploads.put(uploadId, new PendingUpload(key, contentType(exchange), userMetadata(exchange), Instant.now()));
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + xml(bucket) + "</Bucket><Key>"
+                + xml(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, String key, Map<String, String> query) throws IOException {
+        PendingUpload upload = uploads.get(query.get("uploadId"));
+        if (upload == null || !upload.key().equals(key)) {
+            readBody(exchange);
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        int partNumber = Integer.parseInt(query.get("partNumber"));
+
+        if (exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            StoredObject source = copySource(exchange);
+            if (source == null) {
+                sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+                return;
+            }
+            byte[] data = source.data();
+            String range = exchange.getRequestHeaders().getFirst("x-amz-copy-source-range");
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches()) {
+                    sendError(exchange, 400, "InvalidArgument", "Bad copy source range");
+                    return;
+                }
+                int start = Integer.parseInt(matcher.group(1));
+                int end = Integer.parseInt(matcher.group(2));
+                data = Arrays.copyOfRange(data, start, end + 1);
+            }
+            String etag = md5(data);
+            upload.parts().put(partNumber, data);
+            sendXml(exchange, 200, "<CopyPartResult><LastModified>" + Instant.now()
+                    + "</LastModified><ETag>" + xml(quote(etag)) + "</ETag></CopyPartResult>");
+            return;
+        }
+
+        byte[] data = readBody(exchange);
+        upload.parts().put(partNumber, data);
+        exchange.getResponseHeaders().set("ETag", quote(md5(data)));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void completeUpload(HttpExchange exchange, String key, String uploadId) throws IOException {
+        String request = new String(readBody(exchange), StandardCharsets.UTF_8);
+        PendingUpload upload = uploads.get(uploadId);
+        if (upload == null || !upload.key().equals(key)) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+        Matcher matcher = XML_PART.matcher(request);
+        int parts = 0;
+        while (matcher.find()) {
+            byte[] part = upload.parts().get(Integer.parseInt(matcher.group(1)));
+            if (part == null) {
+                sendError(exchange, 400, "InvalidPart", "Part " + matcher.group(1) + " was not uploaded");
+                return;
+            }
+            assembled.write(part);
+            parts++;
+        }
+        uploads.remove(uploadId);
+        byte[] data = assembled.toByteArray();
+        String etag = md5(data) + "-" + parts;
+        objects.put(key, new StoredObject(data, etag, upload.contentType(), upload.metadata(), Instant.now()));
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult><Bucket>" + xml(bucket) + "</Bucket><Key>"
+                + xml(key) + "</Key><ETag>" + xml(quote(etag)) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void listParts(HttpExchange exchange, String key, String uploadId) throws IOException {
+        PendingUpload upload = uploads.get(uploadId);
+        if (upload == null || !upload.key().equals(key)) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        StringBuilder body = new StringBuilder("<ListPartsResult><Bucket>").append(xml(bucket))
+                .append("</Bucket><Key>").append(xml(key)).append("</Key><UploadId>").append(uploadId)
+                .append("</UploadId><IsTruncated>false</IsTruncated>");
+        new TreeMap<>(upload.parts()).forEach((partNumber, data) -> body.append("<Part><PartNumber>")
+                .append(partNumber).append("</PartNumber><ETag>").append(xml(quote(md5(data))))
+                .append("</ETag><Size>").append(data.length).append("</Size></Part>"));
+        sendXml(exchange, 200, body.append("</ListPartsResult>").toString());
+    }
+
+    private void listUploads(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        StringBuilder body = new StringBuilder("<ListMultipartUploadsResult><Bucket>")
+                .append(xml(bucket)).append("</Bucket><IsTruncated>false</IsTruncated>");
+        uploads.forEach((uploadId, upload) -> {
+            if (upload.key().startsWith(prefix)) {
+                body.append("<Upload><Key>").append(xml(upload.key()))
+                        .append("</Key><UploadId>").append(uploadId)
+                        .append("</UploadId><Initiated>").append(upload.initiated())
+                        .append("</Initiated></Upload>");
+            }
+        });
+        sendXml(exchange, 200, body.append("</ListMultipartUploadsResult>").toString());
+    }
+
+    private StoredObject copySource(HttpExchange exchange) {
+        String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source")
+                .replace("+", "%2B"), StandardCharsets.UTF_8);
+        if (source.startsWith("/")) {
+            source = source.substring(1);
+        }
+        int query = source.indexOf("?versionId=");
+        if (query >= 0) {
+            source = source.substring(0, query);
+        }
+        if (!source.startsWith(bucket + "/")) {
+            return null;
+        }
+        return objects.get(source.substring(bucket.length() + 1));
+    }
+
+    /**
+     * Reads a request body at the configured bandwidth, undoing the
+     * aws-chunked framing the SDK uses for streaming signed payloads.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] raw;
+        try (InputStream in = throttled(exchange.getRequestBody())) {
+            raw = in.readAllBytes();
+        }
+        Headers headers = exchange.getRequestHeaders();
+        String encoding = headers.getFirst("Content-Encoding");
+        boolean chunked = headers.containsKey("x-amz-decoded-content-length")
+                || (encoding != null && encoding.contains("aws-chunked"));
+        return chunked ? decodeAwsChunked(raw) : raw;
+    }
+
+    static byte[] decodeAwsChunked(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        int pos = 0;
+        while (pos < raw.length) {
+            int lineEnd = indexOfCrlf(raw, pos);
+            if (lineEnd < 0) {
+                break;
+            }
+            String header = new String(raw, pos, lineEnd - pos, StandardCharsets.US_ASCII);
+            int semicolon = header.indexOf(';');
+            int size = Integer.parseInt((semicolon >= 0 ? header.substring(0, semicolon) : header).trim(), 16);
+            pos = lineEnd + 2;
+            if (size == 0) {
+                // Trailing checksum headers, if any, follow the last chunk
+                break;
+            }
+            out.write(raw, pos, size);
+            pos += size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOfCrlf(byte[] data, int from) {
+        for (int i = from; i + 1 < data.length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private InputStream throttled(InputStream in) {
+        if (bytesPerSecond <= 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            private final Throttle throttle = new Throttle();
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    throttle.account(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, Math.min(length, 64 * 1024));
+                if (n > 0) {
+                    throttle.account(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    private OutputStream throttled(OutputStream out) {
+        if (bytesPerSecond <= 0) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            private final Throttle throttle = new Throttle();
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                for (int done = 0; done < length; ) {
+                    int n = Math.min(length - done, 64 * 1024);
+                    out.write(buffer, offset + done, n);
+                    throttle.account(n);
+                    done += n;
+                }
+            }
+        };
+    }
+
+    /**
+     * Sleeps as needed to keep one stream at or below the configured rate.
+     */
+    private final class Throttle {
+        private final long startNanos = System.nanoTime();
+        private long transferred;
+
+        void account(long bytes) {
+            transferred += bytes;
+            long dueNanos = transferred * 1_000_000_000L / bytesPerSecond;
+            long aheadMillis = TimeUnit.NANOSECONDS.toMillis(dueNanos - (System.nanoTime() - startNanos));
+            if (aheadMillis > 0) {
+                sleep(aheadMillis);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + xml(message)
+                + "</Message></Error>");
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, StandardCharsets.UTF_8);
+            String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+            query.put(name, value);
+        }
+        return query;
+    }
+
+    private static String contentType(HttpExchange exchange) {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        return type != null ? type : "binary/octet-stream";
+    }
+
+    private static Map<String, String> userMetadata(HttpExchange exchange) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            String lower = name.toLowerCase();
+            if (lower.startsWith("x-amz-meta-") && !values.isEmpty()) {
+                metadata.put(lower.substring("x-amz-meta-".length()), values.get(0));
+            }
+        });
+        return metadata;
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String quote(String etag) {
+        return "\"" + etag + "\"";
+    }
+
+    private static String unquote(String etag) {
+        return etag.replace("\"", "");
+    }
+
+    private static String xml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unxml(String text) {
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private record StoredObject(byte[] data, String etag, String contentType, Map<String, String> metadata,
+                                Instant lastModified) {
+    }
+
+    private record PendingUpload(String key, String contentType, Map<String, String> metadata, Instant initiated,
+                                 Map<Integer, byte[]> parts) {
+        PendingUpload(String key, String contentType, Map<String, String> metadata, Instant initiated) {
+            this(key, contentType, metadata, initiated, new ConcurrentHashMap<>());
+        }
+    }
+}
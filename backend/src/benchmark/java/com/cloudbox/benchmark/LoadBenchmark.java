@@ -0,0 +1,295 @@
+package com.cloudbox.benchmark;
+
+import com.cloudbox.CloudBoxApplication;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end throughput and latency of the HTTP API: boots the application
+ * against a {@link FakeS3Server} and, for each object count, uploads that
+ * many files into a fresh folder, lists it (served from the index, and paged
+ * straight from S3), downloads every file and finally deletes the folder.
+ *
+ * Options are {@code name=value} arguments; see {@link #DEFAULTS}.
+ */
+public class LoadBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadBenchmark.class);
+
+    // Not a valid DNS label, so every S3 client addresses it path-style
+    static final String BUCKET = "cloudbox_bench";
+
+    static final Map<String, String> DEFAULTS = Map.of(
+            "objects", "100,1000,5000",
+            "objectSize", "65536",
+            "concurrency", "16",
+            "listRepeats", "50",
+            "latencyMs", "20",
+            "bandwidthMbps", "100",
+            "reportDir", "target/benchmark-reports");
+
+    private final Map<String, String> options;
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(Executors.newCachedThreadPool())
+            .build();
+    private String baseUrl;
+
+    LoadBenchmark(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(Arrays.asList(args));
+    }
+
+    static BenchmarkReport run(List<String> args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("Unknown load option '" + arg + "', expected one of "
+                        + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return new LoadBenchmark(options).run();
+    }
+
+    BenchmarkReport run() throws Exception {
+        Instant startedAt = Instant.now();
+        Path dataDir = Files.createTempDirectory("cloudbox-bench");
+        long bytesPerSecond = (long) (Double.parseDouble(options.get("bandwidthMbps")) * 1_000_000 / 8);
+
+        List<BenchmarkReport.ScenarioResult> results = new ArrayList<>();
+        try (FakeS3Server s3 = new FakeS3Server(BUCKET, Long.parseLong(options.get("latencyMs")), bytesPerSecond)
+                .start();
+             ConfigurableApplicationContext app = startApplication(s3, dataDir)) {
+            baseUrl = "http://127.0.0.1:" + app.getEnvironment().getProperty("local.server.port") + "/api/files";
+            for (String count : options.get("objects").split(",")) {
+                results.addAll(runScenarios(Integer.parseInt(count.trim())));
+            }
+        } finally {
+            FileSystemUtils.deleteRecursively(dataDir);
+        }
+
+        BenchmarkReport report = new BenchmarkReport(BenchmarkMain.version(), BenchmarkMain.commit(), startedAt,
+                new LinkedHashMap<>(options), results);
+        Path dir = Path.of(options.get("reportDir"));
+        String stamp = BenchmarkMain.fileStamp(startedAt);
+        report.write(dir.resolve("load-" + stamp + ".json"));
+        Files.writeString(dir.resolve("load-" + stamp + ".md"), report.toMarkdown());
+        System.out.println(report.toMarkdown());
+        return report;
+    }
+
+    private ConfigurableApplicationContext startApplication(FakeS3Server s3, Path dataDir) {
+        // Passed as arguments so they win over application.properties
+        return new SpringApplicationBuilder(CloudBoxApplication.class).run(
+                "--server.port=0",
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN",
+                "--logging.level.com.cloudbox=WARN",
+                "--aws.access-key-id=benchmark",
+                "--aws.secret-access-key=benchmark",
+                "--aws.region=us-east-1",
+                "--aws.s3.bucket-name=" + BUCKET,
+                "--cloudbox.s3.endpoint=" + s3.endpoint(),
+                "--cloudbox.download-cache.dir=" + dataDir.resolve("download-cache"),
+                "--cloudbox.dedup.index-path=" + dataDir.resolve("content-index.log"),
+                "--cloudbox.resumable.session-dir=" + dataDir.resolve("upload-sessions"),
+                "--cloudbox.compression.index-path=" + dataDir.resolve("compressed-objects.log"),
+                "--cloudbox.metadata.journal-path=" + dataDir.resolve("metadata.log"),
+                "--cloudbox.move.journal-path=" + dataDir.resolve("move-jobs.log"),
+                // One benchmark user drives all the load, which the per-user
+                // limits exist to refuse; this measures raw capacity instead
+                "--cloudbox.admission.enabled=false");
+    }
+
+    private List<BenchmarkReport.ScenarioResult> runScenarios(int objects) throws Exception {
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        int objectSize = Integer.parseInt(options.get("objectSize"));
+        String userId = "bench-" + objects + "-" + System.nanoTime();
+        String folder = "load";
+        log.info("Running scenarios with {} objects of {} bytes", objects, objectSize);
+
+        List<BenchmarkReport.ScenarioResult> results = new ArrayList<>();
+        List<String> keys = new ArrayList<>(objects);
+
+        byte[] content = new byte[objectSize];
+        new Random(objects).nextBytes(content);
+        results.add(measure("upload", objects, objects, concurrency, (long) objects * objectSize, i -> {
+            HttpResponse<InputStream> response = send(uploadRequest(userId, folder, "file-" + i + ".bin", content));
+            JsonNode body = BenchmarkReport.JSON.readTree(response.body());
+            if (response.statusCode() != 200 || !body.path("success").asBoolean()) {
+                return false;
+            }
+            synchronized (keys) {
+                keys.add(body.path("files").get(0).path("key").asText());
+            }
+            return true;
+        }));
+
+        int listRepeats = Integer.parseInt(options.get("listRepeats"));
+        String listQuery = "userId=" + encode(userId) + "&folderPath=" + encode(folder);
+        // Every scenario checks what came back, so a fast but truncated or
+        // failed response counts as an error instead of a good result.
+        // Listings must show every file that was uploaded.
+        int stored = keys.size();
+        results.add(measure("list", objects, listRepeats, concurrency, 0, i -> {
+            HttpResponse<InputStream> response = send(get("/list?" + listQuery));
+            if (response.statusCode() != 200) {
+                drain(response);
+                return false;
+            }
+            return BenchmarkReport.JSON.readTree(response.body()).path("files").size() == stored;
+        }));
+        results.add(measure("list-paged", objects, listRepeats, concurrency, 0, i -> {
+            String cursor = null;
+            int entries = 0;
+            do {
+                HttpResponse<InputStream> response = send(get("/list/page?" + listQuery + "&pageSize=1000"
+                        + (cursor != null ? "&cursor=" + encode(cursor) : "")));
+                if (response.statusCode() != 200) {
+                    drain(response);
+                    return false;
+                }
+                JsonNode page = BenchmarkReport.JSON.readTree(response.body());
+                entries += page.path("items").size();
+                cursor = page.hasNonNull("nextCursor") ? page.get("nextCursor").asText() : null;
+            } while (cursor != null);
+            return entries == stored;
+        }));
+
+        results.add(measure("download", objects, keys.size(), concurrency, (long) keys.size() * objectSize, i -> {
+            HttpResponse<InputStream> response = send(get("/download?userId=" + encode(userId)
+                    + "&s3Key=" + encode(keys.get(i))));
+            long received;
+            try (InputStream body = response.body()) {
+                received = body.transferTo(OutputStream.nullOutputStream());
+            }
+            return response.statusCode() == 200 && received == objectSize;
+        }));
+
+        results.add(measure("folder-delete", objects, 1, 1, 0, i -> {
+            HttpResponse<InputStream> response = send(HttpRequest.newBuilder(URI.create(baseUrl + "/folder?"
+                    + listQuery)).DELETE().build());
+            return drain(response) == 200;
+        }));
+        return results;
+    }
+
+    /**
+     * Runs {@code operations} calls of {@code operation} across
+     * {@code concurrency} threads and times each one. An operation that
+     * returns false or throws counts as an error.
+     */
+    private BenchmarkReport.ScenarioResult measure(String scenario, int objects, int operations, int concurrency,
+                                                   long bytes, Operation operation) throws Exception {
+        long[] latencies = new long[operations];
+        AtomicLong errors = new AtomicLong();
+        AtomicLong next = new AtomicLong();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> running = new ArrayList<>(concurrency);
+            for (int t = 0; t < concurrency; t++) {
+                running.add(workers.submit(() -> {
+                    for (int i = (int) next.getAndIncrement(); i < operations; i = (int) next.getAndIncrement()) {
+                        long began = System.nanoTime();
+                        try {
+                            if (!operation.run(i)) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                            log.debug("{} #{} failed", scenario, i, e);
+                        }
+                        latencies[i] = System.nanoTime() - began;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : running) {
+                future.get();
+            }
+        } finally {
+            workers.shutdown();
+        }
+        BenchmarkReport.ScenarioResult result = BenchmarkReport.ScenarioResult.of(scenario, objects, latencies,
+                errors.get(), System.nanoTime() - start, bytes);
+        log.info("{} x{}: {} ops/s, p99 {} ms, {} errors", scenario, objects, Math.round(result.opsPerSecond()),
+                result.latencyMs().p99(), result.errors());
+        return result;
+    }
+
+    private HttpRequest uploadRequest(String userId, String folder, String fileName, byte[] content)
+            throws IOException {
+        String boundary = "cloudbox-bench-" + System.nanoTime();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(content.length + 512);
+        body.write(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/upload?userId=" + encode(userId)
+                        + "&folderPath=" + encode(folder)))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build();
+    }
+
+    private HttpResponse<InputStream> send(HttpRequest request) throws IOException, InterruptedException {
+        return http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    private static int drain(HttpResponse<InputStream> response) throws IOException {
+        try (InputStream body = response.body()) {
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+        return response.statusCode();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        boolean run(int index) throws Exception;
+    }
+}
@@ -0,0 +1,80 @@
+package com.cloudbox.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Side-by-side comparison of two benchmark reports, as a markdown table.
+ * Works on load reports and on JMH's JSON results; rows are matched by
+ * scenario and object count, or by benchmark name and parameters.
+ */
+final class ReportComparison {
+
+    private ReportComparison() {
+    }
+
+    static String compare(Path baseline, Path candidate) throws IOException {
+        JsonNode before = BenchmarkReport.JSON.readTree(baseline.toFile());
+        JsonNode after = BenchmarkReport.JSON.readTree(candidate.toFile());
+        if (before.isArray() != after.isArray()) {
+            throw new IllegalArgumentException("Cannot compare a JMH result with a load report");
+        }
+
+        Map<String, Metric> old = before.isArray() ? jmhMetrics(before) : loadMetrics(before);
+        Map<String, Metric> current = after.isArray() ? jmhMetrics(after) : loadMetrics(after);
+
+        StringBuilder table = new StringBuilder()
+                .append(baseline.getFileName()).append(" -> ").append(candidate.getFileName()).append("\n\n")
+                .append("| benchmark | metric | before | after | change |\n")
+                .append("|---|---|---:|---:|---:|\n");
+        for (Map.Entry<String, Metric> entry : current.entrySet()) {
+            Metric metric = entry.getValue();
+            Metric previous = old.get(entry.getKey());
+            if (previous == null) {
+                table.append(String.format("| %s | %s | - | %.3f | new |%n",
+                        entry.getKey(), metric.unit(), metric.value()));
+                continue;
+            }
+            double change = previous.value() == 0 ? 0 : (metric.value() - previous.value()) / previous.value() * 100;
+            // Positive means better, whichever direction the metric runs in
+            double improvement = metric.higherIsBetter() ? change : -change;
+            table.append(String.format("| %s | %s | %.3f | %.3f | %+.1f%% %s |%n",
+                    entry.getKey(), metric.unit(), previous.value(), metric.value(), change,
+                    Math.abs(improvement) < 5 ? "" : improvement > 0 ? "better" : "worse"));
+        }
+        return table.toString();
+    }
+
+    private static Map<String, Metric> loadMetrics(JsonNode report) {
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        for (JsonNode result : report.path("results")) {
+            String name = result.path("scenario").asText() + " x" + result.path("objects").asInt();
+            metrics.put(name + " ops/s", new Metric("ops/s", result.path("opsPerSecond").asDouble(), true));
+            metrics.put(name + " p99", new Metric("p99 ms", result.path("latencyMs").path("p99").asDouble(), false));
+        }
+        return metrics;
+    }
+
+    private static Map<String, Metric> jmhMetrics(JsonNode results) {
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        for (JsonNode result : results) {
+            StringBuilder name = new StringBuilder(result.path("benchmark").asText()
+                    .replaceFirst("^com\\.cloudbox\\.", ""));
+            result.path("params").fields().forEachRemaining(param ->
+                    name.append(' ').append(param.getKey()).append('=').append(param.getValue().asText()));
+            JsonNode primary = result.path("primaryMetric");
+            String unit = primary.path("scoreUnit").asText();
+            // Throughput modes report ops per time; the others report time per op
+            boolean higherIsBetter = unit.startsWith("ops/");
+            metrics.put(name.toString(), new Metric(unit, primary.path("score").asDouble(), higherIsBetter));
+        }
+        return metrics;
+    }
+
+    private record Metric(String unit, double value, boolean higherIsBetter) {
+    }
+}
@@ -0,0 +1,33 @@
+package com.cloudbox.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-object key work that every upload and listing entry pays for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class KeyBenchmark {
+
+    private final S3Service s3Service = new S3Service();
+    private final String key = "user_2abcDEF/projects/2024/q3/3f2b9c1e-8d4a-4e7b-9c2f-1a6d5e8b7c90_quarterly report.pdf";
+
+    @Benchmark
+    public String buildFileKey() {
+        return s3Service.buildFileKey("user_2abcDEF", "projects/2024/q3", "quarterly report.pdf");
+    }
+
+    @Benchmark
+    public long stableId() {
+        return S3Service.stableId(key);
+    }
+
+    @Benchmark
+    public String displayName() {
+        return FileSearchIndex.displayName(key.substring(key.lastIndexOf('/') + 1));
+    }
+}
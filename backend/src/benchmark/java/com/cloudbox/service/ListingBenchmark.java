@@ -0,0 +1,123 @@
+package com.cloudbox.service;
+
+import com.cloudbox.controller.FileController;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Turning a folder into listing entries, from an S3 page and from the
+ * metadata index, and writing a listing out as JSON. None of it touches the
+ * network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class ListingBenchmark {
+
+    private static final String USER = "bench-user";
+    private static final String FOLDER = "photos";
+
+    @Param({"100", "1000", "10000"})
+    int entries;
+
+    private S3Service s3Service;
+    private Path journalDir;
+    private List<ListObjectsV2Response> pages;
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        journalDir = Files.createTempDirectory("cloudbox-listing-bench");
+        MetadataStore metadataStore = new MetadataStore();
+        ReflectionTestUtils.setField(metadataStore, "journalPath", journalDir.resolve("metadata.log").toString());
+        ReflectionTestUtils.setField(metadataStore, "compactMinRecords", Long.MAX_VALUE);
+        metadataStore.open();
+
+        LogicalSizes logicalSizes = new LogicalSizes();
+        ReflectionTestUtils.setField(logicalSizes, "contentStore", new ContentAddressedStore());
+        ReflectionTestUtils.setField(logicalSizes, "storageCodec", new StorageCodec());
+
+        s3Service = new S3Service();
+        ReflectionTestUtils.setField(s3Service, "metadataStore", metadataStore);
+        ReflectionTestUtils.setField(s3Service, "logicalSizes", logicalSizes);
+
+        // S3 returns at most 1000 keys per page; a tenth of the entries are subfolders
+        String prefix = USER + "/" + FOLDER + "/";
+        pages = new ArrayList<>();
+        List<S3Object> contents = new ArrayList<>();
+        List<CommonPrefix> prefixes = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            if (i % 10 == 9) {
+                String folder = prefix + "album-" + i + "/";
+                prefixes.add(CommonPrefix.builder().prefix(folder).build());
+                metadataStore.putFolder(folder, now);
+            } else {
+                String key = prefix + UUID.randomUUID() + "_IMG_" + i + ".jpg";
+                long size = 100_000L + i;
+                contents.add(S3Object.builder().key(key).size(size).lastModified(Instant.ofEpochMilli(now))
+                        .eTag("\"etag\"").build());
+                metadataStore.putFile(key, size, "etag", now);
+            }
+            if (contents.size() + prefixes.size() == 1000 || i == entries - 1) {
+                pages.add(ListObjectsV2Response.builder().contents(contents).commonPrefixes(prefixes).build());
+                contents = new ArrayList<>();
+                prefixes = new ArrayList<>();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ((MetadataStore) ReflectionTestUtils.getField(s3Service, "metadataStore")).close();
+        FileSystemUtils.deleteRecursively(journalDir);
+    }
+
+    @Benchmark
+    public List<S3Service.FileEntry> fromS3Pages() {
+        String prefix = USER + "/" + FOLDER + "/";
+        List<S3Service.FileEntry> files = new ArrayList<>();
+        List<S3Service.FolderEntry> folders = new ArrayList<>();
+        for (ListObjectsV2Response page : pages) {
+            s3Service.collectPage(page, prefix, FOLDER, files, folders);
+        }
+        return files;
+    }
+
+    @Benchmark
+    public S3Service.Listing fromMetadataIndex() {
+        return s3Service.indexedListing(USER, FOLDER);
+    }
+
+    /**
+     * The listing written as the /list response body, with the ObjectMapper
+     * settings Spring Boot applies.
+     */
+    @Benchmark
+    public void listResponseJson() throws Exception {
+        S3Service.Listing listing = s3Service.indexedListing(USER, FOLDER);
+        objectMapper.writeValue(OutputStream.nullOutputStream(),
+                new FileController.ListingResponse(true, listing.files(), listing.folders()));
+    }
+}
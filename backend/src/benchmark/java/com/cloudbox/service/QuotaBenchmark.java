@@ -0,0 +1,50 @@
+package com.cloudbox.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The quota check run before every upload, answered from the usage ledger,
+ * alone and with uploads for the same user being recorded concurrently.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class QuotaBenchmark {
+
+    private static final String USER = "bench-user";
+
+    private FileService fileService;
+    private StorageUsageLedger usageLedger;
+
+    @Setup
+    public void setUp() {
+        usageLedger = new StorageUsageLedger();
+        usageLedger.seed(USER, 512L * 1024 * 1024, 5000);
+
+        S3Service s3Service = new S3Service();
+        ReflectionTestUtils.setField(s3Service, "usageLedger", usageLedger);
+        fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "s3Service", s3Service);
+        // Read directly for the bytes reserved by uploads in progress
+        ReflectionTestUtils.setField(fileService, "usageLedger", usageLedger);
+    }
+
+    @Benchmark
+    public boolean canUpload() {
+        return fileService.canUpload(USER, 10L * 1024 * 1024);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean canUploadContended() {
+        boolean allowed = fileService.canUpload(USER, 10L * 1024 * 1024);
+        usageLedger.recordAdded(USER, 1);
+        return allowed;
+    }
+}
@@ -1,13 +1,25 @@
 package com.cloudbox;
 
+import com.cloudbox.config.AdmissionControl;
+import com.cloudbox.config.UserOperationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @SpringBootApplication
+@EnableScheduling
 public class CloudBoxApplication implements WebMvcConfigurer {
 
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private UserOperationMetrics userOperationMetrics;
+
     public static void main(String[] args) {
         SpringApplication.run(CloudBoxApplication.class, args);
     }
@@ -18,6 +30,14 @@ public class CloudBoxApplication implements WebMvcConfigurer {
                 .allowedOrigins("http://localhost:3000")
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
                 .allowedHeaders("*")
+                .exposedHeaders("Retry-After")
                 .allowCredentials(true);
     }
-}
\ No newline at end of file
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // First, so refused requests never reach the handler or count as operations
+        registry.addInterceptor(admissionControl).addPathPatterns("/api/**");
+        registry.addInterceptor(userOperationMetrics).addPathPatterns("/api/**");
+    }
+}
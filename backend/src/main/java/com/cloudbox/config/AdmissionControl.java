@@ -0,0 +1,361 @@
+package com.cloudbox.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the API, so one user's bulk work cannot starve
+ * everyone else of request threads and S3 connections. A request is
+ * admitted only if it fits within:
+ * <ul>
+ *   <li>a global limit on requests in progress, of which
+ *       {@link BulkOperation bulk} requests may only hold a share</li>
+ *   <li>per-user limits on requests, and on bulk requests, in progress</li>
+ *   <li>per-user and global bandwidth budgets for
+ *       {@link BandwidthMetered metered} requests, as {@link TokenBucket}s.
+ *       A request is charged its declared request and response lengths as
+ *       soon as they are known, so concurrent large transfers cannot all get
+ *       in before the first one completes, and is settled on completion
+ *       against the body bytes it actually read and wrote, as counted by
+ *       {@link TransferCounter}</li>
+ * </ul>
+ * Interactive requests may wait a few milliseconds for a global slot, and
+ * only a few of them at a time; bulk requests never wait, so queued
+ * interactive requests always go first. A request that does not fit is
+ * answered 429 with Retry-After rather than holding a request thread.
+ */
+@Component
+public class AdmissionControl implements AsyncHandlerInterceptor {
+
+    private static final String ADMISSION = AdmissionControl.class.getName() + ".admission";
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${cloudbox.admission.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cloudbox.admission.max-concurrent:64}")
+    private int maxConcurrent;
+
+    @Value("${cloudbox.admission.max-bulk-concurrent:16}")
+    private int maxBulkConcurrent;
+
+    @Value("${cloudbox.admission.max-concurrent-per-user:8}")
+    private int maxConcurrentPerUser;
+
+    @Value("${cloudbox.admission.max-bulk-concurrent-per-user:2}")
+    private int maxBulkConcurrentPerUser;
+
+    @Value("${cloudbox.admission.queue-timeout-ms:50}")
+    private long queueTimeoutMs;
+
+    // Interactive requests allowed to wait for a global slot at once
+    @Value("${cloudbox.admission.max-queued:8}")
+    private int maxQueued;
+
+    @Value("${cloudbox.admission.retry-after-seconds:1}")
+    private long retryAfterSeconds;
+
+    // 0 turns a bandwidth budget off
+    @Value("${cloudbox.admission.user-bytes-per-second:52428800}")
+    private long userBytesPerSecond;
+
+    @Value("${cloudbox.admission.global-bytes-per-second:0}")
+    private long globalBytesPerSecond;
+
+    @Value("${cloudbox.admission.burst-seconds:2}")
+    private long burstSeconds;
+
+    private Semaphore globalSlots;
+    private Semaphore bulkSlots;
+    private TokenBucket globalBandwidth;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, Integer> userRequests = new ConcurrentHashMap<>();
+    private final Map<String, Integer> userBulkRequests = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> userBandwidth = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        // Fair, so a timed tryAcquire joins the queue behind waiting requests
+        globalSlots = new Semaphore(maxConcurrent, true);
+        bulkSlots = new Semaphore(Math.min(maxBulkConcurrent, maxConcurrent), true);
+        if (globalBytesPerSecond > 0) {
+            globalBandwidth = new TokenBucket(globalBytesPerSecond, globalBytesPerSecond * burstSeconds);
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws IOException {
+        // Async requests come through again when they complete; admit them once
+        if (!enabled || request.getDispatcherType() != DispatcherType.REQUEST
+                || !(handler instanceof HandlerMethod method)) {
+            return true;
+        }
+        boolean bulk = method.hasMethodAnnotation(BulkOperation.class);
+        boolean metered = method.hasMethodAnnotation(BandwidthMetered.class);
+        String userId = request.getParameter("userId");
+
+        long bandwidthWait = metered ? Math.max(
+                globalBandwidth != null ? globalBandwidth.millisUntilAvailable() : 0,
+                userId != null && userBytesPerSecond > 0 ? userBucket(userId).millisUntilAvailable() : 0) : 0;
+        if (bandwidthWait > 0) {
+            return reject(response, bulk, "bandwidth", "Transfer rate limit reached",
+                    TimeUnit.MILLISECONDS.toSeconds(bandwidthWait + 999));
+        }
+
+        Admission admission = new Admission(userId, metered);
+        if (userId != null) {
+            admission.user = acquire(userRequests, userId, maxConcurrentPerUser);
+            if (!admission.user) {
+                return reject(response, bulk, "user", "Too many requests in progress for this user",
+                        retryAfterSeconds);
+            }
+            if (bulk) {
+                admission.userBulk = acquire(userBulkRequests, userId, maxBulkConcurrentPerUser);
+                if (!admission.userBulk) {
+                    admission.release();
+                    return reject(response, true, "user_bulk", "Too many bulk operations in progress for this user",
+                            retryAfterSeconds);
+                }
+            }
+        }
+        try {
+            if (bulk) {
+                admission.bulkSlot = bulkSlots.tryAcquire(0, TimeUnit.MILLISECONDS);
+                if (!admission.bulkSlot) {
+                    admission.release();
+                    return reject(response, true, "bulk", "Server busy with bulk operations", retryAfterSeconds);
+                }
+            }
+            admission.globalSlot = globalSlots.tryAcquire(0, TimeUnit.MILLISECONDS);
+            if (!admission.globalSlot && !bulk) {
+                admission.globalSlot = awaitGlobalSlot();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!admission.globalSlot) {
+            admission.release();
+            return reject(response, bulk, "global", "Server busy", retryAfterSeconds);
+        }
+        request.setAttribute(ADMISSION, admission);
+
+        if (metered) {
+            // -1 when the request declares no length
+            admission.charge(Math.max(0, request.getContentLengthLong()));
+            TransferCounter.Counts counts = TransferCounter.countsOf(request);
+            if (counts != null) {
+                counts.onDeclaredLength(admission::charge);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits up to queueTimeoutMs for a global slot, unless maxQueued requests
+     * are already waiting. Either way the wait is short, since it holds a
+     * request thread.
+     */
+    private boolean awaitGlobalSlot() throws InterruptedException {
+        try {
+            if (queued.incrementAndGet() > maxQueued) {
+                return false;
+            }
+            return globalSlots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+                                               Object handler) {
+        Admission admission = (Admission) request.getAttribute(ADMISSION);
+        if (admission == null) {
+            return;
+        }
+        // Normally released by afterCompletion on the async dispatch; this
+        // covers requests that end without one, such as a client abort.
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                finish(request, response, admission);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        Admission admission = (Admission) request.getAttribute(ADMISSION);
+        if (admission != null) {
+            finish(request, response, admission);
+        }
+    }
+
+    /**
+     * Drops bandwidth budgets that have refilled completely, so users who
+     * have gone quiet do not keep an entry.
+     */
+    @Scheduled(fixedDelayString = "${cloudbox.admission.sweep-interval-ms:60000}")
+    public void sweepIdleUsers() {
+        userBandwidth.values().removeIf(TokenBucket::isFull);
+    }
+
+    private void finish(HttpServletRequest request, HttpServletResponse response, Admission admission) {
+        if (!admission.release() || !admission.metered) {
+            return;
+        }
+        TransferCounter.Counts counts = TransferCounter.countsOf(request);
+        if (counts == null) {
+            return;
+        }
+        // Multipart bodies are parsed by the container below the counting
+        // wrapper, so for those the declared length stands in
+        long bytes = Math.max(counts.bytesRead(), request.getContentLengthLong()) + counts.bytesWritten();
+        // Settles the up-front charge, refunding it if the transfer was cut short
+        consume(admission.userId, bytes - admission.charged.get());
+    }
+
+    private void consume(String userId, long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        if (globalBandwidth != null) {
+            globalBandwidth.consume(bytes);
+        }
+        if (userId != null && userBytesPerSecond > 0) {
+            userBucket(userId).consume(bytes);
+        }
+    }
+
+    private TokenBucket userBucket(String userId) {
+        return userBandwidth.computeIfAbsent(userId,
+                id -> new TokenBucket(userBytesPerSecond, userBytesPerSecond * burstSeconds));
+    }
+
+    private static boolean acquire(Map<String, Integer> counts, String userId, int limit) {
+        boolean[] acquired = new boolean[1];
+        counts.compute(userId, (id, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= limit) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    private static void release(Map<String, Integer> counts, String userId) {
+        counts.computeIfPresent(userId, (id, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private boolean reject(HttpServletResponse response, boolean bulk, String reason, String message,
+                           long retryAfter) throws IOException {
+        Counter.builder("cloudbox.admission.rejected")
+                .description("Requests refused by admission control")
+                .tag("reason", reason)
+                .tag("class", bulk ? "bulk" : "interactive")
+                .register(registry)
+                .increment();
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, retryAfter)));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), Map.of("success", false, "error", message));
+        return false;
+    }
+
+    /**
+     * The slots one request holds, released exactly once.
+     */
+    private final class Admission {
+
+        private final String userId;
+        private final boolean metered;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final AtomicLong charged = new AtomicLong();
+        private boolean user;
+        private boolean userBulk;
+        private boolean bulkSlot;
+        private boolean globalSlot;
+
+        Admission(String userId, boolean metered) {
+            this.userId = userId;
+            this.metered = metered;
+        }
+
+        /**
+         * Charges bytes the request has declared it will transfer, ahead of
+         * the transfer itself, or takes back a declared length that shrank.
+         */
+        void charge(long bytes) {
+            charged.addAndGet(bytes);
+            consume(userId, bytes);
+        }
+
+        /**
+         * Returns false if this was already released.
+         */
+        boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            if (globalSlot) {
+                globalSlots.release();
+            }
+            if (bulkSlot) {
+                bulkSlots.release();
+            }
+            if (userBulk) {
+                AdmissionControl.release(userBulkRequests, userId);
+            }
+            if (user) {
+                AdmissionControl.release(userRequests, userId);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.cloudbox.config;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The async calls CloudBox makes, run on {@code executor} against the
+ * {@link BackendS3Client}. Request bodies are collected in memory before
+ * they are stored; CloudBox only sends small ones, such as folder markers,
+ * through the async client. Operations not overridden here throw
+ * UnsupportedOperationException.
+ */
+class BackendS3AsyncClient implements S3AsyncClient {
+
+    private final S3Client client;
+    private final ExecutorService executor;
+
+    BackendS3AsyncClient(S3Client client, ExecutorService executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody body) {
+        CompletableFuture<byte[]> bytes = new CompletableFuture<>();
+        body.subscribe(new Subscriber<ByteBuffer>() {
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer chunk) {
+                byte[] copy = new byte[chunk.remaining()];
+                chunk.get(copy);
+                buffer.write(copy, 0, copy.length);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                bytes.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                bytes.complete(buffer.toByteArray());
+            }
+        });
+        return bytes.thenApplyAsync(content -> client.putObject(request, RequestBody.fromBytes(content)), executor);
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return CompletableFuture.supplyAsync(() -> client.headObject(request), executor);
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return CompletableFuture.supplyAsync(() -> client.deleteObject(request), executor);
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return CompletableFuture.supplyAsync(() -> client.uploadPartCopy(request), executor);
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return CompletableFuture.supplyAsync(() -> client.listObjectsV2(request), executor);
+    }
+
+    @Override
+    public ListObjectsV2Publisher listObjectsV2Paginator(ListObjectsV2Request request) {
+        return new ListObjectsV2Publisher(this, request);
+    }
+}
@@ -0,0 +1,542 @@
+package com.cloudbox.config;
+
+import com.cloudbox.service.StorageBackend;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.Bucket;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectResult;
+import software.amazon.awssdk.services.s3.model.CopyPartResult;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.DeletedObject;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListBucketsRequest;
+import software.amazon.awssdk.services.s3.model.ListBucketsResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Serves the S3 calls CloudBox makes from a {@link StorageBackend}, so the
+ * services written against the S3 client run unchanged on other storage.
+ * Operations not overridden here throw UnsupportedOperationException.
+ *
+ * Multipart uploads are staged as one file per part under
+ * {@code uploadDir}, with the upload's key and attributes alongside, so they
+ * survive restarts and can be listed and swept like S3's. Completing one
+ * stores the parts, in order, as a single object.
+ */
+class BackendS3Client implements S3Client {
+
+    private static final String UPLOAD_INFO = "upload.properties";
+
+    private final StorageBackend backend;
+    private final String bucketName;
+    private final Path uploadDir;
+
+    BackendS3Client(StorageBackend backend, String bucketName, Path uploadDir) throws IOException {
+        this.backend = backend;
+        this.bucketName = bucketName;
+        this.uploadDir = Files.createDirectories(uploadDir);
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public ListBucketsResponse listBuckets(ListBucketsRequest request) {
+        return ListBucketsResponse.builder()
+                .buckets(Bucket.builder().name(bucketName).build())
+                .build();
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        long length = body.optionalContentLength().orElse(request.contentLength() != null ? request.contentLength() : -1L);
+        try (InputStream in = body.contentStreamProvider().newStream()) {
+            return PutObjectResponse.builder()
+                    .eTag(backend.put(request.key(), in, length, request.contentType(), request.metadata()))
+                    .build();
+        } catch (IOException e) {
+            throw failed("PutObject", request.key(), e);
+        }
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request,
+                                       ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        StorageBackend.StoredObject object = existing(request.key());
+        checkMatch(object, request.ifMatch());
+
+        GetObjectResponse.Builder response = GetObjectResponse.builder()
+                .acceptRanges("bytes")
+                .eTag(object.etag())
+                .lastModified(object.lastModified())
+                .contentType(object.contentType())
+                .metadata(object.metadata());
+        long start = 0;
+        long end = object.size() - 1;
+        if (request.range() != null) {
+            long[] range = parseRange(request.range(), object.size());
+            start = range[0];
+            end = range[1];
+            response.contentRange("bytes " + start + "-" + end + "/" + object.size());
+        }
+        response.contentLength(end - start + 1);
+
+        InputStream in;
+        try {
+            in = backend.get(request.key(), start, end);
+        } catch (NoSuchFileException e) {
+            throw noSuchKey(request.key());
+        } catch (IOException e) {
+            throw failed("GetObject", request.key(), e);
+        }
+        try {
+            return transformer.transform(response.build(), AbortableInputStream.create(in));
+        } catch (Exception e) {
+            closeQuietly(in);
+            if (e instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw SdkClientException.create("Failed to read " + request.key(), e);
+        }
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        StorageBackend.StoredObject object = existing(request.key());
+        checkMatch(object, request.ifMatch());
+        return HeadObjectResponse.builder()
+                .acceptRanges("bytes")
+                .contentLength(object.size())
+                .eTag(object.etag())
+                .lastModified(object.lastModified())
+                .contentType(object.contentType())
+                .metadata(object.metadata())
+                .build();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        String prefix = request.prefix() != null ? request.prefix() : "";
+        int maxKeys = request.maxKeys() != null ? request.maxKeys() : 1000;
+        String startAfter = request.continuationToken() != null
+                ? new String(Base64.getUrlDecoder().decode(request.continuationToken()), StandardCharsets.UTF_8)
+                : request.startAfter();
+
+        StorageBackend.ListPage page;
+        try {
+            page = backend.list(prefix, request.delimiter(), startAfter, maxKeys);
+        } catch (IOException e) {
+            throw failed("ListObjectsV2", prefix, e);
+        }
+
+        List<S3Object> contents = new ArrayList<>(page.objects().size());
+        for (StorageBackend.StoredObject object : page.objects()) {
+            contents.add(S3Object.builder()
+                    .key(object.key())
+                    .size(object.size())
+                    .eTag(object.etag())
+                    .lastModified(object.lastModified())
+                    .build());
+        }
+        List<CommonPrefix> commonPrefixes = new ArrayList<>(page.commonPrefixes().size());
+        for (String commonPrefix : page.commonPrefixes()) {
+            commonPrefixes.add(CommonPrefix.builder().prefix(commonPrefix).build());
+        }
+        String next = page.nextStartAfter() != null
+                ? Base64.getUrlEncoder().encodeToString(page.nextStartAfter().getBytes(StandardCharsets.UTF_8))
+                : null;
+        return ListObjectsV2Response.builder()
+                .name(bucketName)
+                .prefix(request.prefix())
+                .delimiter(request.delimiter())
+                .maxKeys(maxKeys)
+                .continuationToken(request.continuationToken())
+                .startAfter(request.startAfter())
+                .contents(contents)
+                .commonPrefixes(commonPrefixes)
+                .keyCount(contents.size() + commonPrefixes.size())
+                .isTruncated(next != null)
+                .nextContinuationToken(next)
+                .build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+        try {
+            backend.delete(request.key());
+        } catch (IOException e) {
+            throw failed("DeleteObject", request.key(), e);
+        }
+        return DeleteObjectResponse.builder().build();
+    }
+
+    @Override
+    public DeleteObjectsResponse deleteObjects(DeleteObjectsRequest request) {
+        List<DeletedObject> deleted = new ArrayList<>();
+        List<S3Error> errors = new ArrayList<>();
+        for (ObjectIdentifier object : request.delete().objects()) {
+            try {
+                backend.delete(object.key());
+                deleted.add(DeletedObject.builder().key(object.key()).build());
+            } catch (IOException e) {
+                errors.add(S3Error.builder().key(object.key()).code("InternalError").message(e.getMessage()).build());
+            }
+        }
+        return DeleteObjectsResponse.builder().deleted(deleted).errors(errors).build();
+    }
+
+    @Override
+    public CopyObjectResponse copyObject(CopyObjectRequest request) {
+        checkMatch(existing(request.sourceKey()), request.copySourceIfMatch());
+        try {
+            String etag = backend.copy(request.sourceKey(), request.destinationKey());
+            return CopyObjectResponse.builder()
+                    .copyObjectResult(CopyObjectResult.builder().eTag(etag).lastModified(Instant.now()).build())
+                    .build();
+        } catch (NoSuchFileException e) {
+            throw noSuchKey(request.sourceKey());
+        } catch (IOException e) {
+            throw failed("CopyObject", request.sourceKey(), e);
+        }
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        String uploadId = UUID.randomUUID().toString().replace("-", "");
+        Properties info = new Properties();
+        info.setProperty("key", request.key());
+        info.setProperty("initiated", Long.toString(System.currentTimeMillis()));
+        if (request.contentType() != null) {
+            info.setProperty("contentType", request.contentType());
+        }
+        request.metadata().forEach((name, value) -> info.setProperty("metadata." + name, value));
+        try {
+            Path dir = Files.createDirectories(uploadDir.resolve(uploadId));
+            try (Writer out = Files.newBufferedWriter(dir.resolve(UPLOAD_INFO), StandardCharsets.UTF_8)) {
+                info.store(out, null);
+            }
+        } catch (IOException e) {
+            throw failed("CreateMultipartUpload", request.key(), e);
+        }
+        return CreateMultipartUploadResponse.builder()
+                .bucket(bucketName)
+                .key(request.key())
+                .uploadId(uploadId)
+                .build();
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+        Path dir = uploadDirFor(request.uploadId());
+        try (InputStream in = body.contentStreamProvider().newStream()) {
+            return UploadPartResponse.builder().eTag(writePart(dir, request.partNumber(), in)).build();
+        } catch (IOException e) {
+            throw failed("UploadPart", request.key(), e);
+        }
+    }
+
+    @Override
+    public UploadPartCopyResponse uploadPartCopy(UploadPartCopyRequest request) {
+        Path dir = uploadDirFor(request.uploadId());
+        StorageBackend.StoredObject source = existing(request.sourceKey());
+        checkMatch(source, request.copySourceIfMatch());
+        long[] range = request.copySourceRange() != null
+                ? parseRange(request.copySourceRange(), source.size())
+                : new long[] {0, source.size() - 1};
+        try (InputStream in = backend.get(request.sourceKey(), range[0], range[1])) {
+            return UploadPartCopyResponse.builder()
+                    .copyPartResult(CopyPartResult.builder()
+                            .eTag(writePart(dir, request.partNumber(), in))
+                            .lastModified(Instant.now())
+                            .build())
+                    .build();
+        } catch (NoSuchFileException e) {
+            throw noSuchKey(request.sourceKey());
+        } catch (IOException e) {
+            throw failed("UploadPartCopy", request.sourceKey(), e);
+        }
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        Path dir = uploadDirFor(request.uploadId());
+        try {
+            Properties info = readInfo(dir);
+            List<InputStream> parts = new ArrayList<>();
+            long length = 0;
+            try {
+                for (CompletedPart part : request.multipartUpload().parts()) {
+                    Path file = dir.resolve(partName(part.partNumber()));
+                    if (!Files.exists(file)) {
+                        throw S3Exception.builder()
+                                .statusCode(400)
+                                .message("Part " + part.partNumber() + " was not uploaded")
+                                .awsErrorDetails(errorDetails("InvalidPart"))
+                                .build();
+                    }
+                    length += Files.size(file);
+                    parts.add(Files.newInputStream(file));
+                }
+                String etag;
+                try (InputStream in = new SequenceInputStream(Collections.enumeration(parts))) {
+                    etag = backend.put(request.key(), in, length, info.getProperty("contentType"), metadataOf(info));
+                }
+                deleteUpload(dir);
+                return CompleteMultipartUploadResponse.builder()
+                        .bucket(bucketName)
+                        .key(request.key())
+                        .eTag(etag)
+                        .build();
+            } finally {
+                for (InputStream part : parts) {
+                    closeQuietly(part);
+                }
+            }
+        } catch (IOException e) {
+            throw failed("CompleteMultipartUpload", request.key(), e);
+        }
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        try {
+            deleteUpload(uploadDirFor(request.uploadId()));
+        } catch (IOException e) {
+            throw failed("AbortMultipartUpload", request.key(), e);
+        }
+        return AbortMultipartUploadResponse.builder().build();
+    }
+
+    @Override
+    public ListMultipartUploadsResponse listMultipartUploads(ListMultipartUploadsRequest request) {
+        List<MultipartUpload> uploads = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(uploadDir)) {
+            for (Path dir : dirs) {
+                Properties info;
+                try {
+                    info = readInfo(dir);
+                } catch (NoSuchFileException e) {
+                    // Created or aborted while we were listing
+                    continue;
+                }
+                uploads.add(MultipartUpload.builder()
+                        .key(info.getProperty("key"))
+                        .uploadId(dir.getFileName().toString())
+                        .initiated(Instant.ofEpochMilli(Long.parseLong(info.getProperty("initiated"))))
+                        .build());
+            }
+        } catch (IOException e) {
+            throw failed("ListMultipartUploads", uploadDir.toString(), e);
+        }
+        return ListMultipartUploadsResponse.builder()
+                .bucket(bucketName)
+                .uploads(uploads)
+                .isTruncated(false)
+                .build();
+    }
+
+    private StorageBackend.StoredObject existing(String key) {
+        StorageBackend.StoredObject object;
+        try {
+            object = backend.stat(key);
+        } catch (IOException e) {
+            throw failed("HeadObject", key, e);
+        }
+        if (object == null) {
+            throw noSuchKey(key);
+        }
+        return object;
+    }
+
+    private Path uploadDirFor(String uploadId) {
+        Path dir = uploadDir.resolve(uploadId).normalize();
+        if (!dir.getParent().equals(uploadDir) || !Files.isDirectory(dir)) {
+            throw NoSuchUploadException.builder()
+                    .statusCode(404)
+                    .message("The specified upload does not exist: " + uploadId)
+                    .awsErrorDetails(errorDetails("NoSuchUpload"))
+                    .build();
+        }
+        return dir;
+    }
+
+    private static String writePart(Path dir, int partNumber, InputStream in) throws IOException {
+        Path temp = Files.createTempFile(dir, "part-", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                in.transferTo(out);
+            }
+            Files.move(temp, dir.resolve(partName(partNumber)), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return "\"" + UUID.randomUUID().toString().replace("-", "") + "\"";
+    }
+
+    private static String partName(int partNumber) {
+        return String.format("part-%05d", partNumber);
+    }
+
+    private static Properties readInfo(Path dir) throws IOException {
+        Properties info = new Properties();
+        try (Reader in = Files.newBufferedReader(dir.resolve(UPLOAD_INFO), StandardCharsets.UTF_8)) {
+            info.load(in);
+        }
+        return info;
+    }
+
+    private static Map<String, String> metadataOf(Properties info) {
+        Map<String, String> metadata = new HashMap<>();
+        Enumeration<?> names = info.propertyNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            if (name.startsWith("metadata.")) {
+                metadata.put(name.substring("metadata.".length()), info.getProperty(name));
+            }
+        }
+        return metadata;
+    }
+
+    private static void deleteUpload(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * Parses a single {@code bytes=} range, as S3 accepts, into inclusive
+     * offsets clamped to the object.
+     */
+    private static long[] parseRange(String header, long size) {
+        try {
+            if (header.startsWith("bytes=") && !header.contains(",")) {
+                String spec = header.substring("bytes=".length()).trim();
+                int dash = spec.indexOf('-');
+                long start;
+                long end;
+                if (dash == 0) {
+                    start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+                }
+                if (start <= end) {
+                    return new long[] {start, end};
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // Falls through to the error below
+        }
+        throw S3Exception.builder()
+                .statusCode(416)
+                .message("The requested range is not satisfiable: " + header)
+                .awsErrorDetails(errorDetails("InvalidRange"))
+                .build();
+    }
+
+    private static void checkMatch(StorageBackend.StoredObject object, String ifMatch) {
+        if (ifMatch != null && !ifMatch.equals(object.etag())) {
+            throw S3Exception.builder()
+                    .statusCode(412)
+                    .message("At least one of the pre-conditions you specified did not hold")
+                    .awsErrorDetails(errorDetails("PreconditionFailed"))
+                    .build();
+        }
+    }
+
+    private static NoSuchKeyException noSuchKey(String key) {
+        return NoSuchKeyException.builder()
+                .statusCode(404)
+                .message("The specified key does not exist: " + key)
+                .awsErrorDetails(errorDetails("NoSuchKey"))
+                .build();
+    }
+
+    private static AwsErrorDetails errorDetails(String code) {
+        return AwsErrorDetails.builder().serviceName(SERVICE_NAME).errorCode(code).build();
+    }
+
+    private static SdkClientException failed(String operation, String key, IOException e) {
+        return SdkClientException.create(operation + " failed for " + key + ": " + e.getMessage(), e);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing more to do with it
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.cloudbox.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an endpoint that carries file bytes, whose transfers are charged to
+ * the bandwidth budgets in {@link AdmissionControl}. Other endpoints, such as
+ * listings, stay available to a user who has used up their budget.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface BandwidthMetered {
+}
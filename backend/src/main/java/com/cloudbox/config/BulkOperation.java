@@ -0,0 +1,17 @@
+package com.cloudbox.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an endpoint that moves or touches many objects at once, such as an
+ * upload batch or a folder delete. {@link AdmissionControl} gives these a
+ * smaller share of capacity than interactive requests like listings and
+ * downloads, and never lets them queue.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface BulkOperation {
+}
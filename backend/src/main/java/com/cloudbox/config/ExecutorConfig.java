@@ -0,0 +1,102 @@
+package com.cloudbox.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class ExecutorConfig {
+
+    @Value("${cloudbox.upload.part-workers:8}")
+    private int partUploadWorkers;
+
+    @Value("${cloudbox.upload.batch-workers:32}")
+    private int batchUploadWorkers;
+
+    @Value("${cloudbox.delete.workers:8}")
+    private int deleteWorkers;
+
+    @Value("${cloudbox.download.segment-workers:16}")
+    private int segmentDownloadWorkers;
+
+    @Value("${cloudbox.move.copy-workers:16}")
+    private int copyWorkers;
+
+    @Value("${cloudbox.thumbnails.workers:2}")
+    private int thumbnailWorkers;
+
+    @Value("${cloudbox.thumbnails.queue-capacity:1000}")
+    private int thumbnailQueueCapacity;
+
+    @Value("${cloudbox.metadata.index-workers:2}")
+    private int metadataIndexWorkers;
+
+    @Value("${cloudbox.download-cache.fill-workers:2}")
+    private int cacheFillWorkers;
+
+    @Value("${cloudbox.download-cache.fill-queue-capacity:100}")
+    private int cacheFillQueueCapacity;
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService partUploadExecutor() {
+        return Executors.newFixedThreadPool(partUploadWorkers, daemonThreads("s3-part-upload-"));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService batchUploadExecutor() {
+        return Executors.newFixedThreadPool(batchUploadWorkers, daemonThreads("batch-upload-"));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService deleteExecutor() {
+        return Executors.newFixedThreadPool(deleteWorkers, daemonThreads("s3-delete-"));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService segmentDownloadExecutor() {
+        return Executors.newFixedThreadPool(segmentDownloadWorkers, daemonThreads("s3-segment-download-"));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService copyExecutor() {
+        return Executors.newFixedThreadPool(copyWorkers, daemonThreads("s3-copy-"));
+    }
+
+    /**
+     * Bounded queue: when uploads outpace thumbnailing, further work is
+     * rejected and the thumbnails are generated on first request instead.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService thumbnailExecutor() {
+        return new ThreadPoolExecutor(thumbnailWorkers, thumbnailWorkers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(thumbnailQueueCapacity), daemonThreads("thumbnail-"));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService metadataIndexExecutor() {
+        return Executors.newFixedThreadPool(metadataIndexWorkers, daemonThreads("metadata-index-"));
+    }
+
+    /**
+     * Bounded queue: background cache fills are an optimisation, so when
+     * they back up further ones are simply dropped.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService cacheFillExecutor() {
+        return new ThreadPoolExecutor(cacheFillWorkers, cacheFillWorkers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(cacheFillQueueCapacity), daemonThreads("download-cache-fill-"));
+    }
+
+    private static CustomizableThreadFactory daemonThreads(String prefix) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(prefix);
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+}
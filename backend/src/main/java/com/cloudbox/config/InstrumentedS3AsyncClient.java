@@ -0,0 +1,67 @@
+package com.cloudbox.config;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.DelegatingS3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Publisher;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Times the async calls CloudBox makes, since the CRT client takes no
+ * execution interceptors. Operations not overridden here pass through
+ * untimed.
+ */
+class InstrumentedS3AsyncClient extends DelegatingS3AsyncClient {
+
+    private final S3AsyncClient delegate;
+    private final S3Metrics metrics;
+
+    InstrumentedS3AsyncClient(S3AsyncClient delegate, S3Metrics metrics) {
+        super(delegate);
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody body) {
+        long length = request.contentLength() != null ? request.contentLength() : body.contentLength().orElse(0L);
+        return metrics.timeAsync("PutObject", length, () -> delegate.putObject(request, body));
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return metrics.timeAsync("HeadObject", 0, () -> delegate.headObject(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return metrics.timeAsync("DeleteObject", 0, () -> delegate.deleteObject(request));
+    }
+
+    @Override
+    public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        return metrics.timeAsync("UploadPartCopy", 0, () -> delegate.uploadPartCopy(request));
+    }
+
+    @Override
+    public CompletableFuture<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return metrics.timeAsync("ListObjectsV2", 0, () -> delegate.listObjectsV2(request));
+    }
+
+    @Override
+    public ListObjectsV2Publisher listObjectsV2Paginator(ListObjectsV2Request request) {
+        // Fetches each page through listObjectsV2 above, so every page is timed
+        return new ListObjectsV2Publisher(this, request);
+    }
+}
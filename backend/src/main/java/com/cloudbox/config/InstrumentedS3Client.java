@@ -0,0 +1,124 @@
+package com.cloudbox.config;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
+
+/**
+ * Times the blocking calls CloudBox makes on a client that was not built by
+ * the SDK, and so never runs {@link S3Metrics} as an execution interceptor.
+ * Operations not overridden here pass through untimed.
+ */
+class InstrumentedS3Client extends DelegatingS3Client {
+
+    private final S3Client delegate;
+    private final S3Metrics metrics;
+
+    InstrumentedS3Client(S3Client delegate, S3Metrics metrics) {
+        super(delegate);
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        long length = request.contentLength() != null ? request.contentLength() : body.optionalContentLength().orElse(0L);
+        return metrics.timeSync("PutObject", length, () -> delegate.putObject(request, body));
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+        return getObject(request, ResponseTransformer.toInputStream());
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request,
+                                       ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        // Returns once the body is handed over, like the SDK's own timing
+        return metrics.timeSync("GetObject", 0, () -> delegate.getObject(request, transformer));
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        return metrics.timeSync("HeadObject", 0, () -> delegate.headObject(request));
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        return metrics.timeSync("ListObjectsV2", 0, () -> delegate.listObjectsV2(request));
+    }
+
+    @Override
+    public ListObjectsV2Iterable listObjectsV2Paginator(ListObjectsV2Request request) {
+        // Fetches each page through listObjectsV2 above, so every page is timed
+        return new ListObjectsV2Iterable(this, request);
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+        return metrics.timeSync("DeleteObject", 0, () -> delegate.deleteObject(request));
+    }
+
+    @Override
+    public DeleteObjectsResponse deleteObjects(DeleteObjectsRequest request) {
+        return metrics.timeSync("DeleteObjects", 0, () -> delegate.deleteObjects(request));
+    }
+
+    @Override
+    public CopyObjectResponse copyObject(CopyObjectRequest request) {
+        return metrics.timeSync("CopyObject", 0, () -> delegate.copyObject(request));
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        return metrics.timeSync("CreateMultipartUpload", 0, () -> delegate.createMultipartUpload(request));
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+        long length = request.contentLength() != null ? request.contentLength() : body.optionalContentLength().orElse(0L);
+        return metrics.timeSync("UploadPart", length, () -> delegate.uploadPart(request, body));
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return metrics.timeSync("CompleteMultipartUpload", 0, () -> delegate.completeMultipartUpload(request));
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return metrics.timeSync("AbortMultipartUpload", 0, () -> delegate.abortMultipartUpload(request));
+    }
+
+    @Override
+    public ListMultipartUploadsResponse listMultipartUploads(ListMultipartUploadsRequest request) {
+        return metrics.timeSync("ListMultipartUploads", 0, () -> delegate.listMultipartUploads(request));
+    }
+}
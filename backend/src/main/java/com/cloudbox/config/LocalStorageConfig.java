@@ -0,0 +1,65 @@
+package com.cloudbox.config;
+
+import com.cloudbox.service.StorageBackend;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+
+/**
+ * Stands in for {@link S3Config} when {@code cloudbox.storage.backend=local}:
+ * the S3 clients are emulated on top of the local {@link StorageBackend}, so
+ * no AWS credentials are needed. They report to {@link S3Metrics} like the
+ * real ones. There is no presigner, so direct transfers stay off.
+ */
+@Configuration
+@ConditionalOnProperty(name = "cloudbox.storage.backend", havingValue = "local")
+public class LocalStorageConfig {
+
+    @Autowired
+    private StorageBackend storageBackend;
+
+    @Autowired
+    private S3Metrics s3Metrics;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.storage.local.root:data/objects}")
+    private String rootDir;
+
+    @Value("${cloudbox.storage.local.async-workers:8}")
+    private int asyncWorkers;
+
+    private BackendS3Client backendClient;
+
+    @Bean
+    public S3Client s3Client() throws IOException {
+        return new InstrumentedS3Client(backendClient(), s3Metrics);
+    }
+
+    @Bean
+    public S3AsyncClient s3AsyncClient() throws IOException {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("local-storage-");
+        threadFactory.setDaemon(true);
+        // On the uninstrumented client, so each async call is timed once
+        BackendS3AsyncClient client = new BackendS3AsyncClient(backendClient(),
+                Executors.newFixedThreadPool(asyncWorkers, threadFactory));
+        return new InstrumentedS3AsyncClient(client, s3Metrics);
+    }
+
+    private synchronized BackendS3Client backendClient() throws IOException {
+        if (backendClient == null) {
+            backendClient = new BackendS3Client(storageBackend, bucketName, Paths.get(rootDir, "uploads"));
+        }
+        return backendClient;
+    }
+}
@@ -1,16 +1,35 @@
 package com.cloudbox.config;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.S3CrtAsyncClientBuilder;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
+import java.net.URI;
+import java.time.Duration;
+
+/**
+ * The S3 clients, used unless {@code cloudbox.storage.backend=local}, in
+ * which case {@link LocalStorageConfig} provides them instead.
+ */
 @Configuration
+@ConditionalOnProperty(name = "cloudbox.storage.backend", havingValue = "s3", matchIfMissing = true)
 public class S3Config {
 
+    @Autowired
+    private S3Metrics s3Metrics;
+
     @Value("${aws.access-key-id}")
     private String accessKeyId;
 
@@ -20,13 +39,75 @@ public class S3Config {
     @Value("${aws.region}")
     private String region;
 
+    // Points the clients at an S3-compatible endpoint instead of AWS, e.g. a
+    // local stand-in for benchmarks. Blank means the regional AWS endpoint.
+    @Value("${cloudbox.s3.endpoint:}")
+    private String endpoint;
+
+    @Value("${cloudbox.s3.max-connections:128}")
+    private int maxConnections;
+
+    @Value("${cloudbox.s3.connection-acquire-timeout-ms:10000}")
+    private long connectionAcquireTimeoutMs;
+
+    @Value("${cloudbox.s3.crt.max-concurrency:64}")
+    private int crtMaxConcurrency;
+
+    @Value("${cloudbox.s3.crt.target-throughput-gbps:10.0}")
+    private double crtTargetThroughputGbps;
+
+    @Value("${cloudbox.s3.crt.minimum-part-size-bytes:8388608}")
+    private long crtMinimumPartSizeBytes;
+
     @Bean
     public S3Client s3Client() {
         AwsBasicCredentials awsCredentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
         
-        return S3Client.builder()
+        // The upload, delete and download pools all share this client, so
+        // the default pool of 50 connections would serialize them.
+        S3ClientBuilder builder = S3Client.builder()
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
+                .httpClientBuilder(ApacheHttpClient.builder()
+                        .maxConnections(maxConnections)
+                        .connectionAcquisitionTimeout(Duration.ofMillis(connectionAcquireTimeoutMs)))
+                .overrideConfiguration(config -> config.addExecutionInterceptor(s3Metrics));
+        if (!endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+        }
+        return builder.build();
+    }
+
+    @Bean
+    public S3AsyncClient s3AsyncClient() {
+        AwsBasicCredentials awsCredentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
+        
+        S3CrtAsyncClientBuilder builder = S3AsyncClient.crtBuilder()
                 .region(Region.of(region))
                 .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
-                .build();
+                .maxConcurrency(crtMaxConcurrency)
+                .targetThroughputInGbps(crtTargetThroughputGbps)
+                .minimumPartSizeInBytes(crtMinimumPartSizeBytes);
+        if (!endpoint.isBlank()) {
+            // The CRT client has no path-style switch; it falls back to path
+            // style by itself for bucket names that are not DNS-compatible.
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        return new InstrumentedS3AsyncClient(builder.build(), s3Metrics);
+    }
+
+    @Bean(destroyMethod = "close")
+    public S3Presigner s3Presigner() {
+        AwsBasicCredentials awsCredentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
+        
+        // Signing is local; this never opens a connection
+        S3Presigner.Builder builder = S3Presigner.builder()
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(awsCredentials));
+        if (!endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+        return builder.build();
     }
-}
\ No newline at end of file
+}
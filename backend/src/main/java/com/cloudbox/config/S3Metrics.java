@@ -0,0 +1,226 @@
+package com.cloudbox.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters for every S3 call:
+ * <ul>
+ *   <li>{@code cloudbox.s3.requests}: timer per operation and outcome</li>
+ *   <li>{@code cloudbox.s3.bytes}: bytes sent and received, by direction</li>
+ *   <li>{@code cloudbox.s3.objects.listed}: entries returned per list call</li>
+ *   <li>{@code cloudbox.s3.retries}: attempts beyond the first</li>
+ *   <li>{@code cloudbox.s3.requests.active}: calls in flight, per client</li>
+ * </ul>
+ * The synchronous client reports through this class as an execution
+ * interceptor. The CRT async client accepts no interceptors, so
+ * {@link InstrumentedS3AsyncClient} times its calls with {@link #timeAsync}
+ * instead, and cannot see its retries. The clients local storage serves
+ * are not built by the SDK either, and are timed the same way, with
+ * {@link InstrumentedS3Client} using {@link #timeSync}.
+ *
+ * Streaming GETs are timed to the first byte, when the SDK hands over the
+ * body; received bytes are the declared content length.
+ *
+ * Meters are built once per operation and outcome and cached, since
+ * registering them on every call costs more than the recording itself.
+ */
+@Component
+public class S3Metrics implements ExecutionInterceptor {
+
+    static final String SYNC = "sync";
+    static final String ASYNC = "async";
+
+    private static final ExecutionAttribute<Long> START = new ExecutionAttribute<>("CloudBoxS3Start");
+    private static final ExecutionAttribute<Integer> ATTEMPTS = new ExecutionAttribute<>("CloudBoxS3Attempts");
+    private static final ExecutionAttribute<Long> BYTES_OUT = new ExecutionAttribute<>("CloudBoxS3BytesOut");
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private final AtomicInteger syncInFlight = new AtomicInteger();
+    private final AtomicInteger asyncInFlight = new AtomicInteger();
+    private final ConcurrentHashMap<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> bytesOutCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> bytesInCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DistributionSummary> listed = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> retries = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void registerGauges() {
+        Gauge.builder("cloudbox.s3.requests.active", syncInFlight, AtomicInteger::get)
+                .description("S3 calls in flight")
+                .tag("client", SYNC)
+                .register(registry);
+        Gauge.builder("cloudbox.s3.requests.active", asyncInFlight, AtomicInteger::get)
+                .description("S3 calls in flight")
+                .tag("client", ASYNC)
+                .register(registry);
+    }
+
+    @Override
+    public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes attributes) {
+        attributes.putAttribute(START, System.nanoTime());
+        attributes.putAttribute(ATTEMPTS, 0);
+        syncInFlight.incrementAndGet();
+    }
+
+    @Override
+    public void afterMarshalling(Context.AfterMarshalling context, ExecutionAttributes attributes) {
+        context.requestBody()
+                .flatMap(RequestBody::optionalContentLength)
+                .ifPresent(length -> attributes.putAttribute(BYTES_OUT, length));
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes attributes) {
+        attributes.putAttribute(ATTEMPTS, attributes.getAttribute(ATTEMPTS) + 1);
+    }
+
+    @Override
+    public void afterExecution(Context.AfterExecution context, ExecutionAttributes attributes) {
+        finish(attributes, context.response(), null);
+    }
+
+    @Override
+    public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes attributes) {
+        finish(attributes, null, context.exception());
+    }
+
+    private void finish(ExecutionAttributes attributes, SdkResponse response, Throwable error) {
+        Long start = attributes.getAttribute(START);
+        if (start == null) {
+            // Failed before beforeExecution ran
+            return;
+        }
+        syncInFlight.decrementAndGet();
+        String operation = attributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+        Long bytesOut = attributes.getAttribute(BYTES_OUT);
+        record(operation, SYNC, System.nanoTime() - start, bytesOut != null ? bytesOut : 0, response, error);
+
+        Integer attempts = attributes.getAttribute(ATTEMPTS);
+        if (attempts != null && attempts > 1) {
+            retries.computeIfAbsent(operation, op -> Counter.builder("cloudbox.s3.retries")
+                            .description("S3 request attempts beyond the first")
+                            .tag("operation", op)
+                            .register(registry))
+                    .increment(attempts - 1);
+        }
+    }
+
+    /**
+     * Times a blocking call made outside the SDK's interceptor chain.
+     */
+    <T> T timeSync(String operation, long bytesOut, Supplier<T> call) {
+        long start = System.nanoTime();
+        syncInFlight.incrementAndGet();
+        T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            syncInFlight.decrementAndGet();
+            record(operation, SYNC, System.nanoTime() - start, bytesOut, null, e);
+            throw e;
+        }
+        syncInFlight.decrementAndGet();
+        Object response = result instanceof ResponseInputStream<?> in ? in.response() : result;
+        record(operation, SYNC, System.nanoTime() - start, bytesOut, response, null);
+        return result;
+    }
+
+    /**
+     * Times an async call from when it is issued until its future completes.
+     */
+    <T> CompletableFuture<T> timeAsync(String operation, long bytesOut, Supplier<CompletableFuture<T>> call) {
+        long start = System.nanoTime();
+        asyncInFlight.incrementAndGet();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            asyncInFlight.decrementAndGet();
+            record(operation, ASYNC, System.nanoTime() - start, bytesOut, null, e);
+            throw e;
+        }
+        return future.whenComplete((result, error) -> {
+            asyncInFlight.decrementAndGet();
+            record(operation, ASYNC, System.nanoTime() - start, bytesOut,
+                    result instanceof SdkResponse response ? response : null, error);
+        });
+    }
+
+    private void record(String operation, String client, long nanos, long bytesOut, Object response,
+                        Throwable error) {
+        timers.computeIfAbsent(new TimerKey(operation, client, outcome(error)),
+                        key -> Timer.builder("cloudbox.s3.requests")
+                                .description("S3 call latency")
+                                .tag("operation", key.operation())
+                                .tag("client", key.client())
+                                .tag("outcome", key.outcome())
+                                .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (error != null) {
+            return;
+        }
+
+        if (bytesOut > 0) {
+            bytesOutCounters.computeIfAbsent(operation, op -> bytes("out", op)).increment(bytesOut);
+        }
+        if (response instanceof GetObjectResponse get && get.contentLength() != null) {
+            bytesInCounters.computeIfAbsent(operation, op -> bytes("in", op)).increment(get.contentLength());
+        } else if (response instanceof ListObjectsV2Response list) {
+            listed.computeIfAbsent(operation, op -> DistributionSummary.builder("cloudbox.s3.objects.listed")
+                            .description("Keys and common prefixes returned per list call")
+                            .tag("operation", op)
+                            .register(registry))
+                    .record(list.contents().size() + list.commonPrefixes().size());
+        }
+    }
+
+    private Counter bytes(String direction, String operation) {
+        return Counter.builder("cloudbox.s3.bytes")
+                .description("Object bytes transferred to and from S3")
+                .baseUnit("bytes")
+                .tag("direction", direction)
+                .tag("operation", operation)
+                .register(registry);
+    }
+
+    private record TimerKey(String operation, String client, String outcome) {
+    }
+
+    private static String outcome(Throwable error) {
+        if (error == null) {
+            return "success";
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof SdkServiceException service) {
+            return service.statusCode() >= 500 ? "server_error" : "client_error";
+        }
+        return "error";
+    }
+}
@@ -0,0 +1,51 @@
+package com.cloudbox.config;
+
+/**
+ * A token bucket that may go into debt: a request is admitted whenever the
+ * balance is not negative, is charged for the lengths it declares as soon as
+ * they are known, and is settled afterwards against what it actually
+ * transferred, since streamed bodies declare no length. Later requests wait
+ * until the refill has paid the debt off.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(long tokensPerSecond, long capacity) {
+        this.tokensPerNano = tokensPerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Returns how long until the bucket is out of debt, or 0 if it is not.
+     */
+    synchronized long millisUntilAvailable() {
+        refill();
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano / 1e6);
+    }
+
+    /**
+     * Takes {@code amount} tokens, or returns them if it is negative, as when
+     * a request transferred less than it was charged for up front.
+     */
+    synchronized void consume(long amount) {
+        refill();
+        tokens = Math.min(capacity, tokens - amount);
+    }
+
+    synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,257 @@
+package com.cloudbox.config;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Counts the body bytes each request actually reads and writes, for
+ * {@link AdmissionControl} to charge to bandwidth budgets. Declared lengths
+ * are not enough: chunked uploads and streamed responses such as zips have
+ * none, and the Content-Length of a response is not reliably readable once
+ * it has been committed. Where a handler does declare a response length, it
+ * is passed on as soon as it is set, so the response can be charged before
+ * its body is written.
+ */
+@Component
+public class TransferCounter extends OncePerRequestFilter {
+
+    private static final String COUNTS = TransferCounter.class.getName() + ".counts";
+
+    /**
+     * Returns the counts for {@code request}, or null if it did not pass
+     * through this filter.
+     */
+    static Counts countsOf(HttpServletRequest request) {
+        return (Counts) request.getAttribute(COUNTS);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Counts counts = new Counts();
+        request.setAttribute(COUNTS, counts);
+        // Async handlers keep writing to these wrappers after this returns,
+        // since Spring starts async processing with the request it was given
+        chain.doFilter(new CountingRequest(request, counts), new CountingResponse(response, counts));
+    }
+
+    static final class Counts {
+        // Streaming responses write on a worker thread and are charged on another
+        private final LongAdder read = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private final AtomicLong declaredWritten = new AtomicLong();
+        private volatile LongConsumer declaredListener;
+
+        /**
+         * Calls {@code listener} with the response length whenever a handler
+         * declares one, or with the change if it declares another.
+         */
+        void onDeclaredLength(LongConsumer listener) {
+            declaredListener = listener;
+        }
+
+        private void declare(long length) {
+            long previous = declaredWritten.getAndSet(Math.max(0, length));
+            LongConsumer listener = declaredListener;
+            if (listener != null && length != previous) {
+                listener.accept(Math.max(0, length) - previous);
+            }
+        }
+
+        long bytesRead() {
+            return read.sum();
+        }
+
+        long bytesWritten() {
+            return written.sum();
+        }
+    }
+
+    private static final class CountingRequest extends HttpServletRequestWrapper {
+        private final Counts counts;
+        private ServletInputStream in;
+
+        CountingRequest(HttpServletRequest request, Counts counts) {
+            super(request);
+            this.counts = counts;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new CountingInputStream(super.getInputStream(), counts.read);
+            }
+            return in;
+        }
+    }
+
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+        private final Counts counts;
+        private ServletOutputStream out;
+
+        CountingResponse(HttpServletResponse response, Counts counts) {
+            super(response);
+            this.counts = counts;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new CountingOutputStream(super.getOutputStream(), counts.written);
+            }
+            return out;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            super.setContentLength(len);
+            counts.declare(len);
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            super.setContentLengthLong(len);
+            counts.declare(len);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            super.setHeader(name, value);
+            declareIfContentLength(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            super.addHeader(name, value);
+            declareIfContentLength(name, value);
+        }
+
+        private void declareIfContentLength(String name, String value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) && value != null) {
+                try {
+                    counts.declare(Long.parseLong(value.trim()));
+                } catch (NumberFormatException e) {
+                    // Not a length the container will send either
+                }
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends ServletInputStream {
+        private final ServletInputStream in;
+        private final LongAdder count;
+
+        CountingInputStream(ServletInputStream in, LongAdder count) {
+            this.in = in;
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count.add(skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            in.setReadListener(listener);
+        }
+    }
+
+    private static final class CountingOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+        private final LongAdder count;
+
+        CountingOutputStream(ServletOutputStream out, LongAdder count) {
+            this.out = out;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.add(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            out.setWriteListener(listener);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.cloudbox.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts API operations per user as {@code cloudbox.user.operations}, tagged
+ * with the user and the controller method. Endpoint latency itself comes
+ * from Spring's {@code http.server.requests}.
+ *
+ * Every user is a new time series, so only the first
+ * {@code cloudbox.metrics.max-tagged-users} users seen get their own tag;
+ * the rest are counted together as "other".
+ */
+@Component
+public class UserOperationMetrics implements HandlerInterceptor {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${cloudbox.metrics.max-tagged-users:1000}")
+    private int maxTaggedUsers;
+
+    private final Set<String> taggedUsers = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String userId = request.getParameter("userId");
+        // Async requests come through again when they complete; count them once
+        if (userId == null || request.getDispatcherType() != DispatcherType.REQUEST
+                || !(handler instanceof HandlerMethod method)) {
+            return true;
+        }
+        Counter.builder("cloudbox.user.operations")
+                .description("API operations per user")
+                .tag("user", userTag(userId))
+                .tag("operation", method.getMethod().getName())
+                .register(registry)
+                .increment();
+        return true;
+    }
+
+    private String userTag(String userId) {
+        if (taggedUsers.size() < maxTaggedUsers) {
+            taggedUsers.add(userId);
+        }
+        return taggedUsers.contains(userId) ? userId : "other";
+    }
+}
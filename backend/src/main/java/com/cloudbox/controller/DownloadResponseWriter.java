@@ -0,0 +1,282 @@
+package com.cloudbox.controller;
+
+import com.cloudbox.service.DownloadCache;
+import com.cloudbox.service.FileService;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes file downloads with HTTP caching and range semantics:
+ * If-None-Match/If-Modified-Since answer 304, Range (honouring If-Range)
+ * answers 206 with one or several byte ranges, and each range is read either
+ * from a local file (the download cache, or the object itself with local
+ * storage) or with ranged GetObjects, so only the requested bytes leave S3.
+ * A range request never waits for the cache to be filled; a miss is filled
+ * in the background.
+ */
+@Component
+public class DownloadResponseWriter {
+
+    // More ranges than this in one request is almost certainly abuse
+    private static final int MAX_RANGES = 16;
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    @Autowired
+    private FileService fileService;
+
+    public void write(String s3Key, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        HeadObjectResponse head = fileService.getObjectMetadata(s3Key);
+        long length = head.contentLength();
+        String etag = head.eTag();
+        long lastModified = head.lastModified() != null ? head.lastModified().toEpochMilli() : -1;
+
+        // Sets ETag/Last-Modified and answers 304 (or 412) when appropriate
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return;
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment");
+        String contentType = head.contentType() != null ? head.contentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+
+        String codec = fileService.getStorageCodec(head);
+        if (codec != null) {
+            writeEncoded(s3Key, head, codec, contentType, request, response);
+            return;
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        List<long[]> ranges = requestedRanges(request, etag, lastModified, length);
+        if (ranges != null && ranges.isEmpty()) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        // A range is served from the cache only if the object is already
+        // there; otherwise just the requested bytes are read from S3, rather
+        // than the whole object before the first byte can be sent.
+        CachedFile cached = openCached(ranges == null
+                ? fileService.getCachedDownload(s3Key, head)
+                : fileService.peekCachedDownload(s3Key, head));
+        try {
+            if (ranges == null) {
+                response.setContentType(contentType);
+                response.setContentLengthLong(length);
+                copy(s3Key, etag, cached, 0, length - 1, response);
+            } else if (ranges.size() == 1) {
+                long start = ranges.get(0)[0];
+                long end = ranges.get(0)[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType(contentType);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                response.setContentLengthLong(end - start + 1);
+                copy(s3Key, etag, cached, start, end, response);
+            } else {
+                writeMultipartRanges(s3Key, etag, cached, contentType, length, ranges, response);
+            }
+        } finally {
+            if (cached != null) {
+                cached.channel().close();
+            }
+        }
+    }
+
+    /**
+     * Writes an object stored compressed: as stored, with Content-Encoding,
+     * when the client accepts the codec, and decompressed on the fly
+     * otherwise. Ranges are not offered for these, since an offset into the
+     * original bytes can only be reached by decompressing everything before it.
+     */
+    private void writeEncoded(String s3Key, HeadObjectResponse head, String codec, String contentType,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        response.setContentType(contentType);
+
+        long storedLength = head.contentLength();
+        CachedFile cached = openCached(fileService.getCachedDownload(s3Key, head));
+        try {
+            if (acceptsEncoding(request, codec)) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, codec);
+                response.setContentLengthLong(storedLength);
+                copy(s3Key, head.eTag(), cached, 0, storedLength - 1, response);
+                return;
+            }
+
+            response.setContentLengthLong(fileService.getOriginalLength(head));
+            InputStream stored = cached != null
+                    ? Channels.newInputStream(cached.channel())
+                    : fileService.downloadRange(s3Key, 0, storedLength - 1, head.eTag());
+            try (InputStream in = fileService.decode(head, stored)) {
+                in.transferTo(response.getOutputStream());
+            }
+        } finally {
+            if (cached != null) {
+                cached.channel().close();
+            }
+        }
+    }
+
+    private static boolean acceptsEncoding(HttpServletRequest request, String codec) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(codec)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the satisfiable ranges requested, null to send the whole object
+     * (no Range header, a stale If-Range, or a malformed header), or an empty
+     * list when nothing requested is satisfiable.
+     */
+    private List<long[]> requestedRanges(HttpServletRequest request, String etag, long lastModified, long length) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !ifRangeMatches(request, etag, lastModified)) {
+            return null;
+        }
+
+        List<HttpRange> httpRanges;
+        try {
+            httpRanges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (httpRanges.isEmpty() || httpRanges.size() > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>(httpRanges.size());
+        for (HttpRange httpRange : httpRanges) {
+            try {
+                long start = httpRange.getRangeStart(length);
+                long end = httpRange.getRangeEnd(length);
+                if (start <= end) {
+                    ranges.add(new long[] {start, end});
+                }
+            } catch (IllegalArgumentException e) {
+                // Unsatisfiable range, e.g. starting past the end; skip it
+            }
+        }
+        return ranges;
+    }
+
+    private boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires a strong comparison
+            return !ifRange.startsWith("W/") && ifRange.equals(etag);
+        }
+        try {
+            return lastModified >= 0 && request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeMultipartRanges(String s3Key, String etag, CachedFile cached, String contentType,
+                                      long length, List<long[]> ranges,
+                                      HttpServletResponse response) throws IOException {
+        String boundary = new String(MimeTypeUtils.generateMultipartBoundary(), StandardCharsets.US_ASCII);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+
+        ServletOutputStream out = response.getOutputStream();
+        for (long[] range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+            out.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+            copyBody(s3Key, etag, cached, range[0], range[1], out);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void copy(String s3Key, String etag, CachedFile cached, long start, long end,
+                      HttpServletResponse response) throws IOException {
+        if (end < start) {
+            return;
+        }
+        copyBody(s3Key, etag, cached, start, end, response.getOutputStream());
+    }
+
+    private void copyBody(String s3Key, String etag, CachedFile cached, long start, long end,
+                          ServletOutputStream out) throws IOException {
+        if (cached != null) {
+            // Always through the channel opened up front, never by name: the
+            // cache may evict and delete the file while the response is
+            // written, and an open channel keeps reading the old inode. The
+            // servlet stream is not a channel, so this is a buffered copy.
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+            long position = start;
+            while (position <= end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position + 1));
+                int n = cached.channel().read(buffer, position);
+                if (n <= 0) {
+                    // The file is shorter than the length it was served with
+                    throw new EOFException("Local copy of " + s3Key + " ended before byte " + end);
+                }
+                out.write(buffer.array(), 0, n);
+                position += n;
+            }
+            return;
+        }
+        fileService.writeRange(s3Key, start, end, etag, out);
+    }
+
+    private CachedFile openCached(DownloadCache.CachedObject cached) throws IOException {
+        if (cached == null) {
+            return null;
+        }
+        try {
+            return new CachedFile(FileChannel.open(cached.path(), StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            // Evicted between lookup and open; fall back to S3
+            return null;
+        }
+    }
+
+    private record CachedFile(FileChannel channel) {
+    }
+}
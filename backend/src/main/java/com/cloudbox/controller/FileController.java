@@ -1,31 +1,75 @@
 package com.cloudbox.controller;
 
 
+import com.cloudbox.config.BandwidthMetered;
+import com.cloudbox.config.BulkOperation;
+import com.cloudbox.service.DeltaSyncService;
+import com.cloudbox.service.FileSearchIndex;
 import com.cloudbox.service.FileService;
+import com.cloudbox.service.FolderDeletionService;
+import com.cloudbox.service.FolderListing;
+import com.cloudbox.service.MetadataStore;
+import com.cloudbox.service.MoveService;
+import com.cloudbox.service.PresignedTransferService;
+import com.cloudbox.service.ResumableUploadService;
+import com.cloudbox.service.S3Service;
+import com.cloudbox.service.ThumbnailService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @RequestMapping("/api/files")
 @CrossOrigin(origins = "http://localhost:3000")
 public class FileController {
+
+    private static final Logger log = LoggerFactory.getLogger(FileController.class);
+    
+    private static final int MAX_LIST_PAGE_SIZE = 5000;
+    
+    // How long a thumbnail request waits for on-demand generation
+    private static final long THUMBNAIL_WAIT_MS = 5000;
     
     @Autowired
     private FileService fileService;
     
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private DownloadResponseWriter downloadResponseWriter;
+    
     @PostMapping("/upload")
+    @BulkOperation
+    @BandwidthMetered
     public ResponseEntity<?> uploadFiles(
             @RequestParam("files") MultipartFile[] files,
             @RequestParam("userId") String userId,
@@ -45,25 +89,84 @@ public class FileController {
                 return ResponseEntity.badRequest().body(errorResponse);
             }
             
-            Map<String, Object> response = new HashMap<>();
+            List<FileService.UploadResult> results = fileService.uploadFiles(files, userId, folderPath);
             
-            for (MultipartFile file : files) {
-                String s3Key = fileService.uploadFile(file, userId, folderPath);
-                
+            List<Map<String, Object>> fileInfos = new ArrayList<>(results.size());
+            int failed = 0;
+            for (FileService.UploadResult result : results) {
                 Map<String, Object> fileInfo = new HashMap<>();
-                fileInfo.put("name", file.getOriginalFilename());
-                fileInfo.put("size", formatFileSize(file.getSize()));
+                fileInfo.put("name", result.name());
+                fileInfo.put("sizeBytes", result.sizeBytes());
                 fileInfo.put("type", "file");
-                fileInfo.put("key", s3Key);
-                
-                response.put("success", true);
-                response.put("file", fileInfo);
+                fileInfo.put("key", result.key());
+                fileInfo.put("durationMs", result.durationMs());
+                fileInfo.put("success", result.success());
+                if (!result.success()) {
+                    fileInfo.put("error", result.error());
+                    failed++;
+                }
+                fileInfos.add(fileInfo);
+            }
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", failed == 0);
+            response.put("files", fileInfos);
+            response.put("uploaded", results.size() - failed);
+            response.put("failed", failed);
+            
+            return ResponseEntity.ok(response);
+            
+        } catch (Exception e) {
+            log.warn("Failed to upload file", e);
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", "Failed to upload file: " + e.getMessage());
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+    
+    @PutMapping("/upload/stream")
+    @BulkOperation
+    @BandwidthMetered
+    public ResponseEntity<?> uploadStream(
+            @RequestParam("userId") String userId,
+            @RequestParam("fileName") String fileName,
+            @RequestParam(value = "folderPath", required = false) String folderPath,
+            HttpServletRequest request) {
+        
+        try {
+            // A declared length is refused up front; chunked bodies are cut
+            // off while streaming once they pass the remaining quota.
+            long declaredSize = request.getContentLengthLong();
+            if (declaredSize > 0 && !fileService.canUpload(userId, declaredSize)) {
+                Map<String, Object> errorResponse = new HashMap<>();
+                errorResponse.put("success", false);
+                errorResponse.put("error", "Storage limit exceeded. Maximum 1GB allowed.");
+                return ResponseEntity.badRequest().body(errorResponse);
             }
             
+            S3Service.StreamUploadResult result = fileService.uploadStream(
+                    request.getInputStream(), fileName, request.getContentType(), declaredSize, userId, folderPath);
+            
+            Map<String, Object> fileInfo = new HashMap<>();
+            fileInfo.put("name", fileName);
+            fileInfo.put("sizeBytes", result.size());
+            fileInfo.put("type", "file");
+            fileInfo.put("key", result.key());
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("file", fileInfo);
+            
             return ResponseEntity.ok(response);
             
+        } catch (FileService.StorageLimitExceededException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(errorResponse);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Failed to upload file", e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
             errorResponse.put("error", "Failed to upload file: " + e.getMessage());
@@ -71,15 +174,361 @@ public class FileController {
         }
     }
     
+    /**
+     * Delta sync, step 1: the client posts the chunk list of the file it is
+     * about to upload and gets back the hashes the server does not have.
+     */
+    @PostMapping("/upload/delta/negotiate")
+    public CompletableFuture<ResponseEntity<?>> negotiateDeltaUpload(
+            @RequestParam("userId") String userId,
+            @RequestBody DeltaSyncService.ChunkManifest manifest) {
+        
+        try {
+            return fileService.findMissingChunks(userId, manifest).<ResponseEntity<?>>thenApply(missing -> {
+                Map<String, Object> response = new HashMap<>();
+                response.put("success", true);
+                response.put("missing", missing);
+                response.put("chunks", manifest.chunks().size());
+                return ResponseEntity.ok(response);
+            }).exceptionally(e -> errorResponse("Failed to negotiate upload", e));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(errorResponse("Failed to negotiate upload", e));
+        }
+    }
+    
+    /**
+     * Delta sync, step 2: uploads one missing chunk as the raw request body.
+     * The chunk counts against the user's quota until it is committed.
+     */
+    @PutMapping("/upload/delta/chunks/{hash}")
+    @BulkOperation
+    @BandwidthMetered
+    public ResponseEntity<?> uploadDeltaChunk(@PathVariable("hash") String hash,
+                                              @RequestParam("userId") String userId,
+                                              HttpServletRequest request) {
+        try {
+            fileService.storeChunk(userId, hash, request.getInputStream());
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("hash", hash);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to upload chunk", e);
+        }
+    }
+    
+    /**
+     * Delta sync, step 3: assembles the file from its chunks once every
+     * missing chunk has been uploaded.
+     */
+    @PostMapping("/upload/delta/commit")
+    @BulkOperation
+    public ResponseEntity<?> commitDeltaUpload(
+            @RequestParam("userId") String userId,
+            @RequestParam("fileName") String fileName,
+            @RequestParam(value = "folderPath", required = false) String folderPath,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            @RequestBody DeltaSyncService.ChunkManifest manifest) {
+        
+        try {
+            if (manifest.chunks() != null && !fileService.canUpload(userId, manifest.totalSize())) {
+                Map<String, Object> errorResponse = new HashMap<>();
+                errorResponse.put("success", false);
+                errorResponse.put("error", "Storage limit exceeded. Maximum 1GB allowed.");
+                return ResponseEntity.badRequest().body(errorResponse);
+            }
+            
+            S3Service.StreamUploadResult result = fileService.commitDeltaUpload(
+                    manifest, fileName, contentType, userId, folderPath);
+            
+            Map<String, Object> fileInfo = new HashMap<>();
+            fileInfo.put("name", fileName);
+            fileInfo.put("sizeBytes", result.size());
+            fileInfo.put("type", "file");
+            fileInfo.put("key", result.key());
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("file", fileInfo);
+            
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to commit upload", e);
+        }
+    }
+    
+    /**
+     * Starts a resumable upload of {@code length} bytes. Data is then sent
+     * with PATCH requests carrying an {@code Upload-Offset} header, and the
+     * current offset can be fetched at any time to resume after a failure.
+     */
+    @PostMapping("/uploads")
+    public ResponseEntity<?> createUploadSession(
+            @RequestParam("userId") String userId,
+            @RequestParam("fileName") String fileName,
+            @RequestParam("length") long length,
+            @RequestParam(value = "folderPath", required = false) String folderPath,
+            @RequestParam(value = "contentType", required = false) String contentType) {
+        
+        try {
+            if (!fileService.canUpload(userId, length)) {
+                Map<String, Object> errorResponse = new HashMap<>();
+                errorResponse.put("success", false);
+                errorResponse.put("error", "Storage limit exceeded. Maximum 1GB allowed.");
+                return ResponseEntity.badRequest().body(errorResponse);
+            }
+            
+            ResumableUploadService.UploadSession session =
+                    fileService.createUploadSession(userId, fileName, folderPath, contentType, length);
+            
+            Map<String, Object> response = uploadSessionResponse(session, 0);
+            response.put("success", true);
+            return ResponseEntity.ok()
+                    .header("Upload-Offset", "0")
+                    .body(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to create upload", e);
+        }
+    }
+    
+    @GetMapping("/uploads")
+    public ResponseEntity<?> getUploadSessions(@RequestParam("userId") String userId) {
+        try {
+            List<Map<String, Object>> uploads = new ArrayList<>();
+            for (ResumableUploadService.UploadSession session : fileService.getUploadSessions(userId)) {
+                uploads.add(uploadSessionResponse(session, fileService.getUploadOffset(session)));
+            }
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("uploads", uploads);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to get uploads", e);
+        }
+    }
+    
+    @RequestMapping(value = "/uploads/{sessionId}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public ResponseEntity<?> getUploadSession(
+            @PathVariable("sessionId") String sessionId,
+            @RequestParam("userId") String userId) {
+        
+        try {
+            ResumableUploadService.UploadSession session = fileService.getUploadSession(sessionId, userId);
+            long offset = fileService.getUploadOffset(session);
+            
+            Map<String, Object> response = uploadSessionResponse(session, offset);
+            response.put("success", true);
+            return ResponseEntity.ok()
+                    .header("Upload-Offset", Long.toString(offset))
+                    .header("Upload-Length", Long.toString(session.length()))
+                    .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                    .body(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to get upload", e);
+        }
+    }
+    
+    @PatchMapping("/uploads/{sessionId}")
+    @BulkOperation
+    @BandwidthMetered
+    public ResponseEntity<?> appendToUpload(
+            @PathVariable("sessionId") String sessionId,
+            @RequestParam("userId") String userId,
+            @RequestHeader("Upload-Offset") long offset,
+            HttpServletRequest request) {
+        
+        try {
+            long newOffset = fileService.appendToUpload(sessionId, userId, offset, request.getInputStream());
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("offset", newOffset);
+            return ResponseEntity.ok()
+                    .header("Upload-Offset", Long.toString(newOffset))
+                    .body(response);
+        } catch (ResumableUploadService.OffsetMismatchException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            errorResponse.put("offset", e.getCurrentOffset());
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header("Upload-Offset", Long.toString(e.getCurrentOffset()))
+                    .body(errorResponse);
+        } catch (IllegalStateException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.LOCKED).body(errorResponse);
+        } catch (Exception e) {
+            return errorResponse("Failed to append to upload", e);
+        }
+    }
+    
+    @PostMapping("/uploads/{sessionId}/complete")
+    public ResponseEntity<?> completeUpload(
+            @PathVariable("sessionId") String sessionId,
+            @RequestParam("userId") String userId) {
+        
+        try {
+            ResumableUploadService.UploadSession session = fileService.completeUpload(sessionId, userId);
+            
+            Map<String, Object> fileInfo = new HashMap<>();
+            fileInfo.put("name", session.fileName());
+            fileInfo.put("sizeBytes", session.length());
+            fileInfo.put("type", "file");
+            fileInfo.put("key", session.s3Key());
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("file", fileInfo);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to complete upload", e);
+        }
+    }
+    
+    @DeleteMapping("/uploads/{sessionId}")
+    public ResponseEntity<?> cancelUpload(
+            @PathVariable("sessionId") String sessionId,
+            @RequestParam("userId") String userId) {
+        
+        try {
+            fileService.cancelUpload(sessionId, userId);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("message", "Upload cancelled");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to cancel upload", e);
+        }
+    }
+    
+    /**
+     * Direct upload, step 1: authorizes an upload of {@code size} bytes and
+     * returns presigned URLs to PUT it to S3 directly, either one URL or one
+     * per {@code partSize} part.
+     */
+    @PostMapping("/direct/uploads")
+    public ResponseEntity<?> authorizeDirectUpload(
+            @RequestParam("userId") String userId,
+            @RequestParam("fileName") String fileName,
+            @RequestParam("size") long size,
+            @RequestParam(value = "folderPath", required = false) String folderPath,
+            @RequestParam(value = "contentType", required = false) String contentType) {
+        
+        try {
+            if (!fileService.canUpload(userId, size)) {
+                Map<String, Object> errorResponse = new HashMap<>();
+                errorResponse.put("success", false);
+                errorResponse.put("error", "Storage limit exceeded. Maximum 1GB allowed.");
+                return ResponseEntity.badRequest().body(errorResponse);
+            }
+            
+            PresignedTransferService.AuthorizedUpload upload =
+                    fileService.authorizeDirectUpload(userId, fileName, folderPath, contentType, size);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("key", upload.s3Key());
+            response.put("multipart", upload.uploadId() != null);
+            response.put("partSize", upload.partSize());
+            response.put("urls", upload.partUrls());
+            response.put("expiresAt", upload.expiresAt().toString());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to authorize upload", e);
+        }
+    }
+    
+    /**
+     * Direct upload, step 2: confirms the upload once every part has been
+     * sent. The server looks up the parts itself, so clients do not need to
+     * read ETags from S3's responses.
+     */
+    @PostMapping("/direct/uploads/complete")
+    public ResponseEntity<?> completeDirectUpload(
+            @RequestParam("userId") String userId,
+            @RequestParam("s3Key") String s3Key) {
+        
+        try {
+            PresignedTransferService.AuthorizedUpload upload = fileService.completeDirectUpload(userId, s3Key);
+            
+            Map<String, Object> fileInfo = new HashMap<>();
+            fileInfo.put("id", S3Service.stableId(upload.s3Key()));
+            fileInfo.put("key", upload.s3Key());
+            fileInfo.put("sizeBytes", upload.size());
+            fileInfo.put("type", "file");
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("file", fileInfo);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to complete upload", e);
+        }
+    }
+    
+    @DeleteMapping("/direct/uploads")
+    public ResponseEntity<?> cancelDirectUpload(
+            @RequestParam("userId") String userId,
+            @RequestParam("s3Key") String s3Key) {
+        
+        try {
+            fileService.cancelDirectUpload(userId, s3Key);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("message", "Upload cancelled");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to cancel upload", e);
+        }
+    }
+    
+    /**
+     * Returns a short-lived URL that downloads the file straight from S3.
+     */
+    @GetMapping("/direct/download")
+    public ResponseEntity<?> authorizeDirectDownload(
+            @RequestParam("userId") String userId,
+            @RequestParam("s3Key") String s3Key) {
+        
+        try {
+            PresignedTransferService.PresignedDownload download = fileService.authorizeDirectDownload(userId, s3Key);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("url", download.url());
+            response.put("expiresAt", download.expiresAt().toString());
+            return ResponseEntity.ok()
+                    .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                    .body(response);
+        } catch (Exception e) {
+            return errorResponse("Failed to authorize download", e);
+        }
+    }
+    
+    private Map<String, Object> uploadSessionResponse(ResumableUploadService.UploadSession session, long offset) {
+        Map<String, Object> upload = new HashMap<>();
+        upload.put("sessionId", session.id());
+        upload.put("fileName", session.fileName());
+        upload.put("folderPath", session.folderPath());
+        upload.put("offset", offset);
+        upload.put("length", session.length());
+        upload.put("lastActivity", Instant.ofEpochMilli(session.updatedAt()).toString());
+        return upload;
+    }
+    
     @PostMapping("/folder")
-    public ResponseEntity<?> createFolder(
+    public CompletableFuture<ResponseEntity<?>> createFolder(
             @RequestParam("folderName") String folderName,
             @RequestParam("userId") String userId,
             @RequestParam(value = "parentFolderPath", required = false) String parentFolderPath) {
         
-        try {
-            fileService.createFolder(folderName, userId, parentFolderPath);
-            
+        return fileService.createFolder(folderName, userId, parentFolderPath).<ResponseEntity<?>>thenApply(done -> {
             String fullPath = parentFolderPath != null && !parentFolderPath.isEmpty() ? 
                              parentFolderPath + "/" + folderName : folderName;
             
@@ -94,131 +543,482 @@ public class FileController {
             
             return ResponseEntity.ok(response);
             
+        }).exceptionally(e -> errorResponse("Failed to create folder", e));
+    }
+    
+    @GetMapping("/list")
+    public CompletableFuture<ResponseEntity<?>> listFiles(
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "folderPath", required = false) String folderPath) {
+        
+        return fileService.listFiles(userId, folderPath).<ResponseEntity<?>>thenApply(result ->
+                ResponseEntity.ok(new ListingResponse(true, result.files(), result.folders()))
+        ).exceptionally(e -> errorResponse("Failed to list files", e));
+    }
+    
+    /**
+     * Cursor-paginated listing. Entries are written to the response as each
+     * S3 page is read, either as one JSON document or, with
+     * {@code format=ndjson}, as one JSON object per line followed by a final
+     * cursor line. Pass the returned {@code nextCursor} back to continue.
+     */
+    @GetMapping("/list/page")
+    public ResponseEntity<StreamingResponseBody> listFilesPage(
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "folderPath", required = false) String folderPath,
+            @RequestParam(value = "pageSize", defaultValue = "200") int pageSize,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "format", defaultValue = "json") String format) {
+        
+        if (pageSize < 1 || pageSize > MAX_LIST_PAGE_SIZE) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", "pageSize must be between 1 and " + MAX_LIST_PAGE_SIZE);
+            return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, errorResponse));
+        }
+        
+        FolderListing listing;
+        try {
+            listing = fileService.openListing(userId, folderPath, pageSize, cursor);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Failed to list files", e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
-            errorResponse.put("error", "Failed to create folder: " + e.getMessage());
-            return ResponseEntity.badRequest().body(errorResponse);
+            errorResponse.put("error", "Failed to list files: " + e.getMessage());
+            return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, errorResponse));
         }
+        
+        boolean ndjson = "ndjson".equalsIgnoreCase(format);
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+                if (ndjson) {
+                    json.setRootValueSeparator(new SerializedString("\n"));
+                } else {
+                    json.writeStartObject();
+                    json.writeBooleanField("success", true);
+                    json.writeArrayFieldStart("items");
+                }
+                
+                String nextCursor = listing.writeTo(new FolderListing.Sink() {
+                    @Override
+                    public void file(String key, String name, long sizeBytes, Instant modified) throws IOException {
+                        json.writeStartObject();
+                        json.writeNumberField("id", S3Service.stableId(key));
+                        json.writeStringField("name", name);
+                        json.writeStringField("type", "file");
+                        json.writeStringField("key", key);
+                        json.writeNumberField("sizeBytes", sizeBytes);
+                        json.writeStringField("modified", modified.toString());
+                        json.writeEndObject();
+                    }
+                    
+                    @Override
+                    public void folder(String name, String fullPath) throws IOException {
+                        json.writeStartObject();
+                        json.writeNumberField("id", S3Service.stableId(userId + "/" + fullPath + "/"));
+                        json.writeStringField("name", name);
+                        json.writeStringField("type", "folder");
+                        json.writeStringField("fullPath", fullPath);
+                        json.writeEndObject();
+                    }
+                });
+                
+                if (ndjson) {
+                    json.writeStartObject();
+                    json.writeStringField("type", "cursor");
+                    json.writeStringField("nextCursor", nextCursor);
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                } else {
+                    json.writeEndArray();
+                    json.writeStringField("nextCursor", nextCursor);
+                    json.writeEndObject();
+                }
+            }
+        };
+        
+        return ResponseEntity.ok()
+                .contentType(ndjson ? MediaType.parseMediaType("application/x-ndjson") : MediaType.APPLICATION_JSON)
+                .body(body);
     }
     
-    @GetMapping("/list")
-    public ResponseEntity<?> listFiles(
+    /**
+     * Searches file names across the user's whole drive, answered from the
+     * local index. Results are ranked by how well the name matches, then by
+     * recency; {@code categories} counts every match per file category so
+     * the client can offer facet filters.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<?> searchFiles(
             @RequestParam("userId") String userId,
-            @RequestParam(value = "folderPath", required = false) String folderPath) {
+            @RequestParam(value = "q", required = false) String q,
+            @RequestParam(value = "category", required = false) String category,
+            @RequestParam(value = "minSize", required = false) Long minSize,
+            @RequestParam(value = "maxSize", required = false) Long maxSize,
+            @RequestParam(value = "modifiedAfter", required = false) Instant modifiedAfter,
+            @RequestParam(value = "modifiedBefore", required = false) Instant modifiedBefore,
+            @RequestParam(value = "offset", defaultValue = "0") int offset,
+            @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        
+        if (offset < 0 || limit < 1 || limit > MAX_LIST_PAGE_SIZE) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", "limit must be between 1 and " + MAX_LIST_PAGE_SIZE + " and offset not negative");
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
         
         try {
-            System.out.println("Controller: Listing files for userId: " + userId + ", folderPath: " + folderPath);
-            Map<String, Object> result = fileService.listFiles(userId, folderPath);
-            System.out.println("Controller: Files found: " + ((List<?>) result.get("files")).size());
-            System.out.println("Controller: Folders found: " + ((List<?>) result.get("folders")).size());
+            FileSearchIndex.SearchResult result = fileService.searchFiles(userId, new FileSearchIndex.SearchQuery(
+                    q, category, minSize, maxSize,
+                    modifiedAfter != null ? modifiedAfter.toEpochMilli() : null,
+                    modifiedBefore != null ? modifiedBefore.toEpochMilli() : null,
+                    offset, limit));
+            
+            List<Map<String, Object>> files = new ArrayList<>(result.hits().size());
+            for (FileSearchIndex.Hit hit : result.hits()) {
+                Map<String, Object> fileInfo = new HashMap<>();
+                fileInfo.put("id", hit.node().id());
+                fileInfo.put("name", hit.name());
+                fileInfo.put("sizeBytes", hit.node().size());
+                fileInfo.put("modified", Instant.ofEpochMilli(hit.node().modifiedAt()).toString());
+                fileInfo.put("type", "file");
+                fileInfo.put("category", hit.category());
+                fileInfo.put("key", hit.node().key());
+                fileInfo.put("folderPath", folderPathOf(hit.node()));
+                files.add(fileInfo);
+            }
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
-            response.put("files", result.get("files"));
-            response.put("folders", result.get("folders"));
-            
+            response.put("files", files);
+            response.put("total", result.total());
+            response.put("offset", offset);
+            response.put("limit", limit);
+            response.put("categories", result.categories());
             return ResponseEntity.ok(response);
             
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Failed to search files", e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
-            errorResponse.put("error", "Failed to list files: " + e.getMessage());
+            errorResponse.put("error", "Failed to search files: " + e.getMessage());
             return ResponseEntity.badRequest().body(errorResponse);
         }
     }
     
+    private static String folderPathOf(MetadataStore.Node node) {
+        String path = node.path();
+        int slash = path.lastIndexOf('/');
+        return slash >= 0 ? path.substring(0, slash) : "";
+    }
+    
     @GetMapping("/download")
-    public ResponseEntity<Resource> downloadFile(
+    @BandwidthMetered
+    public void downloadFile(
             @RequestParam("s3Key") String s3Key,
-            @RequestParam("userId") String userId) {
+            @RequestParam("userId") String userId,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         
         try {
-            ResponseInputStream<GetObjectResponse> s3Object = fileService.downloadFile(s3Key);
-            if (s3Object == null) {
-                return ResponseEntity.notFound().build();
+            downloadResponseWriter.write(s3Key, request, response);
+        } catch (NoSuchKeyException e) {
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to download {}", s3Key, e);
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+    }
+    
+    /**
+     * Serves a JPEG thumbnail ({@code small}, {@code medium} or {@code large})
+     * of an image. Thumbnails never change for a given key, so they are
+     * cached by the browser indefinitely. If one is not ready yet the answer
+     * is 202 with Retry-After.
+     */
+    @GetMapping("/thumbnail")
+    public void getThumbnail(
+            @RequestParam("s3Key") String s3Key,
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "size", defaultValue = "medium") String size,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        if (!ThumbnailService.isSupportedSize(size)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown thumbnail size: " + size);
+            return;
+        }
+        if (!s3Key.startsWith(userId + "/")) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        try {
+            ResponseInputStream<GetObjectResponse> thumbnail = fileService.openThumbnail(s3Key, size, THUMBNAIL_WAIT_MS);
+            if (thumbnail == null) {
+                if (fileService.hasThumbnails(s3Key)) {
+                    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                } else {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                }
+                return;
             }
             
-            InputStreamResource resource = new InputStreamResource(s3Object);
-            
-            return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment")
-                .body(resource);
-            
+            try (thumbnail) {
+                if (new ServletWebRequest(request, response).checkNotModified(thumbnail.response().eTag())) {
+                    thumbnail.abort();
+                    return;
+                }
+                response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+                response.setHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable");
+                response.setContentLengthLong(thumbnail.response().contentLength());
+                thumbnail.transferTo(response.getOutputStream());
+            }
+        } catch (NoSuchKeyException e) {
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to serve thumbnail of {}", s3Key, e);
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+    }
+    
+    /**
+     * Downloads a whole folder as a zip streamed straight to the response.
+     * Written on the request thread rather than as a StreamingResponseBody so
+     * large folders are not cut off by the async request timeout.
+     */
+    @GetMapping("/download/folder")
+    @BulkOperation
+    @BandwidthMetered
+    public void downloadFolder(
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "folderPath", required = false) String folderPath,
+            HttpServletResponse response) throws IOException {
+        
+        String folderName = folderPath != null && !folderPath.isEmpty()
+                ? folderPath.substring(folderPath.lastIndexOf('/') + 1) : "files";
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(folderName + ".zip", StandardCharsets.UTF_8)
+                .build()
+                .toString());
+        
+        try {
+            fileService.writeFolderArchive(userId, folderPath, response.getOutputStream());
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.badRequest().build();
+            log.warn("Failed to archive folder {} for user {}", folderPath, userId, e);
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            }
+            // Otherwise the truncated zip fails to open, which is the best
+            // signal left once headers are sent
         }
     }
     
     @DeleteMapping("/folder")
+    @BulkOperation
     public ResponseEntity<?> deleteFolder(
             @RequestParam("userId") String userId,
             @RequestParam("folderPath") String folderPath) {
         
-        System.out.println("Controller: Delete folder request - folderPath: '" + folderPath + "', userId: '" + userId + "'");
-        System.out.println("Controller: Folder path length: " + folderPath.length());
-        System.out.println("Controller: Folder path bytes: " + java.util.Arrays.toString(folderPath.getBytes()));
+        log.debug("Delete folder request for '{}' from user {}", folderPath, userId);
         
         try {
-            fileService.deleteFolderByPath(userId, folderPath);
+            FolderDeletionService.DeletionResult result = fileService.deleteFolderByPath(userId, folderPath);
+            if (!result.complete()) {
+                log.warn("Folder deletion of '{}' incomplete: {} objects failed", folderPath, result.failed());
+                return ResponseEntity.badRequest().body(partialDeletionResponse(result, "Failed to delete folder"));
+            }
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("message", "Folder deleted successfully");
+            response.put("deleted", result.deleted());
             
-            System.out.println("Controller: Folder deletion successful");
             return ResponseEntity.ok(response);
             
+        } catch (IllegalStateException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(errorResponse);
         } catch (Exception e) {
-            System.err.println("Controller: Folder deletion failed - " + e.getMessage());
-            e.printStackTrace();
+            log.warn("Failed to delete folder '{}' for user {}", folderPath, userId, e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
             errorResponse.put("error", "Failed to delete folder: " + e.getMessage());
             return ResponseEntity.badRequest().body(errorResponse);
         }
     }
-    
-    @DeleteMapping("/file")
-    public ResponseEntity<?> deleteFile(
-            @RequestParam("s3Key") String s3Key,
+
+    @DeleteMapping("/folder/{folderId}")
+    @BulkOperation
+    public ResponseEntity<?> deleteFolderById(
+            @PathVariable("folderId") Long folderId,
             @RequestParam("userId") String userId) {
+        try {
+            FolderDeletionService.DeletionResult result = fileService.deleteFolder(folderId, userId);
+            if (!result.complete()) {
+                return ResponseEntity.badRequest().body(partialDeletionResponse(result, "Failed to delete folder"));
+            }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("message", "Folder deleted successfully");
+            response.put("deleted", result.deleted());
+            return ResponseEntity.ok(response);
+
+        } catch (IllegalStateException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(errorResponse);
+        } catch (Exception e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", "Failed to delete folder: " + e.getMessage());
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+
+    /**
+     * Moves and/or renames a file. Omitting {@code targetFolderPath} keeps
+     * the file in its folder; omitting {@code newName} keeps its name.
+     */
+    @PostMapping("/move")
+    public ResponseEntity<?> moveFile(
+            @RequestParam("userId") String userId,
+            @RequestParam("s3Key") String s3Key,
+            @RequestParam(value = "targetFolderPath", required = false) String targetFolderPath,
+            @RequestParam(value = "newName", required = false) String newName) {
         
         try {
-            fileService.deleteFile(s3Key);
+            String newKey = fileService.moveFile(userId, s3Key, targetFolderPath, newName);
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
-            response.put("message", "File deleted successfully");
+            response.put("message", "File moved successfully");
+            response.put("key", newKey);
+            response.put("id", S3Service.stableId(newKey));
+            return ResponseEntity.ok(response);
+            
+        } catch (Exception e) {
+            log.warn("Failed to move file", e);
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", "Failed to move file: " + e.getMessage());
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+    
+    /**
+     * Moves a folder and everything in it to {@code targetPath}; renaming is
+     * a move to a sibling path. An incomplete move can be retried with the
+     * same arguments and continues where it stopped.
+     */
+    @PostMapping("/folder/move")
+    @BulkOperation
+    public ResponseEntity<?> moveFolder(
+            @RequestParam("userId") String userId,
+            @RequestParam("folderPath") String folderPath,
+            @RequestParam("targetPath") String targetPath) {
+        
+        try {
+            MoveService.MoveResult result = fileService.moveFolder(userId, folderPath, targetPath);
+            if (!result.complete()) {
+                Map<String, Object> errorResponse = new HashMap<>();
+                errorResponse.put("success", false);
+                errorResponse.put("error", "Failed to move folder: " + result.failed() + " objects could not be moved");
+                errorResponse.put("moved", result.moved());
+                errorResponse.put("failed", result.failed());
+                errorResponse.put("failures", result.failures());
+                return ResponseEntity.badRequest().body(errorResponse);
+            }
             
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("message", "Folder moved successfully");
+            response.put("moved", result.moved());
+            response.put("fullPath", targetPath);
             return ResponseEntity.ok(response);
             
+        } catch (IllegalStateException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(errorResponse);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Failed to move folder", e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
-            errorResponse.put("error", "Failed to delete file: " + e.getMessage());
+            errorResponse.put("error", "Failed to move folder: " + e.getMessage());
             return ResponseEntity.badRequest().body(errorResponse);
         }
     }
     
+    @DeleteMapping("/file")
+    public CompletableFuture<ResponseEntity<?>> deleteFile(
+            @RequestParam("s3Key") String s3Key,
+            @RequestParam("userId") String userId) {
+        
+        return fileService.deleteFile(s3Key).<ResponseEntity<?>>thenApply(done -> {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("message", "File deleted successfully");
+            
+            return ResponseEntity.ok(response);
+            
+        }).exceptionally(e -> errorResponse("Failed to delete file", e));
+    }
+    
+    private ResponseEntity<?> errorResponse(String message, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        log.warn(message, cause);
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("success", false);
+        errorResponse.put("error", message + ": " + cause.getMessage());
+        return ResponseEntity.badRequest().body(errorResponse);
+    }
+    
     @DeleteMapping("/clear-all")
+    @BulkOperation
     public ResponseEntity<?> clearAll(@RequestParam("userId") String userId) {
         try {
-            fileService.clearAll(userId);
+            FolderDeletionService.DeletionResult result = fileService.clearAll(userId);
+            if (!result.complete()) {
+                return ResponseEntity.badRequest().body(partialDeletionResponse(result, "Failed to clear all"));
+            }
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("message", "All files and folders cleared successfully");
+            response.put("deleted", result.deleted());
             
             return ResponseEntity.ok(response);
             
+        } catch (IllegalStateException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(errorResponse);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Failed to clear all", e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
             errorResponse.put("error", "Failed to clear all: " + e.getMessage());
@@ -226,6 +1026,50 @@ public class FileController {
         }
     }
     
+    @GetMapping("/deletions")
+    public ResponseEntity<?> getActiveDeletions(@RequestParam("userId") String userId) {
+        List<Map<String, Object>> deletions = new ArrayList<>();
+        for (FolderDeletionService.DeletionProgress progress : fileService.getActiveDeletions(userId)) {
+            Map<String, Object> deletion = new HashMap<>();
+            deletion.put("prefix", progress.getPrefix());
+            deletion.put("listed", progress.getListed());
+            deletion.put("deleted", progress.getDeleted());
+            deletion.put("failed", progress.getFailed());
+            deletions.add(deletion);
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("deletions", deletions);
+        return ResponseEntity.ok(response);
+    }
+    
+    private Map<String, Object> partialDeletionResponse(FolderDeletionService.DeletionResult result, String message) {
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("success", false);
+        errorResponse.put("error", result.error() != null
+                ? message + ": " + result.error()
+                : message + ": " + result.failed() + " objects could not be deleted");
+        errorResponse.put("deleted", result.deleted());
+        errorResponse.put("failed", result.failed());
+        errorResponse.put("failures", result.failures());
+        return errorResponse;
+    }
+    
+    @GetMapping("/list-cache/stats")
+    public ResponseEntity<?> getListingCacheStats() {
+        CacheStats stats = fileService.getListingCacheStats();
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("size", fileService.getListingCacheSize());
+        response.put("hits", stats.hitCount());
+        response.put("misses", stats.missCount());
+        response.put("evictions", stats.evictionCount());
+        response.put("hitRate", Math.round(stats.hitRate() * 1000.0) / 1000.0);
+        return ResponseEntity.ok(response);
+    }
+    
     @GetMapping("/storage-usage")
     public ResponseEntity<?> getStorageUsage(@RequestParam("userId") String userId) {
         try {
@@ -235,18 +1079,13 @@ public class FileController {
             double maxMB = maxBytes / (1024.0 * 1024.0);
             double percentage = (double) usedBytes / maxBytes * 100;
             
-            Map<String, Object> response = new HashMap<>();
-            response.put("success", true);
-            response.put("usedBytes", usedBytes);
-            response.put("maxBytes", maxBytes);
-            response.put("usedMB", Math.round(usedMB * 10.0) / 10.0);
-            response.put("maxMB", Math.round(maxMB));
-            response.put("percentage", Math.round(percentage * 10.0) / 10.0);
-            response.put("availableMB", Math.round((maxMB - usedMB) * 10.0) / 10.0);
-            
-            return ResponseEntity.ok(response);
+            return ResponseEntity.ok(new StorageUsageResponse(true, usedBytes, maxBytes,
+                    Math.round(usedMB * 10.0) / 10.0,
+                    Math.round(maxMB),
+                    Math.round(percentage * 10.0) / 10.0,
+                    Math.round((maxMB - usedMB) * 10.0) / 10.0));
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Failed to get storage usage", e);
             Map<String, Object> errorResponse = new HashMap<>();
             errorResponse.put("success", false);
             errorResponse.put("error", "Failed to get storage usage: " + e.getMessage());
@@ -254,9 +1093,15 @@ public class FileController {
         }
     }
     
-    private String formatFileSize(Long bytes) {
-        if (bytes < 1024) return bytes + " B";
-        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
-        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    /**
+     * Body of a folder listing. Written by Jackson straight from the cached
+     * entries, so a listing is not copied into maps for every request.
+     */
+    public record ListingResponse(boolean success, List<S3Service.FileEntry> files,
+                                  List<S3Service.FolderEntry> folders) {
+    }
+
+    public record StorageUsageResponse(boolean success, long usedBytes, long maxBytes, double usedMB,
+                                       long maxMB, double percentage, double availableMB) {
     }
 }
\ No newline at end of file
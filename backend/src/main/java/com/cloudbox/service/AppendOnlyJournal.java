@@ -0,0 +1,110 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * A local file of tab-separated records that is only ever appended to, used
+ * by the in-memory indexes that must survive restarts. Owners replay it on
+ * startup and then rewrite it with just their live state, so it does not grow
+ * without bound. Fields are URL-encoded, so they may contain any character.
+ */
+final class AppendOnlyJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(AppendOnlyJournal.class);
+
+    private final Path path;
+    private BufferedWriter writer;
+
+    AppendOnlyJournal(Path path) throws IOException {
+        this.path = path;
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+    }
+
+    /**
+     * Feeds every record to {@code apply} in write order. A record that
+     * {@code apply} rejects with IllegalArgumentException is skipped with a
+     * warning; in practice that is a torn final line from a crash mid-write.
+     */
+    void replay(Consumer<String[]> apply) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    String[] fields = line.split("\t", -1);
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = URLDecoder.decode(fields[i], StandardCharsets.UTF_8);
+                    }
+                    apply.accept(fields);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring malformed record in {}: {}", path.getFileName(), line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with {@code records} and reopens it for appends.
+     * The new contents are written to a temporary file and moved into place,
+     * so a crash leaves either the old journal or the new one.
+     */
+    void rewrite(Iterable<String[]> records) throws IOException {
+        close();
+        Path snapshot = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(snapshot, StandardCharsets.UTF_8)) {
+            for (String[] record : records) {
+                out.write(format(record));
+            }
+        }
+        Files.move(snapshot, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    void append(String... fields) {
+        try {
+            writer.write(format(fields));
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + path.getFileName(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private static String format(String[] fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            line.append(URLEncoder.encode(fields[i], StandardCharsets.UTF_8));
+        }
+        return line.append('\n').toString();
+    }
+}
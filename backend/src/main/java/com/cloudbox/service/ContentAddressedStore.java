@@ -0,0 +1,252 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional deduplicating storage mode. File contents are stored once under
+ * their SHA-256 digest, and the user-visible key becomes an empty reference
+ * object whose target and logical size live in the {@link ContentIndex}. A
+ * blob is deleted when the last reference to it goes away.
+ */
+@Service
+public class ContentAddressedStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentAddressedStore.class);
+
+    static final String BLOB_PREFIX = "_blobs/sha256/";
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private ContentIndex contentIndex;
+
+    @Autowired
+    private MultipartUploadService multipartUploadService;
+
+    @Autowired
+    private DownloadCache downloadCache;
+
+    @Autowired
+    @Qualifier("deleteExecutor")
+    private ExecutorService deleteExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.dedup.enabled:false}")
+    private boolean enabled;
+
+    // Serializes "add reference" against "drop last reference, delete blob"
+    // for the same digest. Held only for index updates and small requests,
+    // never for a blob upload.
+    private final ReentrantLock[] digestLocks = new ReentrantLock[64];
+
+    // Blob uploads in progress per digest; a blob with any is never deleted.
+    // Updated under the digest's lock.
+    private final Map<String, Integer> pendingUploads = new ConcurrentHashMap<>();
+
+    public ContentAddressedStore() {
+        for (int i = 0; i < digestLocks.length; i++) {
+            digestLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Stores {@code file} at {@code s3Key} as a reference to its content blob,
+     * uploading the blob only if no copy exists yet. Returns true when the
+     * upload was deduplicated.
+     */
+    public boolean store(String s3Key, MultipartFile file) throws IOException {
+        // Spring has already buffered the part locally, so hashing it first
+        // costs a local read rather than a network transfer
+        String digest = sha256(file);
+        String blobKey = BLOB_PREFIX + digest;
+
+        ReentrantLock lock = lockFor(digest);
+        lock.lock();
+        try {
+            if (contentIndex.refCount(digest) > 0 || exists(blobKey)) {
+                putReference(s3Key, digest, file);
+                return true;
+            }
+            pendingUploads.merge(digest, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+
+        // The blob upload can take minutes, so it runs without the lock and
+        // unrelated digests on the same stripe are not held up behind it.
+        // Concurrent uploads of one digest write identical bytes, and the
+        // pending count keeps release() from deleting the blob meanwhile.
+        boolean uploaded = false;
+        try {
+            try (InputStream in = file.getInputStream()) {
+                multipartUploadService.upload(blobKey, file.getContentType(), in);
+            }
+            uploaded = true;
+        } finally {
+            lock.lock();
+            try {
+                pendingUploads.computeIfPresent(digest, (d, count) -> count > 1 ? count - 1 : null);
+                if (uploaded) {
+                    putReference(s3Key, digest, file);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    private void putReference(String s3Key, String digest, MultipartFile file) {
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(s3Key)
+                        .contentType(file.getContentType())
+                        .metadata(Map.of("cloudbox-blob-sha256", digest,
+                                         "cloudbox-logical-size", Long.toString(file.getSize())))
+                        .build(),
+                RequestBody.empty());
+        contentIndex.addReference(s3Key, digest, file.getSize());
+    }
+
+    /**
+     * Makes {@code targetKey}, a server-side copy of {@code sourceKey}, hold
+     * its own reference to the same blob. Keys that are not references are
+     * ignored.
+     */
+    public void copyReference(String sourceKey, String targetKey) {
+        ContentIndex.Reference reference = contentIndex.get(sourceKey);
+        if (reference == null) {
+            return;
+        }
+        ReentrantLock lock = lockFor(reference.digest());
+        lock.lock();
+        try {
+            contentIndex.addReference(targetKey, reference.digest(), reference.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the key holding {@code s3Key}'s bytes: its blob if it is a
+     * reference, otherwise the key itself.
+     */
+    public String resolve(String s3Key) {
+        ContentIndex.Reference reference = contentIndex.get(s3Key);
+        return reference != null ? BLOB_PREFIX + reference.digest() : s3Key;
+    }
+
+    /**
+     * Returns the size users are charged for. Only empty objects can be
+     * references, so anything else is answered without an index lookup.
+     */
+    public long logicalSize(String s3Key, long storedSize) {
+        if (storedSize != 0) {
+            return storedSize;
+        }
+        ContentIndex.Reference reference = contentIndex.get(s3Key);
+        return reference != null ? reference.size() : 0;
+    }
+
+    /**
+     * Drops the references held by deleted keys and deletes blobs that are no
+     * longer referenced. Keys that were not references are ignored.
+     */
+    public void release(Collection<String> deletedKeys) {
+        for (String key : deletedKeys) {
+            ContentIndex.Reference reference = contentIndex.get(key);
+            if (reference == null) {
+                continue;
+            }
+            ReentrantLock lock = lockFor(reference.digest());
+            lock.lock();
+            try {
+                contentIndex.removeReference(key);
+                if (contentIndex.refCount(reference.digest()) == 0
+                        && !pendingUploads.containsKey(reference.digest())) {
+                    String blobKey = BLOB_PREFIX + reference.digest();
+                    s3Client.deleteObject(DeleteObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(blobKey)
+                            .build());
+                    downloadCache.invalidate(blobKey);
+                }
+            } catch (Exception e) {
+                // The blob is orphaned but harmless; it no longer has references
+                log.warn("Failed to delete unreferenced blob {}: {}", reference.digest(), e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #release}, but runs on the delete pool so async callers do
+     * not block an I/O thread on blob deletes.
+     */
+    public CompletableFuture<Void> releaseAsync(Collection<String> deletedKeys) {
+        if (deletedKeys.stream().noneMatch(key -> contentIndex.get(key) != null)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> release(deletedKeys), deleteExecutor);
+    }
+
+    private boolean exists(String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
+    private ReentrantLock lockFor(String digest) {
+        return digestLocks[Math.floorMod(digest.hashCode(), digestLocks.length)];
+    }
+
+    private static String sha256(MultipartFile file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (InputStream in = new DigestInputStream(file.getInputStream(), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
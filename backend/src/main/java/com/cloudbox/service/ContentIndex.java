@@ -0,0 +1,114 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps user-visible keys that are references to content-addressed blobs, and
+ * counts references per blob digest. State is kept in memory and persisted as
+ * an append-only journal of ref/unref records, which is replayed and compacted
+ * on startup.
+ */
+@Component
+public class ContentIndex {
+
+    private static final String REF = "R";
+    private static final String UNREF = "U";
+
+    @Value("${cloudbox.dedup.index-path:data/content-index.log}")
+    private String indexPath;
+
+    private final Map<String, Reference> references = new HashMap<>();
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private AppendOnlyJournal journal;
+
+    @PostConstruct
+    synchronized void open() throws IOException {
+        journal = new AppendOnlyJournal(Paths.get(indexPath));
+        journal.replay(fields -> {
+            if (fields.length == 4 && REF.equals(fields[0])) {
+                applyRef(fields[1], new Reference(fields[2], Long.parseLong(fields[3])));
+            } else if (fields.length == 2 && UNREF.equals(fields[0])) {
+                applyUnref(fields[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown record type");
+            }
+        });
+
+        List<String[]> live = new ArrayList<>(references.size());
+        references.forEach((key, reference) -> live.add(refRecord(key, reference)));
+        journal.rewrite(live);
+    }
+
+    @PreDestroy
+    synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    public synchronized Reference get(String key) {
+        return references.get(key);
+    }
+
+    public synchronized boolean isEmpty() {
+        return references.isEmpty();
+    }
+
+    public synchronized int refCount(String digest) {
+        return refCounts.getOrDefault(digest, 0);
+    }
+
+    /**
+     * Records {@code key} as a reference to the blob {@code digest} and returns
+     * the blob's new reference count.
+     */
+    public synchronized int addReference(String key, String digest, long size) {
+        Reference reference = new Reference(digest, size);
+        journal.append(refRecord(key, reference));
+        applyRef(key, reference);
+        return refCounts.get(digest);
+    }
+
+    /**
+     * Drops {@code key}'s reference and returns it, or null if the key was
+     * not a reference. The blob's remaining count is then {@link #refCount}.
+     */
+    public synchronized Reference removeReference(String key) {
+        if (!references.containsKey(key)) {
+            return null;
+        }
+        journal.append(UNREF, key);
+        return applyUnref(key);
+    }
+
+    private void applyRef(String key, Reference reference) {
+        Reference previous = references.put(key, reference);
+        if (previous != null) {
+            refCounts.computeIfPresent(previous.digest(), (digest, count) -> count > 1 ? count - 1 : null);
+        }
+        refCounts.merge(reference.digest(), 1, Integer::sum);
+    }
+
+    private Reference applyUnref(String key) {
+        Reference removed = references.remove(key);
+        if (removed != null) {
+            refCounts.computeIfPresent(removed.digest(), (digest, count) -> count > 1 ? count - 1 : null);
+        }
+        return removed;
+    }
+
+    private static String[] refRecord(String key, Reference reference) {
+        return new String[] {REF, key, reference.digest(), Long.toString(reference.size())};
+    }
+
+    public record Reference(String digest, long size) {
+    }
+}
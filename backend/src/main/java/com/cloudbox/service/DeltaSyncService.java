@@ -0,0 +1,456 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Server side of the delta sync upload protocol. Clients cut a file into
+ * content-defined chunks and send the list of chunk hashes; only chunks the
+ * store does not already hold are uploaded, after which the file is
+ * assembled inside S3 with UploadPartCopy, one part per chunk. Editing a
+ * large file therefore re-sends only the chunks around the edit, and the
+ * chunks it kept never pass through this service again.
+ *
+ * Chunks live under {@code _chunks/sha256/<userId>/}: a user can only
+ * negotiate against and assemble from chunks they uploaded themselves, so a
+ * known hash neither reveals nor copies another user's data. Since every
+ * part but the last must be at least 5 MiB, so must every chunk but the
+ * last. Chunks untouched for {@code cloudbox.delta.chunk-retention-ms} are
+ * swept.
+ *
+ * Chunk bytes a user has uploaded but not yet committed count as pending
+ * against that user, capped by {@code cloudbox.delta.max-pending-bytes-per-user}
+ * and by their remaining quota, so the chunk store cannot be used as free
+ * storage. Pending bytes are released on commit, or after
+ * {@code cloudbox.delta.chunk-refresh-window-ms} if the upload is abandoned.
+ */
+@Service
+public class DeltaSyncService {
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaSyncService.class);
+
+    static final String CHUNK_PREFIX = "_chunks/sha256/";
+
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+    private static final int MAX_KEYS_PER_BATCH = 1000;
+    // S3's limits on multipart uploads, which assembly is built on
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private S3AsyncClient s3AsyncClient;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.delta.max-chunk-bytes:16777216}")
+    private int maxChunkBytes;
+
+    @Value("${cloudbox.delta.max-chunks:10000}")
+    private int maxChunks;
+
+    @Value("${cloudbox.delta.chunk-retention-ms:2592000000}")
+    private long chunkRetentionMs;
+
+    @Value("${cloudbox.delta.chunk-refresh-window-ms:86400000}")
+    private long chunkRefreshWindowMs;
+
+    @Value("${cloudbox.delta.max-pending-bytes-per-user:268435456}")
+    private long maxPendingBytesPerUser;
+
+    @Value("${cloudbox.delta.max-concurrent-checks:32}")
+    private int maxConcurrentChecks;
+
+    // userId -> chunks uploaded but not yet committed, by hash. Only touched
+    // inside compute() so a user's check-and-add is atomic.
+    private final Map<String, Map<String, PendingChunk>> pendingByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the distinct hashes from {@code manifest} that {@code userId}
+     * has to upload, in manifest order. Only the user's own chunks count.
+     * Existence is checked with HEADs, at most
+     * {@code cloudbox.delta.max-concurrent-checks} of them in flight at once.
+     */
+    public CompletableFuture<List<String>> findMissing(String userId, ChunkManifest manifest) {
+        validate(manifest);
+
+        // Chunks close to the retention cutoff are reported missing, so the
+        // client re-uploads them and the sweeper cannot remove a chunk between
+        // negotiation and commit.
+        Instant refreshBefore = Instant.now().minusMillis(chunkRetentionMs - chunkRefreshWindowMs);
+
+        Map<String, Chunk> distinct = new LinkedHashMap<>();
+        for (Chunk chunk : manifest.chunks()) {
+            distinct.putIfAbsent(chunk.hash(), chunk);
+        }
+        List<Chunk> chunks = new ArrayList<>(distinct.values());
+        boolean[] missing = new boolean[chunks.size()];
+
+        // Each lane checks one chunk and then claims the next unchecked one
+        AtomicInteger next = new AtomicInteger();
+        int lanes = Math.min(Math.max(1, maxConcurrentChecks), chunks.size());
+        List<CompletableFuture<Void>> running = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            running.add(checkNext(userId, chunks, missing, next, refreshBefore));
+        }
+
+        return CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).thenApply(done -> {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                if (missing[i]) {
+                    result.add(chunks.get(i).hash());
+                }
+            }
+            return result;
+        });
+    }
+
+    private CompletableFuture<Void> checkNext(String userId, List<Chunk> chunks, boolean[] missing,
+                                              AtomicInteger next, Instant refreshBefore) {
+        int index = next.getAndIncrement();
+        if (index >= chunks.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Chunk chunk = chunks.get(index);
+        return s3AsyncClient
+                .headObject(HeadObjectRequest.builder().bucket(bucketName).key(chunkKey(userId, chunk.hash())).build())
+                .handle((head, error) -> {
+                    if (error == null) {
+                        return head.contentLength() != chunk.size() || head.lastModified().isBefore(refreshBefore);
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    if (cause instanceof NoSuchKeyException) {
+                        return true;
+                    }
+                    throw new CompletionException(cause);
+                })
+                .thenCompose(isMissing -> {
+                    missing[index] = isMissing;
+                    return checkNext(userId, chunks, missing, next, refreshBefore);
+                });
+    }
+
+    /**
+     * Stores one chunk for {@code userId} after checking that its content
+     * hashes to {@code hash}. The chunk counts as pending for the user until
+     * a commit uses it; {@code quotaRemaining} is what the user may still
+     * store. Re-uploading an existing chunk is harmless and refreshes its age.
+     */
+    public void storeChunk(String userId, String hash, InputStream in, long quotaRemaining) throws IOException {
+        requireHash(hash);
+        byte[] buffer = new byte[maxChunkBytes + 1];
+        int length = in.readNBytes(buffer, 0, buffer.length);
+        if (length > maxChunkBytes) {
+            throw new IllegalArgumentException("Chunk exceeds the maximum of " + maxChunkBytes + " bytes");
+        }
+
+        MessageDigest digest = sha256();
+        digest.update(buffer, 0, length);
+        if (!hash.equals(HexFormat.of().formatHex(digest.digest()))) {
+            throw new IllegalArgumentException("Chunk content does not match hash " + hash);
+        }
+
+        if (quotaRemaining < length) {
+            throw new FileService.StorageLimitExceededException();
+        }
+        long limit = Math.min(maxPendingBytesPerUser, quotaRemaining);
+        PendingChunk previous = addPending(userId, hash, length, limit);
+
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(chunkKey(userId, hash))
+                            .contentLength((long) length)
+                            .build(),
+                    RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, length), length));
+        } catch (RuntimeException e) {
+            restorePending(userId, hash, previous);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the pending bytes of the chunks in {@code manifest} once the
+     * file assembled from them has been written.
+     */
+    public void releasePending(String userId, ChunkManifest manifest) {
+        pendingByUser.computeIfPresent(userId, (user, pending) -> {
+            for (Chunk chunk : manifest.chunks()) {
+                pending.remove(chunk.hash());
+            }
+            return pending.isEmpty() ? null : pending;
+        });
+    }
+
+    private PendingChunk addPending(String userId, String hash, long size, long limit) throws IOException {
+        PendingChunk[] previous = new PendingChunk[1];
+        boolean[] added = new boolean[1];
+        boolean[] overQuota = new boolean[1];
+        pendingByUser.compute(userId, (user, pending) -> {
+            Map<String, PendingChunk> chunks = pending == null ? new HashMap<>() : pending;
+            previous[0] = chunks.get(hash);
+            long total = pendingBytes(chunks) - (previous[0] == null ? 0 : previous[0].size()) + size;
+            if (total <= limit) {
+                chunks.put(hash, new PendingChunk(size, Instant.now()));
+                added[0] = true;
+            } else {
+                // Within the per-user cap, so it was the quota that ran out
+                overQuota[0] = total <= maxPendingBytesPerUser;
+            }
+            return chunks.isEmpty() ? null : chunks;
+        });
+        if (added[0]) {
+            return previous[0];
+        }
+        if (overQuota[0]) {
+            throw new FileService.StorageLimitExceededException();
+        }
+        throw new IllegalStateException("Too many uncommitted chunk bytes; commit pending delta uploads first");
+    }
+
+    private void restorePending(String userId, String hash, PendingChunk previous) {
+        pendingByUser.computeIfPresent(userId, (user, pending) -> {
+            if (previous == null) {
+                pending.remove(hash);
+            } else {
+                pending.put(hash, previous);
+            }
+            return pending.isEmpty() ? null : pending;
+        });
+    }
+
+    private static long pendingBytes(Map<String, PendingChunk> pending) {
+        return pending.values().stream().mapToLong(PendingChunk::size).sum();
+    }
+
+    /**
+     * Writes the file described by {@code manifest} to {@code s3Key} by
+     * copying {@code userId}'s chunks inside S3, and returns its size. Fails
+     * if a chunk is missing, or if the chunks do not add up to the manifest's
+     * size, in which case nothing is left at {@code s3Key}.
+     */
+    public long assemble(String userId, ChunkManifest manifest, String s3Key, String contentType)
+            throws IOException {
+        validate(manifest);
+        List<Chunk> chunks = manifest.chunks();
+        if (chunks.size() == 1) {
+            try {
+                s3Client.copyObject(CopyObjectRequest.builder()
+                        .sourceBucket(bucketName)
+                        .sourceKey(chunkKey(userId, chunks.get(0).hash()))
+                        .destinationBucket(bucketName)
+                        .destinationKey(s3Key)
+                        .contentType(contentType)
+                        .metadataDirective(MetadataDirective.REPLACE)
+                        .build());
+            } catch (NoSuchKeyException e) {
+                throw new IllegalArgumentException("A chunk of the manifest has not been uploaded", e);
+            }
+        } else {
+            copyParts(userId, chunks, s3Key, contentType);
+        }
+
+        long size = s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .build()).contentLength();
+        if (size != manifest.totalSize()) {
+            // A chunk's real size differs from what the manifest claimed,
+            // which would make the quota check and the recorded size wrong
+            s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(s3Key).build());
+            throw new IOException("Chunks add up to " + size + " bytes, manifest says " + manifest.totalSize());
+        }
+        return size;
+    }
+
+    private void copyParts(String userId, List<Chunk> chunks, String s3Key, String contentType) {
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .contentType(contentType)
+                .build()).uploadId();
+
+        try {
+            List<CompletableFuture<CompletedPart>> parts = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                int number = i + 1;
+                parts.add(s3AsyncClient.uploadPartCopy(UploadPartCopyRequest.builder()
+                                .sourceBucket(bucketName)
+                                .sourceKey(chunkKey(userId, chunks.get(i).hash()))
+                                .destinationBucket(bucketName)
+                                .destinationKey(s3Key)
+                                .uploadId(uploadId)
+                                .partNumber(number)
+                                .build())
+                        .thenApply(response -> CompletedPart.builder()
+                                .partNumber(number)
+                                .eTag(response.copyPartResult().eTag())
+                                .build()));
+            }
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).join();
+
+            List<CompletedPart> completed = new ArrayList<>(parts.size());
+            for (CompletableFuture<CompletedPart> part : parts) {
+                completed.add(part.join());
+            }
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+        } catch (RuntimeException e) {
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(s3Key)
+                        .uploadId(uploadId)
+                        .build());
+            } catch (Exception abortError) {
+                log.warn("Failed to abort delta assembly of {}: {}", s3Key, abortError.getMessage());
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof NoSuchKeyException) {
+                throw new IllegalArgumentException("A chunk of the manifest has not been uploaded", cause);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes chunks older than the retention period. Files already assembled
+     * from them are unaffected; clients just re-upload those chunks on their
+     * next delta sync.
+     */
+    @Scheduled(fixedDelayString = "${cloudbox.delta.sweep-interval-ms:3600000}")
+    public void sweepExpiredChunks() {
+        // Uploads not committed within the refresh window are abandoned
+        Instant pendingCutoff = Instant.now().minusMillis(chunkRefreshWindowMs);
+        for (String userId : pendingByUser.keySet()) {
+            pendingByUser.computeIfPresent(userId, (user, pending) -> {
+                pending.values().removeIf(chunk -> chunk.storedAt().isBefore(pendingCutoff));
+                return pending.isEmpty() ? null : pending;
+            });
+        }
+
+        Instant cutoff = Instant.now().minusMillis(chunkRetentionMs);
+        long swept = 0;
+        try {
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(CHUNK_PREFIX)
+                    .maxKeys(MAX_KEYS_PER_BATCH)
+                    .build();
+            ListObjectsV2Response response;
+            do {
+                response = s3Client.listObjectsV2(request);
+                List<ObjectIdentifier> expired = new ArrayList<>();
+                for (S3Object object : response.contents()) {
+                    if (object.lastModified().isBefore(cutoff)) {
+                        expired.add(ObjectIdentifier.builder().key(object.key()).build());
+                    }
+                }
+                if (!expired.isEmpty()) {
+                    s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                            .bucket(bucketName)
+                            .delete(Delete.builder().objects(expired).quiet(true).build())
+                            .build());
+                    swept += expired.size();
+                }
+                request = request.toBuilder()
+                        .continuationToken(response.nextContinuationToken())
+                        .build();
+            } while (Boolean.TRUE.equals(response.isTruncated()));
+        } catch (Exception e) {
+            log.warn("Delta chunk sweep failed: {}", e.getMessage());
+        }
+        if (swept > 0) {
+            log.info("Swept {} expired delta sync chunks", swept);
+        }
+    }
+
+    private void validate(ChunkManifest manifest) {
+        if (manifest == null || manifest.chunks() == null || manifest.chunks().isEmpty()) {
+            throw new IllegalArgumentException("Manifest has no chunks");
+        }
+        int limit = Math.min(maxChunks, MAX_PARTS);
+        if (manifest.chunks().size() > limit) {
+            throw new IllegalArgumentException("Manifest exceeds the maximum of " + limit + " chunks");
+        }
+        List<Chunk> chunks = manifest.chunks();
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            requireHash(chunk.hash());
+            if (chunk.size() <= 0 || chunk.size() > maxChunkBytes) {
+                throw new IllegalArgumentException("Invalid size " + chunk.size() + " for chunk " + chunk.hash());
+            }
+            if (i < chunks.size() - 1 && chunk.size() < MIN_PART_SIZE) {
+                throw new IllegalArgumentException("Chunk " + chunk.hash() + " is smaller than "
+                        + MIN_PART_SIZE + " bytes; only the last chunk may be");
+            }
+        }
+    }
+
+    private static String chunkKey(String userId, String hash) {
+        return CHUNK_PREFIX + userId + "/" + hash;
+    }
+
+    private static void requireHash(String hash) {
+        if (hash == null || !SHA256_HEX.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Chunk hash must be 64 lowercase hex characters");
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public record Chunk(String hash, long size) {
+    }
+
+    private record PendingChunk(long size, Instant storedAt) {
+    }
+
+    /**
+     * A file described as its content-defined chunks, in order.
+     */
+    public record ChunkManifest(List<Chunk> chunks) {
+        public long totalSize() {
+            return chunks.stream().mapToLong(Chunk::size).sum();
+        }
+    }
+}
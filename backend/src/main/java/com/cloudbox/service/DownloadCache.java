@@ -0,0 +1,252 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Read-through disk cache for downloaded objects. Each lookup revalidates
+ * the cached copy against the object's current ETag, taken from the HEAD
+ * request the caller already makes for conditional and range handling.
+ * Entries are evicted least recently used first once the byte budget is
+ * exceeded, and concurrent misses for the same key share a single S3 fetch.
+ */
+@Component
+public class DownloadCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadCache.class);
+
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final String PARTIAL_SUFFIX = ".blob.part";
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    @Qualifier("cacheFillExecutor")
+    private ExecutorService cacheFillExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.download-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cloudbox.download-cache.dir:${java.io.tmpdir}/cloudbox-download-cache}")
+    private String cacheDir;
+
+    @Value("${cloudbox.download-cache.max-bytes:1073741824}")
+    private long maxBytes;
+
+    @Value("${cloudbox.download-cache.max-object-bytes:67108864}")
+    private long maxObjectBytes;
+
+    private Path root;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, CachedObject> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    private final Map<String, CompletableFuture<CachedObject>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(cacheDir);
+        Files.createDirectories(root);
+        // The index lives in memory only, so files from a previous run are
+        // unreachable. Remove those, and only those: the directory is
+        // configurable and may hold files the cache did not create.
+        String ownFiles = "*{" + BLOB_SUFFIX + "," + PARTIAL_SUFFIX + "}";
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(root, ownFiles)) {
+            for (Path file : stale) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Returns a cached copy of the object matching {@code head}, its current
+     * metadata, fetching it into the cache first if needed. Returns null when
+     * caching is disabled or the object is too large to cache; callers then
+     * stream from S3 directly.
+     */
+    public CachedObject lookup(String s3Key, HeadObjectResponse head) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+
+        CachedObject cached;
+        synchronized (this) {
+            cached = entries.get(s3Key);
+        }
+        if (cached != null && cached.etag().equals(head.eTag())) {
+            return cached;
+        }
+        if (head.contentLength() > maxObjectBytes) {
+            return null;
+        }
+
+        CompletableFuture<CachedObject> fetch = new CompletableFuture<>();
+        CompletableFuture<CachedObject> existing = inFlight.putIfAbsent(s3Key, fetch);
+        if (existing != null) {
+            return awaitFetch(existing);
+        }
+        try {
+            CachedObject fetched = fetch(s3Key, head);
+            fetch.complete(fetched);
+            return fetched;
+        } catch (IOException | RuntimeException e) {
+            fetch.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(s3Key, fetch);
+        }
+    }
+
+    /**
+     * Returns the cached copy matching {@code head} if there is one, without
+     * fetching. On a miss the object is fetched into the cache in the
+     * background, so the caller can read just the bytes it needs from S3
+     * while later reads of the object become local.
+     */
+    public CachedObject peek(String s3Key, HeadObjectResponse head) {
+        if (!enabled) {
+            return null;
+        }
+
+        CachedObject cached;
+        synchronized (this) {
+            cached = entries.get(s3Key);
+        }
+        if (cached != null && cached.etag().equals(head.eTag())) {
+            return cached;
+        }
+        if (head.contentLength() <= maxObjectBytes && !inFlight.containsKey(s3Key)) {
+            try {
+                cacheFillExecutor.execute(() -> {
+                    try {
+                        lookup(s3Key, head);
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("Background cache fill of {} failed: {}", s3Key, e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Fills are backed up; this object is read from S3 until a later miss
+            }
+        }
+        return null;
+    }
+
+    private CachedObject awaitFetch(CompletableFuture<CachedObject> fetch) throws IOException {
+        try {
+            return fetch.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw e;
+        }
+    }
+
+    private CachedObject fetch(String s3Key, HeadObjectResponse head) throws IOException {
+        String name = UUID.randomUUID().toString();
+        Path target = root.resolve(name + BLOB_SUFFIX);
+        Path partial = root.resolve(name + PARTIAL_SUFFIX);
+
+        // ifMatch pins the body to the version we just validated against
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .ifMatch(head.eTag())
+                .build())) {
+            Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        CachedObject cached = new CachedObject(target, head.eTag(), Files.size(target),
+                head.contentType(), head.lastModified() != null ? head.lastModified().toEpochMilli() : -1);
+        store(s3Key, cached);
+        return cached;
+    }
+
+    private synchronized void store(String s3Key, CachedObject cached) {
+        CachedObject previous = entries.put(s3Key, cached);
+        if (previous != null) {
+            discard(previous);
+        }
+        totalBytes += cached.size();
+
+        Iterator<Map.Entry<String, CachedObject>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, CachedObject> entry = eldest.next();
+            if (entry.getValue() == cached) {
+                continue;
+            }
+            eldest.remove();
+            discard(entry.getValue());
+        }
+    }
+
+    public synchronized void invalidate(String s3Key) {
+        CachedObject removed = entries.remove(s3Key);
+        if (removed != null) {
+            discard(removed);
+        }
+    }
+
+    public synchronized void invalidatePrefix(String prefix) {
+        Iterator<Map.Entry<String, CachedObject>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CachedObject> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                it.remove();
+                discard(entry.getValue());
+            }
+        }
+    }
+
+    private void discard(CachedObject cached) {
+        // Must be called while holding the monitor. Readers that already
+        // opened the file keep their handle; the inode is freed once they close it.
+        totalBytes -= cached.size();
+        try {
+            Files.deleteIfExists(cached.path());
+        } catch (IOException e) {
+            log.warn("Could not delete cached file {}: {}", cached.path(), e.getMessage());
+        }
+    }
+
+    public record CachedObject(Path path, String etag, long size, String contentType, long lastModified) {
+    }
+}
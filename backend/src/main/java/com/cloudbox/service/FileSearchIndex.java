@@ -0,0 +1,274 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory filename search over each user's drive. Display names are broken
+ * into trigrams with a posting set per trigram, so a substring query only
+ * verifies the files that contain all of its trigrams instead of scanning
+ * every name. A user's index is built from the {@link MetadataStore} on first
+ * search and kept current through its change notifications; nothing here
+ * talks to S3.
+ */
+@Component
+public class FileSearchIndex implements MetadataStore.Listener {
+
+    // Keys are built as "<uuid>_<original name>"; search on the original name
+    private static final Pattern UPLOAD_PREFIX = Pattern.compile(
+            "^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}_");
+
+    private static final Map<String, String> CATEGORIES = new HashMap<>();
+
+    static {
+        for (String ext : List.of("jpg", "jpeg", "png", "gif", "webp", "heic", "avif", "bmp", "tif", "tiff", "svg")) {
+            CATEGORIES.put(ext, "image");
+        }
+        for (String ext : List.of("mp4", "m4v", "mov", "mkv", "webm", "avi", "wmv")) {
+            CATEGORIES.put(ext, "video");
+        }
+        for (String ext : List.of("mp3", "aac", "m4a", "ogg", "opus", "flac", "wav")) {
+            CATEGORIES.put(ext, "audio");
+        }
+        for (String ext : List.of("pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "odt", "ods", "odp",
+                "txt", "md", "rtf", "csv", "epub")) {
+            CATEGORIES.put(ext, "document");
+        }
+        for (String ext : List.of("zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "tar")) {
+            CATEGORIES.put(ext, "archive");
+        }
+    }
+
+    @Autowired
+    private MetadataStore metadataStore;
+
+    private final Map<String, UserIndex> indexes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void register() {
+        metadataStore.addListener(this);
+    }
+
+    /**
+     * Runs a query against the user's drive. The user's tree must already be
+     * in the metadata index.
+     */
+    public SearchResult search(String userId, SearchQuery query) {
+        UserIndex index = indexFor(userId);
+        index.ready.join();
+        return index.search(query);
+    }
+
+    @Override
+    public void fileAdded(MetadataStore.Node node) {
+        UserIndex index = indexes.get(node.userId());
+        if (index != null) {
+            index.add(node);
+        }
+    }
+
+    @Override
+    public void fileRemoved(MetadataStore.Node node) {
+        UserIndex index = indexes.get(node.userId());
+        if (index != null) {
+            index.remove(node.id());
+        }
+    }
+
+    private UserIndex indexFor(String userId) {
+        UserIndex existing = indexes.get(userId);
+        if (existing != null) {
+            return existing;
+        }
+        // Published before it is filled so that no change is missed. The
+        // metadata read lock makes the fill atomic with respect to changes,
+        // and adds are idempotent, so overlap with notifications is harmless.
+        // Searches racing the fill wait for it rather than see part of it.
+        UserIndex index = new UserIndex();
+        UserIndex raced = indexes.putIfAbsent(userId, index);
+        if (raced != null) {
+            return raced;
+        }
+        try {
+            metadataStore.forEachFile(userId, index::add);
+            index.ready.complete(null);
+        } catch (RuntimeException e) {
+            indexes.remove(userId, index);
+            index.ready.completeExceptionally(e);
+            throw e;
+        }
+        return index;
+    }
+
+    static String displayName(String name) {
+        return UPLOAD_PREFIX.matcher(name).lookingAt() ? name.substring(37) : name;
+    }
+
+    static String categoryOf(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return "other";
+        }
+        return CATEGORIES.getOrDefault(name.substring(dot + 1).toLowerCase(Locale.ROOT), "other");
+    }
+
+    private static long trigram(String text, int start) {
+        return (long) text.charAt(start) << 32 | (long) text.charAt(start + 1) << 16 | text.charAt(start + 2);
+    }
+
+    /**
+     * Filters and paging for a search. {@code text} may be blank to browse
+     * by facets alone; the bounds are ignored when null.
+     */
+    public record SearchQuery(String text, String category, Long minSize, Long maxSize,
+                              Long modifiedAfter, Long modifiedBefore, int offset, int limit) {
+    }
+
+    public record Hit(MetadataStore.Node node, String name, String category) {
+    }
+
+    /**
+     * One page of hits, the total number of matches and per-category counts
+     * over all matches (before the category filter is applied).
+     */
+    public record SearchResult(List<Hit> hits, int total, Map<String, Integer> categories) {
+    }
+
+    private static final class Entry {
+        final MetadataStore.Node node;
+        final String name;
+        final String lowerName;
+        final String category;
+
+        Entry(MetadataStore.Node node) {
+            this.node = node;
+            this.name = displayName(node.name());
+            this.lowerName = name.toLowerCase(Locale.ROOT);
+            this.category = categoryOf(name);
+        }
+    }
+
+    private static final class UserIndex {
+        // Completed once the initial fill from the metadata index is done
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private final Map<Long, Entry> entries = new HashMap<>();
+        private final Map<Long, Set<Long>> postings = new HashMap<>();
+
+        synchronized void add(MetadataStore.Node node) {
+            remove(node.id());
+            Entry entry = new Entry(node);
+            entries.put(node.id(), entry);
+            for (int i = 0; i + 3 <= entry.lowerName.length(); i++) {
+                postings.computeIfAbsent(trigram(entry.lowerName, i), t -> new HashSet<>()).add(node.id());
+            }
+        }
+
+        synchronized void remove(long id) {
+            Entry entry = entries.remove(id);
+            if (entry == null) {
+                return;
+            }
+            for (int i = 0; i + 3 <= entry.lowerName.length(); i++) {
+                long gram = trigram(entry.lowerName, i);
+                Set<Long> ids = postings.get(gram);
+                if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+
+        synchronized SearchResult search(SearchQuery query) {
+            String text = query.text() != null ? query.text().trim().toLowerCase(Locale.ROOT) : "";
+
+            List<Entry> matches = new ArrayList<>();
+            Map<String, Integer> categories = new TreeMap<>();
+            for (Long id : candidates(text)) {
+                Entry entry = entries.get(id);
+                if (!entry.lowerName.contains(text) || !inBounds(entry.node, query)) {
+                    continue;
+                }
+                categories.merge(entry.category, 1, Integer::sum);
+                if (query.category() == null || query.category().equals(entry.category)) {
+                    matches.add(entry);
+                }
+            }
+
+            Comparator<Entry> order = Comparator.<Entry>comparingInt(entry -> rank(entry.lowerName, text))
+                    .thenComparing(entry -> -entry.node.modifiedAt())
+                    .thenComparing(entry -> entry.lowerName);
+            matches.sort(order);
+
+            int from = Math.min(query.offset(), matches.size());
+            int to = Math.min(from + query.limit(), matches.size());
+            List<Hit> hits = new ArrayList<>(to - from);
+            for (Entry entry : matches.subList(from, to)) {
+                hits.add(new Hit(entry.node, entry.name, entry.category));
+            }
+            return new SearchResult(hits, matches.size(), categories);
+        }
+
+        /**
+         * IDs that can contain {@code text}: the intersection of the posting
+         * sets of its trigrams, smallest first. Queries too short to have a
+         * trigram fall back to every file.
+         */
+        private Set<Long> candidates(String text) {
+            if (text.length() < 3) {
+                return entries.keySet();
+            }
+            List<Set<Long>> sets = new ArrayList<>();
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                Set<Long> ids = postings.get(trigram(text, i));
+                if (ids == null) {
+                    return Set.of();
+                }
+                sets.add(ids);
+            }
+            sets.sort(Comparator.comparingInt(Set::size));
+
+            Set<Long> result = new HashSet<>(sets.get(0));
+            for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+                result.retainAll(sets.get(i));
+            }
+            return result;
+        }
+
+        private static boolean inBounds(MetadataStore.Node node, SearchQuery query) {
+            return (query.minSize() == null || node.size() >= query.minSize())
+                    && (query.maxSize() == null || node.size() <= query.maxSize())
+                    && (query.modifiedAfter() == null || node.modifiedAt() >= query.modifiedAfter())
+                    && (query.modifiedBefore() == null || node.modifiedAt() < query.modifiedBefore());
+        }
+
+        /**
+         * Lower is better: exact name, name prefix, word prefix, anywhere.
+         */
+        private static int rank(String name, String text) {
+            if (text.isEmpty()) {
+                return 0;
+            }
+            if (name.equals(text)) {
+                return 0;
+            }
+            if (name.startsWith(text)) {
+                return 1;
+            }
+            int at = name.indexOf(text);
+            return Character.isLetterOrDigit(name.charAt(at - 1)) ? 3 : 2;
+        }
+    }
+}
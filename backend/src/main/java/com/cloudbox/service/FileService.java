@@ -1,67 +1,400 @@
 package com.cloudbox.service;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class FileService {
     
+    private static final long MAX_STORAGE_BYTES = 1024L * 1024L * 1024L; // 1GB
+    
     @Autowired
     private S3Service s3Service;
     
+    @Autowired
+    private FolderDeletionService folderDeletionService;
+    
+    @Autowired
+    private FolderListingCache folderListingCache;
+    
+    @Autowired
+    private DeltaSyncService deltaSyncService;
+    
+    @Autowired
+    private ResumableUploadService resumableUploadService;
+    
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    private FileSearchIndex fileSearchIndex;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    private PresignedTransferService presignedTransferService;
+    
+    @Autowired
+    private StorageUsageLedger usageLedger;
+    
+    @Autowired
+    @Qualifier("batchUploadExecutor")
+    private ExecutorService batchUploadExecutor;
+    
+    @Value("${cloudbox.upload.batch-parallelism:8}")
+    private int batchParallelism;
+    
     public String uploadFile(MultipartFile file, String userId, String folderPath) throws IOException {
         return s3Service.uploadFile(file, userId, folderPath);
     }
     
-    public void createFolder(String folderName, String userId, String parentFolderPath) {
+    /**
+     * Uploads every file of a batch concurrently, at most
+     * {@code cloudbox.upload.batch-parallelism} at a time, and reports each
+     * file's outcome in request order. One failed file does not stop the rest.
+     */
+    public List<UploadResult> uploadFiles(MultipartFile[] files, String userId, String folderPath)
+            throws InterruptedException {
+        Semaphore permits = new Semaphore(Math.max(1, batchParallelism));
+        List<CompletableFuture<UploadResult>> uploads = new ArrayList<>(files.length);
+        
+        for (MultipartFile file : files) {
+            permits.acquire();
+            try {
+                uploads.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return uploadOne(file, userId, folderPath);
+                    } finally {
+                        permits.release();
+                    }
+                }, batchUploadExecutor));
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+        
+        List<UploadResult> results = new ArrayList<>(uploads.size());
+        for (CompletableFuture<UploadResult> upload : uploads) {
+            results.add(upload.join());
+        }
+        return results;
+    }
+    
+    private UploadResult uploadOne(MultipartFile file, String userId, String folderPath) {
+        long start = System.nanoTime();
+        try {
+            String s3Key = s3Service.uploadFile(file, userId, folderPath);
+            return new UploadResult(file.getOriginalFilename(), s3Key, file.getSize(),
+                                    elapsedMillis(start), null);
+        } catch (Exception e) {
+            return new UploadResult(file.getOriginalFilename(), null, file.getSize(),
+                                    elapsedMillis(start), e.getMessage());
+        }
+    }
+    
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+    
+    public record UploadResult(String name, String key, long sizeBytes, long durationMs, String error) {
+        public boolean success() {
+            return error == null;
+        }
+    }
+    
+    /**
+     * Uploads a request body as it arrives. The body is cut off once it
+     * passes the user's remaining quota, whether or not it declared a length,
+     * and the partial upload is aborted.
+     */
+    public S3Service.StreamUploadResult uploadStream(InputStream in, String fileName, String contentType,
+                                                    long declaredLength, String userId, String folderPath)
+            throws IOException {
+        InputStream limited = new QuotaLimitedInputStream(in, getRemainingQuota(userId));
+        return s3Service.uploadStream(limited, fileName, contentType, declaredLength, userId, folderPath);
+    }
+    
+    public CompletableFuture<List<String>> findMissingChunks(String userId, DeltaSyncService.ChunkManifest manifest) {
+        return deltaSyncService.findMissing(userId, manifest);
+    }
+    
+    public void storeChunk(String userId, String hash, InputStream in) throws IOException {
+        deltaSyncService.storeChunk(userId, hash, in, getRemainingQuota(userId));
+    }
+    
+    /**
+     * Assembles a delta-synced file from the user's chunks, inside S3, and
+     * accounts for it like any other upload.
+     */
+    public S3Service.StreamUploadResult commitDeltaUpload(DeltaSyncService.ChunkManifest manifest, String fileName,
+                                                         String contentType, String userId, String folderPath)
+            throws IOException {
+        String s3Key = s3Service.buildFileKey(userId, folderPath, fileName);
+        long size = deltaSyncService.assemble(userId, manifest, s3Key, contentType);
+        s3Service.recordUpload(userId, folderPath, s3Key, size);
+        deltaSyncService.releasePending(userId, manifest);
+        return new S3Service.StreamUploadResult(s3Key, size);
+    }
+    
+    public ResumableUploadService.UploadSession createUploadSession(String userId, String fileName, String folderPath,
+                                                                    String contentType, long length)
+            throws IOException {
+        String s3Key = s3Service.buildFileKey(userId, folderPath, fileName);
+        return resumableUploadService.create(s3Key, userId, fileName, folderPath, contentType, length,
+                MAX_STORAGE_BYTES - getUserStorageUsage(userId));
+    }
+    
+    public ResumableUploadService.UploadSession getUploadSession(String sessionId, String userId) {
+        return resumableUploadService.get(sessionId, userId);
+    }
+    
+    public long getUploadOffset(ResumableUploadService.UploadSession session) throws IOException {
+        return resumableUploadService.offsetOf(session);
+    }
+    
+    public Collection<ResumableUploadService.UploadSession> getUploadSessions(String userId) {
+        return resumableUploadService.getSessions(userId);
+    }
+    
+    public long appendToUpload(String sessionId, String userId, long offset, InputStream in) throws IOException {
+        return resumableUploadService.append(sessionId, userId, offset, in);
+    }
+    
+    public ResumableUploadService.UploadSession completeUpload(String sessionId, String userId) throws IOException {
+        ResumableUploadService.UploadSession session = resumableUploadService.complete(sessionId, userId);
+        try {
+            s3Service.recordUpload(userId, session.folderPath(), session.s3Key(), session.length());
+        } finally {
+            // Released only now, so there is no moment where neither counts the bytes
+            usageLedger.release(session.id());
+        }
+        return session;
+    }
+    
+    public void cancelUpload(String sessionId, String userId) throws IOException {
+        resumableUploadService.cancel(sessionId, userId);
+    }
+    
+    public PresignedTransferService.AuthorizedUpload authorizeDirectUpload(String userId, String fileName,
+                                                                           String folderPath, String contentType,
+                                                                           long size)
+            throws StorageLimitExceededException {
+        String s3Key = s3Service.buildFileKey(userId, folderPath, fileName);
+        return presignedTransferService.authorizeUpload(userId, folderPath, s3Key, contentType, size,
+                MAX_STORAGE_BYTES - getUserStorageUsage(userId));
+    }
+    
+    /**
+     * Accounts for a direct upload once the client reports it finished.
+     * Direct uploads bypass deduplication and compression, since the bytes
+     * never pass through this service.
+     */
+    public PresignedTransferService.AuthorizedUpload completeDirectUpload(String userId, String s3Key) {
+        PresignedTransferService.AuthorizedUpload upload = presignedTransferService.confirmUpload(userId, s3Key);
+        try {
+            s3Service.recordUpload(userId, upload.folderPath(), s3Key, upload.size());
+        } finally {
+            usageLedger.release(s3Key);
+        }
+        return upload;
+    }
+    
+    public void cancelDirectUpload(String userId, String s3Key) {
+        presignedTransferService.cancelUpload(userId, s3Key);
+    }
+    
+    public PresignedTransferService.PresignedDownload authorizeDirectDownload(String userId, String s3Key) {
+        if (!s3Key.startsWith(userId + "/")) {
+            throw new IllegalArgumentException("File not found: " + s3Key);
+        }
+        String fileName = FileSearchIndex.displayName(s3Key.substring(s3Key.lastIndexOf('/') + 1));
+        return presignedTransferService.authorizeDownload(s3Key, fileName);
+    }
+    
+    public CompletableFuture<Void> createFolder(String folderName, String userId, String parentFolderPath) {
         String fullPath = parentFolderPath != null && !parentFolderPath.isEmpty() ? 
                          parentFolderPath + "/" + folderName : folderName;
-        s3Service.createFolder(userId, fullPath);
+        return s3Service.createFolder(userId, fullPath);
     }
     
-    public Map<String, Object> listFiles(String userId, String folderPath) {
+    public CompletableFuture<S3Service.Listing> listFiles(String userId, String folderPath) {
         return s3Service.listFiles(userId, folderPath);
     }
     
+    public CacheStats getListingCacheStats() {
+        return folderListingCache.stats();
+    }
+    
+    public long getListingCacheSize() {
+        return folderListingCache.size();
+    }
+    
+    public FolderListing openListing(String userId, String folderPath, int pageSize, String cursor) {
+        return s3Service.openListing(userId, folderPath, pageSize, cursor);
+    }
+    
+    public FileSearchIndex.SearchResult searchFiles(String userId, FileSearchIndex.SearchQuery query) {
+        s3Service.ensureIndexed(userId);
+        return fileSearchIndex.search(userId, query);
+    }
+    
     public long getUserStorageUsage(String userId) {
         return s3Service.getUserStorageUsage(userId);
     }
     
     public boolean canUpload(String userId, long fileSize) {
-        long currentUsage = getUserStorageUsage(userId);
-        long maxStorage = 1024L * 1024L * 1024L; // 1GB in bytes
-        return (currentUsage + fileSize) <= maxStorage;
+        return fileSize <= getRemainingQuota(userId);
+    }
+    
+    /**
+     * Returns what the user may still store: the quota less what is stored
+     * and what uploads in progress have reserved.
+     */
+    private long getRemainingQuota(String userId) {
+        return MAX_STORAGE_BYTES - getUserStorageUsage(userId) - usageLedger.getReservedBytes(userId);
     }
     
-    public void deleteFile(String s3Key) {
-        s3Service.deleteFile(s3Key);
+    public CompletableFuture<Void> deleteFile(String s3Key) {
+        return s3Service.deleteFile(s3Key);
     }
     
 
     
-    public void deleteFolder(Long folderId, String userId) {
-        // Since we're S3-only now, we need to find the folder path by ID
-        // For now, this is a placeholder - we need to track folder paths differently
-        throw new RuntimeException("Folder deletion by ID not supported in S3-only mode");
+    public FolderDeletionService.DeletionResult deleteFolder(Long folderId, String userId) {
+        String folderPath = s3Service.findFolderPath(userId, folderId);
+        if (folderPath == null) {
+            throw new IllegalArgumentException("Folder not found: " + folderId);
+        }
+        return s3Service.deleteFolder(userId, folderPath);
+    }
+    
+    /**
+     * Opens a thumbnail of an image, generating it first if needed and it can
+     * be done within {@code timeoutMs}. Returns null if the file has no
+     * thumbnail or it is not ready yet.
+     */
+    public ResponseInputStream<GetObjectResponse> openThumbnail(String s3Key, String size, long timeoutMs)
+            throws IOException {
+        if (!thumbnailService.isImage(s3Key)) {
+            return null;
+        }
+        ResponseInputStream<GetObjectResponse> thumbnail = thumbnailService.open(s3Key, size);
+        if (thumbnail != null || !thumbnailService.isEnabled()) {
+            return thumbnail;
+        }
+        try {
+            thumbnailService.generate(s3Key).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | RejectedExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating thumbnail", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to generate thumbnail: " + e.getCause().getMessage(), e.getCause());
+        }
+        return thumbnailService.open(s3Key, size);
+    }
+    
+    public boolean hasThumbnails(String s3Key) {
+        return thumbnailService.isEnabled() && thumbnailService.isImage(s3Key);
+    }
+    
+    public String moveFile(String userId, String s3Key, String targetFolderPath, String newName) {
+        return s3Service.moveFile(userId, s3Key, targetFolderPath, newName);
+    }
+    
+    public MoveService.MoveResult moveFolder(String userId, String sourcePath, String targetPath) {
+        return s3Service.moveFolder(userId, sourcePath, targetPath);
+    }
+    
+    public FolderDeletionService.DeletionResult deleteFolderByPath(String userId, String folderPath) {
+        return s3Service.deleteFolder(userId, folderPath);
+    }
+    
+    public FolderDeletionService.DeletionResult clearAll(String userId) {
+        return s3Service.deleteAll(userId);
+    }
+    
+    public Collection<FolderDeletionService.DeletionProgress> getActiveDeletions(String userId) {
+        return folderDeletionService.getActiveDeletions().stream()
+                .filter(progress -> progress.getUserId().equals(userId))
+                .toList();
+    }
+    
+    public HeadObjectResponse getObjectMetadata(String s3Key) {
+        return s3Service.getObjectMetadata(s3Key);
+    }
+    
+    public DownloadCache.CachedObject getCachedDownload(String s3Key, HeadObjectResponse head) throws IOException {
+        return s3Service.getCachedDownload(s3Key, head);
     }
     
-    public void deleteFolderByPath(String userId, String folderPath) {
-        s3Service.deleteFolder(userId, folderPath);
+    public DownloadCache.CachedObject peekCachedDownload(String s3Key, HeadObjectResponse head) {
+        return s3Service.peekCachedDownload(s3Key, head);
     }
     
-    public void clearAll(String userId) {
-        Map<String, Object> allItems = s3Service.listFiles(userId, "");
-        // This will clear all files and folders for the user from S3
-        s3Service.deleteFolder(userId, "");
+    /**
+     * Returns the codec an object is stored with, or null if it is stored as
+     * uploaded.
+     */
+    public String getStorageCodec(HeadObjectResponse head) {
+        return storageCodec.codecOf(head.metadata());
+    }
+    
+    public long getOriginalLength(HeadObjectResponse head) {
+        return storageCodec.originalLength(head.metadata(), head.contentLength());
+    }
+    
+    public InputStream decode(HeadObjectResponse head, InputStream stored) throws IOException {
+        return storageCodec.decode(head.metadata(), stored);
+    }
+    
+    public ResponseInputStream<GetObjectResponse> downloadRange(String s3Key, long start, long end, String etag) {
+        return s3Service.downloadRange(s3Key, start, end, etag);
+    }
+    
+    public void writeRange(String s3Key, long start, long end, String etag, OutputStream out) throws IOException {
+        s3Service.writeRange(s3Key, start, end, etag, out);
+    }
+    
+    public long writeFolderArchive(String userId, String folderPath, OutputStream out) throws IOException {
+        return s3Service.writeFolderArchive(userId, folderPath, out);
     }
     
     public ResponseInputStream<GetObjectResponse> downloadFile(String s3Key) {
         return s3Service.downloadFile(s3Key);
     }
-}
\ No newline at end of file
+
+    /**
+     * Thrown when an upload would take a user past their storage limit.
+     */
+    public static class StorageLimitExceededException extends IOException {
+        public StorageLimitExceededException() {
+            super("Storage limit exceeded. Maximum 1GB allowed.");
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams everything under a prefix to a zip archive. Objects are listed one
+ * S3 page at a time and the next few objects are fetched concurrently while
+ * the current one is written, so the response does not stall on a GET per
+ * file. Small objects are read into memory ahead of time; larger ones are
+ * only opened ahead and streamed through, which keeps memory bounded by the
+ * prefetch window regardless of folder size.
+ */
+@Service
+public class FolderArchiveService {
+
+    private static final Logger log = LoggerFactory.getLogger(FolderArchiveService.class);
+
+    // Already compressed formats; deflating them again costs CPU for nothing
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "m4a", "ogg", "opus", "flac",
+            "mp4", "m4v", "mov", "mkv", "webm", "avi",
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "jar", "apk");
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    @Qualifier("segmentDownloadExecutor")
+    private ExecutorService prefetchExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.archive.prefetch-objects:4}")
+    private int prefetchObjects;
+
+    @Value("${cloudbox.archive.buffer-max-bytes:1048576}")
+    private long bufferMaxBytes;
+
+    /**
+     * Writes every object under {@code prefix} to {@code out} as a zip, with
+     * entry names relative to the prefix. Folder markers become directory
+     * entries so empty folders survive the round trip.
+     */
+    public long write(String prefix, OutputStream out) throws IOException {
+        Iterator<S3Object> objects = new PrefixIterator(prefix);
+        Deque<CompletableFuture<Prefetched>> window = new ArrayDeque<>(Math.max(1, prefetchObjects));
+        long entries = 0;
+
+        ZipOutputStream zip = new ZipOutputStream(out);
+        try {
+            fill(window, objects);
+            while (!window.isEmpty()) {
+                Prefetched next = window.removeFirst().join();
+                try {
+                    fill(window, objects);
+                    writeEntry(zip, next, prefix);
+                } catch (IOException | RuntimeException e) {
+                    next.close();
+                    throw e;
+                }
+                entries++;
+            }
+            zip.finish();
+            return entries;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new IOException("Failed to archive " + prefix + ": " + cause.getMessage(), cause);
+        } finally {
+            // Client disconnects land here too; release any streams opened ahead
+            for (CompletableFuture<Prefetched> pending : window) {
+                pending.thenAccept(Prefetched::close);
+            }
+        }
+    }
+
+    private void fill(Deque<CompletableFuture<Prefetched>> window, Iterator<S3Object> objects) {
+        while (window.size() < Math.max(1, prefetchObjects) && objects.hasNext()) {
+            S3Object object = objects.next();
+            window.add(CompletableFuture.supplyAsync(() -> prefetch(object), prefetchExecutor));
+        }
+    }
+
+    private Prefetched prefetch(S3Object object) {
+        if (object.key().endsWith("/")) {
+            return new Prefetched(object, null, null, null);
+        }
+        ResponseInputStream<GetObjectResponse> response = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(contentStore.resolve(object.key()))
+                .build());
+        Map<String, String> metadata = response.response().metadata();
+        try {
+            InputStream in = storageCodec.decode(metadata, response);
+            if (storageCodec.originalLength(metadata, response.response().contentLength()) > bufferMaxBytes) {
+                return new Prefetched(object, null, in, response);
+            }
+            try (in) {
+                return new Prefetched(object, in.readAllBytes(), null, null);
+            }
+        } catch (IOException e) {
+            response.abort();
+            throw new CompletionException(e);
+        }
+    }
+
+    private void writeEntry(ZipOutputStream zip, Prefetched item, String prefix) throws IOException {
+        String name = item.object().key().substring(prefix.length());
+        if (name.isEmpty()) {
+            // The folder's own marker
+            return;
+        }
+
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(item.object().lastModified().toEpochMilli());
+        boolean compressed = isCompressed(name);
+
+        if (item.bytes() != null && compressed) {
+            // Fully buffered, so size and CRC are known up front and the entry
+            // can be stored without a deflate pass
+            CRC32 crc = new CRC32();
+            crc.update(item.bytes());
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(item.bytes().length);
+            entry.setCompressedSize(item.bytes().length);
+            entry.setCrc(crc.getValue());
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+            zip.setLevel(compressed ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        }
+
+        zip.putNextEntry(entry);
+        if (item.bytes() != null) {
+            zip.write(item.bytes());
+        } else if (item.stream() != null) {
+            try (InputStream in = item.stream()) {
+                in.transferTo(zip);
+            }
+        }
+        zip.closeEntry();
+    }
+
+    private static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private record Prefetched(S3Object object, byte[] bytes, InputStream stream,
+                              ResponseInputStream<GetObjectResponse> response) {
+        void close() {
+            if (response != null) {
+                response.abort();
+            }
+        }
+    }
+
+    /**
+     * Lists a prefix lazily, fetching the next S3 page only when the current
+     * one has been consumed.
+     */
+    private class PrefixIterator implements Iterator<S3Object> {
+        private ListObjectsV2Request request;
+        private ListObjectsV2Response response;
+        private Iterator<S3Object> page;
+
+        PrefixIterator(String prefix) {
+            this.request = ListObjectsV2Request.builder().bucket(bucketName).prefix(prefix).build();
+            this.response = s3Client.listObjectsV2(request);
+            this.page = response.contents().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && Boolean.TRUE.equals(response.isTruncated())) {
+                request = request.toBuilder().continuationToken(response.nextContinuationToken()).build();
+                response = s3Client.listObjectsV2(request);
+                page = response.contents().iterator();
+                log.debug("Fetched next listing page of {} objects for archive", response.contents().size());
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public S3Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+    }
+}
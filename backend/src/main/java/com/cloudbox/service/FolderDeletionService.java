@@ -0,0 +1,240 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes everything under a prefix. Listing pages are consumed as they
+ * arrive and each page becomes one DeleteObjects batch (S3 accepts at most
+ * 1000 keys per call), with several batches in flight while the next page is
+ * being listed. Keys S3 refuses to delete are collected rather than aborting
+ * the whole operation. If listing fails partway, the batches already sent
+ * are still waited for and the result reports how far the deletion got.
+ */
+@Service
+public class FolderDeletionService {
+
+    private static final Logger log = LoggerFactory.getLogger(FolderDeletionService.class);
+
+    private static final int MAX_KEYS_PER_BATCH = 1000;
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private StorageUsageLedger usageLedger;
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    private LogicalSizes logicalSizes;
+
+    @Autowired
+    @Qualifier("deleteExecutor")
+    private ExecutorService deleteExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.delete.max-in-flight-batches:8}")
+    private int maxInFlightBatches;
+
+    private final Map<String, DeletionProgress> activeDeletions = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a deletion of {@code prefix}, which must then be run with
+     * {@link #deletePrefix}. Throws IllegalStateException if the prefix is
+     * already being deleted.
+     */
+    public DeletionProgress start(String userId, String prefix) {
+        DeletionProgress progress = new DeletionProgress(userId, prefix);
+        if (activeDeletions.putIfAbsent(prefix, progress) != null) {
+            throw new IllegalStateException("This folder is already being deleted");
+        }
+        return progress;
+    }
+
+    public DeletionResult deletePrefix(DeletionProgress progress) {
+        String userId = progress.userId;
+        String prefix = progress.prefix;
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        String listingError = null;
+        try {
+            Semaphore inFlight = new Semaphore(Math.max(1, maxInFlightBatches));
+
+            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .maxKeys(MAX_KEYS_PER_BATCH)
+                    .build();
+            ListObjectsV2Response listResponse;
+
+            do {
+                listResponse = s3Client.listObjectsV2(listRequest);
+                if (!listResponse.contents().isEmpty()) {
+                    progress.listed.addAndGet(listResponse.contents().size());
+                    inFlight.acquire();
+                    List<S3Object> page = listResponse.contents();
+                    batches.add(CompletableFuture
+                            .runAsync(() -> deleteBatch(userId, page, progress), deleteExecutor)
+                            .whenComplete((ignored, error) -> inFlight.release()));
+                }
+                listRequest = listRequest.toBuilder()
+                        .continuationToken(listResponse.nextContinuationToken())
+                        .build();
+            } while (listResponse.isTruncated());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listingError = "Interrupted while listing";
+        } catch (RuntimeException e) {
+            log.warn("Listing {} failed after {} objects: {}", prefix, progress.listed.get(), e.getMessage());
+            listingError = "Listing failed: " + e.getMessage();
+        } finally {
+            // Wait for batches already sent even if listing failed, so the
+            // result counts them and the prefix stays registered until then
+            try {
+                awaitAll(batches);
+            } finally {
+                activeDeletions.remove(prefix, progress);
+            }
+        }
+
+        log.debug("Deleted {} objects under {} ({} failed)",
+                progress.deleted.get(), prefix, progress.failed.get());
+        return progress.toResult(listingError);
+    }
+
+    private static void awaitAll(List<CompletableFuture<Void>> batches) {
+        for (CompletableFuture<Void> batch : batches) {
+            try {
+                batch.join();
+            } catch (CompletionException | CancellationException e) {
+                log.warn("Delete batch failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void deleteBatch(String userId, List<S3Object> objects, DeletionProgress progress) {
+        Map<String, S3Object> byKey = new HashMap<>(objects.size() * 2);
+        List<ObjectIdentifier> identifiers = new ArrayList<>(objects.size());
+        for (S3Object object : objects) {
+            byKey.put(object.key(), object);
+            identifiers.add(ObjectIdentifier.builder().key(object.key()).build());
+        }
+
+        try {
+            DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucketName)
+                    .delete(Delete.builder().objects(identifiers).quiet(true).build())
+                    .build());
+            for (S3Error error : response.errors()) {
+                byKey.remove(error.key());
+                progress.recordFailure(error.key(), error.code() + ": " + error.message());
+            }
+        } catch (Exception e) {
+            log.warn("DeleteObjects batch of {} keys failed: {}", identifiers.size(), e.getMessage());
+            for (String key : byKey.keySet()) {
+                progress.recordFailure(key, e.getMessage());
+            }
+            return;
+        }
+
+        long bytes = 0;
+        long files = 0;
+        for (S3Object deleted : byKey.values()) {
+            if (!deleted.key().endsWith("/")) {
+                bytes += logicalSizes.of(deleted.key(), deleted.size());
+                files++;
+            }
+        }
+        usageLedger.recordRemoved(userId, bytes, files);
+        contentStore.release(byKey.keySet());
+        storageCodec.forget(byKey.keySet());
+        progress.deleted.addAndGet(byKey.size());
+    }
+
+    public Collection<DeletionProgress> getActiveDeletions() {
+        return activeDeletions.values();
+    }
+
+    public static final class DeletionProgress {
+        private final String userId;
+        private final String prefix;
+        private final AtomicLong listed = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+        private DeletionProgress(String userId, String prefix) {
+            this.userId = userId;
+            this.prefix = prefix;
+        }
+
+        private void recordFailure(String key, String reason) {
+            failed.incrementAndGet();
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.put(key, reason);
+            }
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public long getListed() {
+            return listed.get();
+        }
+
+        public long getDeleted() {
+            return deleted.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        private DeletionResult toResult(String error) {
+            return new DeletionResult(deleted.get(), failed.get(), Map.copyOf(failures), error);
+        }
+    }
+
+    /**
+     * Outcome of a prefix deletion. {@code failures} holds a sample of the
+     * keys that could not be deleted, keyed to the reason S3 gave.
+     * {@code error} is set if listing stopped early, in which case objects
+     * past that point were not attempted.
+     */
+    public record DeletionResult(long deleted, long failed, Map<String, String> failures, String error) {
+        public boolean complete() {
+            return failed == 0 && error == null;
+        }
+    }
+}
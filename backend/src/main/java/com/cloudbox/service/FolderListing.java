@@ -0,0 +1,103 @@
+package com.cloudbox.service;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * One page of a folder listing, read from S3 as it is consumed. The first S3
+ * page is fetched when the listing is opened, so errors surface before a
+ * response is committed; later pages are only fetched while the sink keeps
+ * asking for more entries, and nothing beyond the current S3 page is held in
+ * memory.
+ */
+public class FolderListing {
+
+    public interface Sink {
+        void file(String key, String name, long sizeBytes, Instant modified) throws IOException;
+
+        void folder(String name, String fullPath) throws IOException;
+    }
+
+    private final S3Client s3Client;
+    private final LogicalSizes logicalSizes;
+    private final String prefix;
+    private final String folderPath;
+    private final int pageSize;
+    private ListObjectsV2Request request;
+    private ListObjectsV2Response response;
+
+    FolderListing(S3Client s3Client, LogicalSizes logicalSizes, ListObjectsV2Request request,
+                  String prefix, String folderPath, int pageSize) {
+        this.s3Client = s3Client;
+        this.logicalSizes = logicalSizes;
+        this.prefix = prefix;
+        this.folderPath = folderPath;
+        this.pageSize = pageSize;
+        this.request = request.toBuilder().maxKeys(Math.min(pageSize, 1000)).build();
+        this.response = s3Client.listObjectsV2(this.request);
+    }
+
+    /**
+     * Streams up to {@code pageSize} entries into the sink and returns the
+     * cursor for the next page, or null when the folder is exhausted.
+     */
+    public String writeTo(Sink sink) throws IOException {
+        int remaining = pageSize;
+        while (true) {
+            for (S3Object object : response.contents()) {
+                if (!object.key().endsWith("/") && !object.key().equals(prefix)) {
+                    String name = object.key().substring(object.key().lastIndexOf('/') + 1);
+                    sink.file(object.key(), name, logicalSizes.of(object.key(), object.size()),
+                            object.lastModified());
+                }
+            }
+            for (CommonPrefix commonPrefix : response.commonPrefixes()) {
+                String folderName = commonPrefix.prefix().substring(prefix.length());
+                if (folderName.endsWith("/")) {
+                    folderName = folderName.substring(0, folderName.length() - 1);
+                }
+                if (!folderName.isEmpty() && !folderName.contains("/")) {
+                    sink.folder(folderName, folderPath != null && !folderPath.isEmpty()
+                            ? folderPath + "/" + folderName : folderName);
+                }
+            }
+            remaining -= response.contents().size() + response.commonPrefixes().size();
+
+            if (!Boolean.TRUE.equals(response.isTruncated())) {
+                return null;
+            }
+            if (remaining <= 0) {
+                return encodeCursor(response.nextContinuationToken());
+            }
+            request = request.toBuilder()
+                    .continuationToken(response.nextContinuationToken())
+                    .maxKeys(Math.min(remaining, 1000))
+                    .build();
+            response = s3Client.listObjectsV2(request);
+        }
+    }
+
+    static String encodeCursor(String continuationToken) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(continuationToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid listing cursor", e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.cloudbox.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of folder listings keyed by user and folder path, so repeat
+ * browsing does not go back to S3. Caffeine's W-TinyLFU policy keeps
+ * frequently revisited folders resident; the TTL bounds how long changes
+ * made outside this service can stay invisible. S3Service invalidates the
+ * affected entries on every write it performs.
+ */
+@Component
+public class FolderListingCache {
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final AsyncCache<String, S3Service.Listing> listings;
+
+    public FolderListingCache(@Value("${cloudbox.list-cache.max-entries:10000}") long maxEntries,
+                              @Value("${cloudbox.list-cache.ttl-ms:60000}") long ttlMs) {
+        this.listings = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(Duration.ofMillis(ttlMs))
+                .recordStats()
+                .buildAsync();
+    }
+
+    /**
+     * Returns the cached listing, or starts {@code loader} and caches its
+     * future. Concurrent misses for the same folder share one load, and a
+     * failed load is dropped from the cache automatically.
+     */
+    public CompletableFuture<S3Service.Listing> get(String userId, String folderPath,
+                                                    Supplier<CompletableFuture<S3Service.Listing>> loader) {
+        return listings.get(cacheKey(userId, folderPath), (key, executor) -> loader.get());
+    }
+
+    public void invalidate(String userId, String folderPath) {
+        // Also drops an in-flight load, so a listing started before the
+        // write cannot be cached after it.
+        listings.synchronous().invalidate(cacheKey(userId, folderPath));
+    }
+
+    /**
+     * Invalidates a folder, its parent (whose subfolder list changes) and
+     * every cached descendant.
+     */
+    public void invalidateTree(String userId, String folderPath) {
+        String folderKey = cacheKey(userId, folderPath);
+        String descendantPrefix = normalize(folderPath).isEmpty() ? folderKey : folderKey + "/";
+        listings.asMap().keySet().removeIf(key -> key.equals(folderKey) || key.startsWith(descendantPrefix));
+        invalidate(userId, parentOf(folderPath));
+    }
+
+    public CacheStats stats() {
+        return listings.synchronous().stats();
+    }
+
+    public long size() {
+        return listings.synchronous().estimatedSize();
+    }
+
+    static String parentOf(String folderPath) {
+        String path = normalize(folderPath);
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "";
+    }
+
+    private static String cacheKey(String userId, String folderPath) {
+        return userId + KEY_SEPARATOR + normalize(folderPath);
+    }
+
+    private static String normalize(String folderPath) {
+        return folderPath != null ? folderPath : "";
+    }
+}
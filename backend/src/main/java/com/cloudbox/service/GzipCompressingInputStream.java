@@ -0,0 +1,103 @@
+package com.cloudbox.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reads the gzip encoding of another stream. This is the pull-based
+ * counterpart of GZIPOutputStream: compression happens as the consumer reads,
+ * so it can feed the multipart upload pipeline directly without buffering the
+ * compressed object or running a separate producer thread.
+ */
+final class GzipCompressingInputStream extends InputStream {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final InputStream source;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[64 * 1024];
+    private final byte[] output = new byte[64 * 1024];
+    private int outputPosition;
+    private int outputLimit;
+    private long bytesRead;
+    private boolean trailerWritten;
+
+    GzipCompressingInputStream(InputStream source, int level) {
+        this.source = source;
+        this.deflater = new Deflater(level, true);
+        System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+        outputLimit = HEADER.length;
+    }
+
+    /**
+     * Number of uncompressed bytes consumed from the source so far.
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (outputPosition == outputLimit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, count);
+        outputPosition += count;
+        return count;
+    }
+
+    private boolean fill() throws IOException {
+        outputPosition = 0;
+        outputLimit = 0;
+        if (!deflater.finished()) {
+            if (deflater.needsInput()) {
+                int read = source.read(input);
+                if (read == -1) {
+                    deflater.finish();
+                } else if (read > 0) {
+                    crc.update(input, 0, read);
+                    bytesRead += read;
+                    deflater.setInput(input, 0, read);
+                }
+            }
+            outputLimit = deflater.deflate(output, 0, output.length);
+            return true;
+        }
+        if (!trailerWritten) {
+            writeIntLE((int) crc.getValue(), 0);
+            writeIntLE((int) bytesRead, 4);
+            outputLimit = 8;
+            trailerWritten = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void writeIntLE(int value, int offset) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >> 8);
+        output[offset + 2] = (byte) (value >> 16);
+        output[offset + 3] = (byte) (value >> 24);
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        source.close();
+    }
+}
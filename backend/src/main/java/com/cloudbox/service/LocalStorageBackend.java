@@ -0,0 +1,441 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps objects as files on local disk, for on-prem nodes and test
+ * environments that have no S3.
+ *
+ * Each object is one file, named by a hash of its key so that any key maps
+ * to a valid path. The keys themselves, with sizes, ETags and metadata, are
+ * held in a sorted in-memory index persisted as an append-only journal, which
+ * is what answers stats and listings. Writes go to a temporary file that is
+ * moved into place before the index is updated, so readers never see a
+ * partial object.
+ *
+ * This is the store behind the S3 emulation layer, not a replacement for
+ * S3Service: the services keep issuing S3 calls, which LocalStorageConfig's
+ * clients serve from here.
+ *
+ * Reads of objects up to {@code cloudbox.storage.local.mmap-max-bytes} are
+ * served from a memory mapping; larger ones are read through the file's
+ * channel. Downloads skip the emulated GetObject and the download cache:
+ * {@link #localFile} lets them read the stored file directly, though still
+ * through a buffer into the servlet stream.
+ *
+ * ETags identify a version of an object rather than hashing its content,
+ * so writes do not pay for a digest.
+ */
+@Component
+@ConditionalOnProperty(name = "cloudbox.storage.backend", havingValue = "local")
+public class LocalStorageBackend implements StorageBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalStorageBackend.class);
+
+    @Value("${cloudbox.storage.local.root:data/objects}")
+    private String rootDir;
+
+    @Value("${cloudbox.storage.local.mmap-max-bytes:262144}")
+    private long mmapMaxBytes;
+
+    @Value("${cloudbox.storage.local.compact-min-records:100000}")
+    private long compactMinRecords;
+
+    private final ConcurrentSkipListMap<String, StoredObject> index = new ConcurrentSkipListMap<>();
+
+    // Serializes moving files into place with the journal and index updates
+    private final Object writeLock = new Object();
+
+    private Path dataDir;
+    private Path tempDir;
+    private AppendOnlyJournal journal;
+    private long journalRecords;
+
+    @PostConstruct
+    void open() throws IOException {
+        Path root = Paths.get(rootDir);
+        dataDir = Files.createDirectories(root.resolve("data"));
+        tempDir = root.resolve("tmp");
+        // Whatever is left in here was being written when the process died
+        FileSystemUtils.deleteRecursively(tempDir);
+        Files.createDirectories(tempDir);
+
+        synchronized (writeLock) {
+            journal = new AppendOnlyJournal(root.resolve("objects.log"));
+            journal.replay(this::apply);
+            compact();
+        }
+        log.info("Loaded {} objects from {}", index.size(), root.toAbsolutePath());
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        synchronized (writeLock) {
+            journal.close();
+        }
+    }
+
+    @Override
+    public String put(String key, InputStream in, long length, String contentType, Map<String, String> metadata)
+            throws IOException {
+        Path temp = Files.createTempFile(tempDir, "put-", null);
+        try {
+            long written;
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.WRITE)) {
+                written = in.transferTo(out);
+            }
+            if (length >= 0 && written != length) {
+                throw new IOException("Received " + written + " bytes for " + key + ", expected " + length);
+            }
+            StoredObject object = new StoredObject(key, written, newEtag(), Instant.now(), contentType,
+                    metadata != null ? Map.copyOf(metadata) : Map.of());
+            publish(temp, object);
+            return object.etag();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public StoredObject stat(String key) {
+        return index.get(key);
+    }
+
+    @Override
+    public InputStream get(String key, long start, long end) throws IOException {
+        StoredObject object = index.get(key);
+        if (object == null) {
+            throw new NoSuchFileException(key);
+        }
+        end = Math.min(end, object.size() - 1);
+        if (start > end) {
+            return InputStream.nullInputStream();
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(fileFor(key), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Deleted since the lookup
+            throw new NoSuchFileException(key);
+        }
+        if (object.size() > mmapMaxBytes) {
+            return new ChannelRangeInputStream(channel, start, end + 1);
+        }
+        try (channel) {
+            // The mapping stays valid after the channel is closed
+            return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start + 1));
+        }
+    }
+
+    @Override
+    public ListPage list(String prefix, String delimiter, String startAfter, int maxKeys) {
+        boolean rollUp = delimiter != null && !delimiter.isEmpty();
+        String cursor = prefix;
+        boolean inclusive = true;
+        if (startAfter != null && startAfter.compareTo(prefix) > 0) {
+            cursor = startAfter;
+            inclusive = false;
+            if (rollUp && startAfter.startsWith(prefix) && startAfter.length() > prefix.length()
+                    && startAfter.endsWith(delimiter)) {
+                // The previous page ended on a common prefix; skip everything under it
+                cursor = successor(startAfter);
+                inclusive = true;
+            }
+        }
+
+        List<StoredObject> objects = new ArrayList<>();
+        List<String> commonPrefixes = new ArrayList<>();
+        String last = null;
+        while (true) {
+            Map.Entry<String, StoredObject> entry = inclusive ? index.ceilingEntry(cursor) : index.higherEntry(cursor);
+            if (entry == null || !entry.getKey().startsWith(prefix)) {
+                return new ListPage(objects, commonPrefixes, null);
+            }
+            if (objects.size() + commonPrefixes.size() == maxKeys) {
+                return new ListPage(objects, commonPrefixes, last);
+            }
+
+            String key = entry.getKey();
+            int split = rollUp ? key.indexOf(delimiter, prefix.length()) : -1;
+            if (split >= 0) {
+                last = key.substring(0, split + delimiter.length());
+                commonPrefixes.add(last);
+                cursor = successor(last);
+                inclusive = true;
+            } else {
+                objects.add(entry.getValue());
+                last = key;
+                cursor = key;
+                inclusive = false;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        synchronized (writeLock) {
+            if (index.remove(key) == null) {
+                return false;
+            }
+            write("D", key);
+            Files.deleteIfExists(fileFor(key));
+            return true;
+        }
+    }
+
+    @Override
+    public String copy(String sourceKey, String targetKey) throws IOException {
+        StoredObject source = index.get(sourceKey);
+        if (source == null) {
+            throw new NoSuchFileException(sourceKey);
+        }
+        Path temp = Files.createTempFile(tempDir, "copy-", null);
+        try {
+            try (FileChannel in = FileChannel.open(fileFor(sourceKey), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // Lets the kernel copy the bytes without passing them through the heap
+                long position = 0;
+                while (position < source.size()) {
+                    long n = in.transferTo(position, source.size() - position, out);
+                    if (n == 0 && position >= in.size()) {
+                        throw new EOFException("Object " + sourceKey + " is shorter than recorded");
+                    }
+                    position += n;
+                }
+            } catch (NoSuchFileException e) {
+                throw new NoSuchFileException(sourceKey);
+            }
+            // Same bytes, so the ETag carries over as it does on S3
+            StoredObject copy = new StoredObject(targetKey, source.size(), source.etag(), Instant.now(),
+                    source.contentType(), source.metadata());
+            publish(temp, copy);
+            return copy.etag();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public Path localFile(String key) {
+        return index.containsKey(key) ? fileFor(key) : null;
+    }
+
+    @Scheduled(fixedDelayString = "${cloudbox.storage.local.compact-check-interval-ms:600000}")
+    public void compactIfNeeded() {
+        synchronized (writeLock) {
+            try {
+                if (journalRecords > Math.max(compactMinRecords, 2L * index.size())) {
+                    compact();
+                }
+            } catch (IOException e) {
+                log.warn("Object journal compaction failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void publish(Path temp, StoredObject object) throws IOException {
+        Path file = fileFor(object.key());
+        Files.createDirectories(file.getParent());
+        synchronized (writeLock) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            write(record(object));
+            index.put(object.key(), object);
+        }
+    }
+
+    private void write(String... record) {
+        journal.append(record);
+        journalRecords++;
+    }
+
+    private void compact() throws IOException {
+        List<String[]> records = new ArrayList<>(index.size());
+        for (StoredObject object : index.values()) {
+            records.add(record(object));
+        }
+        journal.rewrite(records);
+        journalRecords = records.size();
+    }
+
+    private static String[] record(StoredObject object) {
+        List<String> fields = new ArrayList<>(6 + 2 * object.metadata().size());
+        fields.add("P");
+        fields.add(object.key());
+        fields.add(Long.toString(object.size()));
+        fields.add(object.etag());
+        fields.add(Long.toString(object.lastModified().toEpochMilli()));
+        fields.add(object.contentType() != null ? object.contentType() : "");
+        for (Map.Entry<String, String> entry : object.metadata().entrySet()) {
+            fields.add(entry.getKey());
+            fields.add(entry.getValue());
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    private void apply(String[] record) {
+        switch (record[0]) {
+            case "P" -> {
+                if (record.length < 6 || record.length % 2 != 0) {
+                    throw new IllegalArgumentException("Truncated record");
+                }
+                Map<String, String> metadata = new LinkedHashMap<>();
+                for (int i = 6; i < record.length; i += 2) {
+                    metadata.put(record[i], record[i + 1]);
+                }
+                index.put(record[1], new StoredObject(record[1], Long.parseLong(record[2]), record[3],
+                        Instant.ofEpochMilli(Long.parseLong(record[4])),
+                        record[5].isEmpty() ? null : record[5], Map.copyOf(metadata)));
+            }
+            case "D" -> index.remove(record[1]);
+            default -> throw new IllegalArgumentException("Unknown record type " + record[0]);
+        }
+        journalRecords++;
+    }
+
+    private Path fileFor(String key) {
+        String name;
+        try {
+            name = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // Fans out over 256 directories so none grows too large to scan
+        return dataDir.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private static String newEtag() {
+        return "\"" + UUID.randomUUID().toString().replace("-", "") + "\"";
+    }
+
+    /**
+     * The smallest string greater than every string starting with {@code prefix}.
+     */
+    private static String successor(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    /**
+     * Reads a byte range through positional reads on the channel, which it
+     * closes when done.
+     */
+    private static final class ChannelRangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        ChannelRangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) {
+                return -1;
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class MappedInputStream extends InputStream {
+
+        private final MappedByteBuffer buffer;
+
+        MappedInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            int n = buffer.remaining();
+            Channels.newChannel(out).write(buffer);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.cloudbox.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Translates the size S3 reports for an object into the size of the file the
+ * user uploaded. The two differ for deduplicated references, which are stored
+ * empty, and for compressed objects. Listings, quota accounting and
+ * reconciliation all go through here so they agree.
+ */
+@Component
+public class LogicalSizes {
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    public long of(String s3Key, long storedSize) {
+        return storageCodec.logicalSize(s3Key, contentStore.logicalSize(s3Key, storedSize));
+    }
+}
@@ -0,0 +1,519 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Local index of every user's file tree: one node per file and folder with a
+ * stable numeric ID, a parent pointer, logical size, ETag and timestamps.
+ * Browsing and ID lookups are answered from memory instead of S3 LIST calls.
+ *
+ * S3Service records each mutation it makes. A user's tree is imported from
+ * the bucket the first time it is needed and re-synced by the periodic usage
+ * reconciliation, which also picks up changes made outside this service.
+ * State is persisted as an append-only journal that is compacted into a
+ * snapshot on startup and whenever it has grown well past the live state.
+ *
+ * Node keys are S3 keys; folders use their prefix, ending in "/". IDs are
+ * {@link S3Service#stableId} of the key, the same IDs listings always had.
+ */
+@Component
+public class MetadataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataStore.class);
+
+    private static final String FILE = "F";
+    private static final String FOLDER = "D";
+    private static final String REMOVE = "R";
+    private static final String REMOVE_TREE = "T";
+    private static final String INDEXED = "I";
+
+    @Value("${cloudbox.metadata.journal-path:data/metadata.log}")
+    private String journalPath;
+
+    @Value("${cloudbox.metadata.compact-min-records:100000}")
+    private long compactMinRecords;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final Map<Long, Map<String, Long>> children = new HashMap<>();
+    private final Set<String> indexedUsers = new HashSet<>();
+    private final Map<String, Long> versions = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private AppendOnlyJournal journal;
+    private long journalRecords;
+
+    @PostConstruct
+    void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            journal = new AppendOnlyJournal(Paths.get(journalPath));
+            journal.replay(this::apply);
+            compact();
+            log.info("Loaded metadata for {} nodes across {} users", nodes.size(), indexedUsers.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            journal.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Registers a listener for file additions and removals, including those
+     * applied by {@link #sync}. Journal replay at startup is not reported.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isIndexed(String userId) {
+        lock.readLock().lock();
+        try {
+            return indexedUsers.contains(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Collection<String> indexedUsers() {
+        lock.readLock().lock();
+        try {
+            return List.copyOf(indexedUsers);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts mutations to a user's tree, so a sync computed from a listing
+     * taken earlier can tell whether it is still safe to apply.
+     */
+    public long getVersion(String userId) {
+        lock.readLock().lock();
+        try {
+            return versions.getOrDefault(userId, 0L);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void putFile(String key, long size, String etag, long modifiedAt) {
+        write(FILE, key, Long.toString(size), etag != null ? etag : "", Long.toString(modifiedAt));
+    }
+
+    public void putFolder(String prefix, long createdAt) {
+        write(FOLDER, prefix, Long.toString(createdAt));
+    }
+
+    /**
+     * Removes a file or folder marker. Returns whether it was present, so
+     * callers racing to delete the same key can tell which one removed it.
+     */
+    public boolean remove(String key) {
+        lock.writeLock().lock();
+        try {
+            Node node = nodes.get(S3Service.stableId(key));
+            if (node == null || node.parentId() == 0 || (node.folder() && !node.explicit())) {
+                return false;
+            }
+            write(REMOVE, key);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a folder and everything below it. For a user's root prefix the
+     * root itself is kept.
+     */
+    public void removeTree(String prefix) {
+        write(REMOVE_TREE, prefix);
+    }
+
+    /**
+     * Replaces a user's tree with the contents of a full bucket listing, and
+     * marks the user as indexed. Returns false without changing anything if
+     * the tree was modified after {@code expectedVersion} was read, since the
+     * listing may then be missing that change.
+     */
+    public boolean sync(String userId, long expectedVersion, Collection<Entry> listing) {
+        lock.writeLock().lock();
+        try {
+            if (versions.getOrDefault(userId, 0L) != expectedVersion) {
+                return false;
+            }
+
+            Set<String> listed = new HashSet<>(listing.size() * 2);
+            for (Entry entry : listing) {
+                listed.add(entry.key());
+                Node existing = nodes.get(S3Service.stableId(entry.key()));
+                if (entry.key().endsWith("/")) {
+                    if (existing == null || !existing.explicit()) {
+                        append(FOLDER, entry.key(), Long.toString(entry.modifiedAt()));
+                        applyFolder(entry.key(), entry.modifiedAt(), true);
+                    }
+                } else if (existing == null || existing.size() != entry.size()
+                        || !String.valueOf(entry.etag()).equals(String.valueOf(existing.etag()))) {
+                    String etag = entry.etag() != null ? entry.etag() : "";
+                    append(FILE, entry.key(), Long.toString(entry.size()), etag, Long.toString(entry.modifiedAt()));
+                    applyFile(entry.key(), entry.size(), entry.etag(), entry.modifiedAt());
+                }
+            }
+
+            List<String> stale = new ArrayList<>();
+            Node root = nodes.get(S3Service.stableId(userId + "/"));
+            if (root != null) {
+                collectDescendants(root.id(), node -> {
+                    if ((!node.folder() || node.explicit()) && !listed.contains(node.key())) {
+                        stale.add(node.key());
+                    }
+                });
+            }
+            for (String key : stale) {
+                append(REMOVE, key);
+                applyRemove(key);
+            }
+
+            if (indexedUsers.add(userId)) {
+                append(INDEXED, userId);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Node get(long id) {
+        lock.readLock().lock();
+        try {
+            return nodes.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Node getByKey(String key) {
+        return get(S3Service.stableId(key));
+    }
+
+    /**
+     * Lists the direct children of a folder, folders and files each sorted by
+     * name. Returns null if the folder is unknown.
+     */
+    public FolderContents list(String prefix) {
+        lock.readLock().lock();
+        try {
+            Node folder = nodes.get(S3Service.stableId(prefix));
+            if (folder == null || !folder.folder()) {
+                return null;
+            }
+            List<Node> files = new ArrayList<>();
+            List<Node> folders = new ArrayList<>();
+            for (Long childId : children.getOrDefault(folder.id(), Map.of()).values()) {
+                Node child = nodes.get(childId);
+                (child.folder() ? folders : files).add(child);
+            }
+            files.sort(Comparator.comparing(Node::name));
+            folders.sort(Comparator.comparing(Node::name));
+            return new FolderContents(folder, files, folders);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every file in a user's drive. Used to build derived indexes
+     * without listing the bucket.
+     */
+    public void forEachFile(String userId, Consumer<Node> visitor) {
+        lock.readLock().lock();
+        try {
+            Node root = nodes.get(S3Service.stableId(userId + "/"));
+            if (root != null) {
+                collectDescendants(root.id(), node -> {
+                    if (!node.folder()) {
+                        visitor.accept(node);
+                    }
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${cloudbox.metadata.compact-check-interval-ms:600000}")
+    public void compactIfNeeded() {
+        lock.writeLock().lock();
+        try {
+            if (journalRecords > Math.max(compactMinRecords, 2L * nodes.size())) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.warn("Metadata journal compaction failed: {}", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void write(String... record) {
+        lock.writeLock().lock();
+        try {
+            append(record);
+            apply(record);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(String... record) {
+        journal.append(record);
+        journalRecords++;
+    }
+
+    private void apply(String[] record) {
+        switch (record[0]) {
+            case FILE -> {
+                requireFields(record, 5);
+                applyFile(record[1], Long.parseLong(record[2]), record[3].isEmpty() ? null : record[3],
+                        Long.parseLong(record[4]));
+            }
+            case FOLDER -> {
+                requireFields(record, 3);
+                applyFolder(record[1], Long.parseLong(record[2]), true);
+            }
+            case REMOVE -> {
+                requireFields(record, 2);
+                applyRemove(record[1]);
+            }
+            case REMOVE_TREE -> {
+                requireFields(record, 2);
+                applyRemoveTree(record[1]);
+            }
+            case INDEXED -> {
+                requireFields(record, 2);
+                indexedUsers.add(record[1]);
+            }
+            default -> throw new IllegalArgumentException("Unknown record type " + record[0]);
+        }
+    }
+
+    private static void requireFields(String[] record, int count) {
+        if (record.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " fields");
+        }
+    }
+
+    private void applyFile(String key, long size, String etag, long modifiedAt) {
+        long parentId = applyFolder(key.substring(0, key.lastIndexOf('/') + 1), modifiedAt, false);
+        Node existing = nodes.get(S3Service.stableId(key));
+        long createdAt = existing != null ? existing.createdAt() : modifiedAt;
+        link(new Node(S3Service.stableId(key), parentId, ownerOf(key), key, nameOf(key), false, false,
+                size, etag, createdAt, modifiedAt));
+    }
+
+    /**
+     * Ensures the folder and its ancestors exist and returns its ID. Folders
+     * without a marker object are implicit and vanish with their last child,
+     * as they do in S3.
+     */
+    private long applyFolder(String prefix, long createdAt, boolean explicit) {
+        long id = S3Service.stableId(prefix);
+        Node existing = nodes.get(id);
+        if (existing != null) {
+            if (explicit && !existing.explicit()) {
+                nodes.put(id, existing.withExplicit(true));
+            }
+            return id;
+        }
+
+        String trimmed = prefix.substring(0, prefix.length() - 1);
+        int slash = trimmed.lastIndexOf('/');
+        boolean root = slash < 0;
+        long parentId = root ? 0 : applyFolder(trimmed.substring(0, slash + 1), createdAt, false);
+        link(new Node(id, parentId, ownerOf(prefix), prefix, root ? "" : trimmed.substring(slash + 1), true,
+                explicit || root, 0, null, createdAt, createdAt));
+        return id;
+    }
+
+    private void applyRemove(String key) {
+        Node node = nodes.get(S3Service.stableId(key));
+        if (node == null || node.parentId() == 0) {
+            // User roots always exist
+            return;
+        }
+        if (node.folder() && !children.getOrDefault(node.id(), Map.of()).isEmpty()) {
+            // A marker delete; the folder lives on implicitly while it has children
+            nodes.put(node.id(), node.withExplicit(false));
+            return;
+        }
+        nodes.remove(node.id());
+        children.remove(node.id());
+        unlink(node);
+        if (!node.folder()) {
+            listeners.forEach(listener -> listener.fileRemoved(node));
+        }
+    }
+
+    private void applyRemoveTree(String prefix) {
+        Node folder = nodes.get(S3Service.stableId(prefix));
+        if (folder == null) {
+            return;
+        }
+        List<Node> descendants = new ArrayList<>();
+        collectDescendants(folder.id(), descendants::add);
+        for (Node node : descendants) {
+            nodes.remove(node.id());
+            children.remove(node.id());
+            if (!node.folder()) {
+                listeners.forEach(listener -> listener.fileRemoved(node));
+            }
+        }
+        versions.merge(folder.userId(), 1L, Long::sum);
+        children.remove(folder.id());
+        if (folder.parentId() != 0) {
+            nodes.remove(folder.id());
+            unlink(folder);
+        }
+    }
+
+    private void link(Node node) {
+        nodes.put(node.id(), node);
+        if (node.parentId() != 0) {
+            children.computeIfAbsent(node.parentId(), id -> new HashMap<>()).put(node.name(), node.id());
+        }
+        versions.merge(node.userId(), 1L, Long::sum);
+        if (!node.folder()) {
+            listeners.forEach(listener -> listener.fileAdded(node));
+        }
+    }
+
+    private void unlink(Node node) {
+        versions.merge(node.userId(), 1L, Long::sum);
+        Map<String, Long> siblings = children.get(node.parentId());
+        if (siblings == null) {
+            return;
+        }
+        siblings.remove(node.name());
+        Node parent = nodes.get(node.parentId());
+        if (siblings.isEmpty() && parent != null && !parent.explicit()) {
+            children.remove(parent.id());
+            nodes.remove(parent.id());
+            unlink(parent);
+        }
+    }
+
+    private void collectDescendants(long folderId, Consumer<Node> visitor) {
+        Deque<Long> pending = new ArrayDeque<>();
+        pending.push(folderId);
+        while (!pending.isEmpty()) {
+            for (Long childId : children.getOrDefault(pending.pop(), Map.of()).values()) {
+                Node child = nodes.get(childId);
+                visitor.accept(child);
+                if (child.folder()) {
+                    pending.push(childId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal as a snapshot of the live state. Implicit folders
+     * are not written; they are recreated from the files below them.
+     */
+    private void compact() throws IOException {
+        List<String[]> snapshot = new ArrayList<>(nodes.size() + indexedUsers.size());
+        for (String userId : indexedUsers) {
+            snapshot.add(new String[] {INDEXED, userId});
+        }
+        for (Node node : nodes.values()) {
+            if (node.folder()) {
+                if (node.explicit()) {
+                    snapshot.add(new String[] {FOLDER, node.key(), Long.toString(node.createdAt())});
+                }
+            } else {
+                snapshot.add(new String[] {FILE, node.key(), Long.toString(node.size()),
+                        node.etag() != null ? node.etag() : "", Long.toString(node.modifiedAt())});
+            }
+        }
+        journal.rewrite(snapshot);
+        journalRecords = snapshot.size();
+    }
+
+    private static String ownerOf(String key) {
+        return key.substring(0, key.indexOf('/'));
+    }
+
+    private static String nameOf(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * One file or folder. {@code explicit} is true for folders backed by a
+     * marker object (and for user roots), which outlive their last child.
+     */
+    public record Node(long id, long parentId, String userId, String key, String name, boolean folder,
+                       boolean explicit, long size, String etag, long createdAt, long modifiedAt) {
+
+        /**
+         * The folder's path relative to the user's root, as the API uses it.
+         */
+        public String path() {
+            String relative = key.substring(userId.length() + 1);
+            return relative.endsWith("/") ? relative.substring(0, relative.length() - 1) : relative;
+        }
+
+        Node withExplicit(boolean marker) {
+            return new Node(id, parentId, userId, key, name, folder, marker, size, etag, createdAt, modifiedAt);
+        }
+    }
+
+    /**
+     * Notified under the index's write lock, so implementations must be quick
+     * and must not call back into the index.
+     */
+    public interface Listener {
+        void fileAdded(Node node);
+
+        void fileRemoved(Node node);
+    }
+
+    public record FolderContents(Node folder, List<Node> files, List<Node> folders) {
+    }
+
+    /**
+     * One object from a bucket listing, fed to {@link #sync}.
+     */
+    public record Entry(String key, long size, String etag, long modifiedAt) {
+    }
+}
@@ -0,0 +1,504 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves and renames files and folders with server-side copies, so no bytes
+ * pass through this service. Objects are copied with CopyObject, or with
+ * UploadPartCopy above the single-copy limit, on a bounded pool one listing
+ * page at a time; each page's sources are then removed with one
+ * DeleteObjects call.
+ *
+ * Folder moves are recorded in a journal before they start and marked done
+ * when they finish. Since sources are only deleted once copied, re-running a
+ * move lists exactly what is left, so unfinished moves are resumed on startup.
+ */
+@Service
+public class MoveService {
+
+    private static final Logger log = LoggerFactory.getLogger(MoveService.class);
+
+    private static final int MAX_KEYS_PER_BATCH = 1000;
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    // CopyObject refuses sources larger than this
+    private static final long MAX_SINGLE_COPY_BYTES = 5L * 1024 * 1024 * 1024;
+
+    private static final Pattern UPLOAD_PREFIX = Pattern.compile(
+            "^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}_");
+
+    private static final String STARTED = "S";
+    private static final String FINISHED = "X";
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private S3AsyncClient s3AsyncClient;
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    private LogicalSizes logicalSizes;
+
+    @Autowired
+    private MetadataStore metadataStore;
+
+    @Autowired
+    private FolderListingCache folderListingCache;
+
+    @Autowired
+    private DownloadCache downloadCache;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    @Qualifier("copyExecutor")
+    private ExecutorService copyExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.move.journal-path:data/move-jobs.log}")
+    private String journalPath;
+
+    @Value("${cloudbox.move.copy-part-size:536870912}")
+    private long copyPartSize;
+
+    private final Map<String, MoveJob> pendingJobs = new LinkedHashMap<>();
+    private final Map<String, MoveJob> activeMoves = new ConcurrentHashMap<>();
+    private AppendOnlyJournal journal;
+
+    @PostConstruct
+    synchronized void open() throws IOException {
+        journal = new AppendOnlyJournal(Paths.get(journalPath));
+        journal.replay(fields -> {
+            if (fields.length == 5 && STARTED.equals(fields[0])) {
+                pendingJobs.put(fields[1], new MoveJob(fields[1], fields[2], fields[3], fields[4]));
+            } else if (fields.length == 2 && FINISHED.equals(fields[0])) {
+                pendingJobs.remove(fields[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown record type");
+            }
+        });
+
+        List<String[]> live = new ArrayList<>(pendingJobs.size());
+        for (MoveJob job : pendingJobs.values()) {
+            live.add(new String[] {STARTED, job.id(), job.userId(), job.sourcePrefix(), job.targetPrefix()});
+        }
+        journal.rewrite(live);
+    }
+
+    @PreDestroy
+    synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Picks up folder moves that were interrupted by a shutdown, in the
+     * background so startup is not held up.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePendingMoves() {
+        List<MoveJob> jobs;
+        synchronized (this) {
+            jobs = List.copyOf(pendingJobs.values());
+        }
+        if (jobs.isEmpty()) {
+            return;
+        }
+        Thread resumer = new Thread(() -> {
+            for (MoveJob job : jobs) {
+                log.info("Resuming move of {} to {}", job.sourcePrefix(), job.targetPrefix());
+                try {
+                    MoveResult result = run(job);
+                    if (!result.complete()) {
+                        log.warn("Resumed move of {} left {} objects behind", job.sourcePrefix(), result.failed());
+                    }
+                } catch (Exception e) {
+                    log.warn("Failed to resume move of {}: {}", job.sourcePrefix(), e.getMessage());
+                }
+            }
+        }, "move-resume");
+        resumer.setDaemon(true);
+        resumer.start();
+    }
+
+    /**
+     * Moves a single file into {@code targetFolderPath} (null keeps its
+     * folder) under {@code newName} (null keeps its name). Returns the new key.
+     */
+    public String moveFile(String userId, String s3Key, String targetFolderPath, String newName) {
+        String userPrefix = userId + "/";
+        if (!s3Key.startsWith(userPrefix) || s3Key.endsWith("/")) {
+            throw new IllegalArgumentException("Not a file of this user: " + s3Key);
+        }
+        String currentName = s3Key.substring(s3Key.lastIndexOf('/') + 1);
+        String folderPrefix = targetFolderPath == null ? s3Key.substring(0, s3Key.lastIndexOf('/') + 1)
+                : targetFolderPath.isEmpty() ? userPrefix : userPrefix + targetFolderPath + "/";
+        String targetKey = folderPrefix + targetName(currentName, newName);
+        if (targetKey.equals(s3Key)) {
+            return s3Key;
+        }
+
+        HeadObjectResponse head;
+        try {
+            head = s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(s3Key).build());
+        } catch (NoSuchKeyException e) {
+            throw new IllegalArgumentException("File not found: " + s3Key);
+        }
+
+        String etag = copy(s3Key, targetKey, head.contentLength());
+        recordCopy(s3Key, targetKey);
+        s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(s3Key).build());
+        recordDeleted(List.of(s3Key));
+
+        metadataStore.putFile(targetKey, logicalSizes.of(targetKey, head.contentLength()), etag,
+                System.currentTimeMillis());
+        folderListingCache.invalidate(userId, folderPathOf(userId, s3Key));
+        folderListingCache.invalidate(userId, folderPathOf(userId, targetKey));
+        return targetKey;
+    }
+
+    /**
+     * Moves everything under {@code sourcePath} to {@code targetPath}, both
+     * relative to the user's root. A rename is a move within the same parent.
+     * The target must not exist yet, unless this repeats an unfinished move.
+     */
+    public MoveResult moveFolder(String userId, String sourcePath, String targetPath) {
+        if (sourcePath == null || sourcePath.isEmpty() || targetPath == null || targetPath.isEmpty()) {
+            throw new IllegalArgumentException("Source and target folders are required");
+        }
+        String sourcePrefix = userId + "/" + sourcePath + "/";
+        String targetPrefix = userId + "/" + targetPath + "/";
+        if (targetPrefix.startsWith(sourcePrefix)) {
+            throw new IllegalArgumentException("Cannot move a folder into itself");
+        }
+
+        MoveJob job = pendingJob(sourcePrefix, targetPrefix);
+        if (job == null) {
+            if (isEmpty(sourcePrefix)) {
+                throw new IllegalArgumentException("Folder not found: " + sourcePath);
+            }
+            if (!isEmpty(targetPrefix)) {
+                throw new IllegalArgumentException("Target folder already exists: " + targetPath);
+            }
+            job = new MoveJob(UUID.randomUUID().toString(), userId, sourcePrefix, targetPrefix);
+            synchronized (this) {
+                journal.append(STARTED, job.id(), userId, sourcePrefix, targetPrefix);
+                pendingJobs.put(job.id(), job);
+            }
+        }
+        return run(job);
+    }
+
+    private MoveResult run(MoveJob job) {
+        if (activeMoves.putIfAbsent(job.sourcePrefix(), job) != null) {
+            throw new IllegalStateException("A move of this folder is already in progress");
+        }
+        MoveProgress progress = new MoveProgress();
+        try {
+            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(job.sourcePrefix())
+                    .maxKeys(MAX_KEYS_PER_BATCH)
+                    .build();
+            ListObjectsV2Response listResponse;
+
+            do {
+                listResponse = s3Client.listObjectsV2(listRequest);
+                if (!listResponse.contents().isEmpty()) {
+                    movePage(job, listResponse.contents(), progress);
+                }
+                listRequest = listRequest.toBuilder()
+                        .continuationToken(listResponse.nextContinuationToken())
+                        .build();
+            } while (listResponse.isTruncated());
+
+            if (progress.failed.get() == 0) {
+                metadataStore.removeTree(job.sourcePrefix());
+                synchronized (this) {
+                    journal.append(FINISHED, job.id());
+                    pendingJobs.remove(job.id());
+                }
+            }
+            log.debug("Moved {} objects from {} to {} ({} failed)",
+                    progress.moved.get(), job.sourcePrefix(), job.targetPrefix(), progress.failed.get());
+            return progress.toResult();
+        } finally {
+            activeMoves.remove(job.sourcePrefix(), job);
+            String sourcePath = folderPathOf(job.userId(), job.sourcePrefix());
+            String targetPath = folderPathOf(job.userId(), job.targetPrefix());
+            folderListingCache.invalidateTree(job.userId(), sourcePath);
+            folderListingCache.invalidate(job.userId(), FolderListingCache.parentOf(sourcePath));
+            folderListingCache.invalidateTree(job.userId(), targetPath);
+            folderListingCache.invalidate(job.userId(), FolderListingCache.parentOf(targetPath));
+            downloadCache.invalidatePrefix(job.sourcePrefix());
+        }
+    }
+
+    /**
+     * Copies one listing page concurrently, then deletes the sources that
+     * were copied in a single batch. A source is never deleted unless its
+     * copy succeeded.
+     */
+    private void movePage(MoveJob job, List<S3Object> objects, MoveProgress progress) {
+        Map<S3Object, CompletableFuture<String>> copies = new LinkedHashMap<>(objects.size() * 2);
+        for (S3Object object : objects) {
+            String targetKey = job.targetPrefix() + object.key().substring(job.sourcePrefix().length());
+            copies.put(object, CompletableFuture.supplyAsync(
+                    () -> copy(object.key(), targetKey, object.size()), copyExecutor));
+        }
+
+        Map<String, S3Object> copied = new HashMap<>(objects.size() * 2);
+        for (Map.Entry<S3Object, CompletableFuture<String>> copy : copies.entrySet()) {
+            S3Object object = copy.getKey();
+            String targetKey = job.targetPrefix() + object.key().substring(job.sourcePrefix().length());
+            try {
+                String etag = copy.getValue().join();
+                recordCopy(object.key(), targetKey);
+                if (targetKey.endsWith("/")) {
+                    metadataStore.putFolder(targetKey, object.lastModified().toEpochMilli());
+                } else {
+                    metadataStore.putFile(targetKey, logicalSizes.of(object.key(), object.size()), etag,
+                            object.lastModified().toEpochMilli());
+                }
+                copied.put(object.key(), object);
+            } catch (Exception e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                progress.recordFailure(object.key(), cause.getMessage());
+            }
+        }
+        if (copied.isEmpty()) {
+            return;
+        }
+
+        List<ObjectIdentifier> identifiers = new ArrayList<>(copied.size());
+        for (String key : copied.keySet()) {
+            identifiers.add(ObjectIdentifier.builder().key(key).build());
+        }
+        try {
+            DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucketName)
+                    .delete(Delete.builder().objects(identifiers).quiet(true).build())
+                    .build());
+            for (S3Error error : response.errors()) {
+                // Copied but still present; the next run copies it again
+                copied.remove(error.key());
+                progress.recordFailure(error.key(), error.code() + ": " + error.message());
+            }
+        } catch (Exception e) {
+            log.warn("DeleteObjects batch of {} moved keys failed: {}", identifiers.size(), e.getMessage());
+            for (String key : copied.keySet()) {
+                progress.recordFailure(key, e.getMessage());
+            }
+            return;
+        }
+
+        recordDeleted(copied.keySet());
+        progress.moved.addAndGet(copied.size());
+    }
+
+    /**
+     * Copies {@code sourceKey} to {@code targetKey} within the bucket and
+     * returns the new ETag.
+     */
+    private String copy(String sourceKey, String targetKey, long size) {
+        if (size > MAX_SINGLE_COPY_BYTES) {
+            return multipartCopy(sourceKey, targetKey, size);
+        }
+        CopyObjectResponse response = s3Client.copyObject(CopyObjectRequest.builder()
+                .sourceBucket(bucketName)
+                .sourceKey(sourceKey)
+                .destinationBucket(bucketName)
+                .destinationKey(targetKey)
+                .build());
+        return response.copyObjectResult().eTag();
+    }
+
+    /**
+     * Copies an object too large for CopyObject as a multipart upload whose
+     * parts are copied concurrently with UploadPartCopy.
+     */
+    private String multipartCopy(String sourceKey, String targetKey, long size) {
+        HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(sourceKey)
+                .build());
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(targetKey)
+                .contentType(head.contentType())
+                .metadata(head.metadata())
+                .build()).uploadId();
+
+        try {
+            long partSize = Math.max(copyPartSize, (size + 9999) / 10000);
+            List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+            int partNumber = 1;
+            for (long start = 0; start < size; start += partSize, partNumber++) {
+                long end = Math.min(start + partSize, size) - 1;
+                int number = partNumber;
+                parts.add(s3AsyncClient.uploadPartCopy(UploadPartCopyRequest.builder()
+                                .sourceBucket(bucketName)
+                                .sourceKey(sourceKey)
+                                .destinationBucket(bucketName)
+                                .destinationKey(targetKey)
+                                .uploadId(uploadId)
+                                .partNumber(number)
+                                .copySourceRange("bytes=" + start + "-" + end)
+                                .copySourceIfMatch(head.eTag())
+                                .build())
+                        .thenApply(response -> CompletedPart.builder()
+                                .partNumber(number)
+                                .eTag(response.copyPartResult().eTag())
+                                .build()));
+            }
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).join();
+
+            List<CompletedPart> completed = new ArrayList<>(parts.size());
+            for (CompletableFuture<CompletedPart> part : parts) {
+                completed.add(part.join());
+            }
+            return s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(targetKey)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build()).eTag();
+        } catch (RuntimeException e) {
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(targetKey)
+                        .uploadId(uploadId)
+                        .build());
+            } catch (Exception abortError) {
+                log.warn("Failed to abort multipart copy to {}: {}", targetKey, abortError.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Carries a copied object's local bookkeeping over to its new key. Must
+     * happen before the source is released, or a deduplicated blob could
+     * lose its last reference.
+     */
+    private void recordCopy(String sourceKey, String targetKey) {
+        contentStore.copyReference(sourceKey, targetKey);
+        storageCodec.recordCopy(sourceKey, targetKey);
+    }
+
+    private void recordDeleted(Collection<String> sourceKeys) {
+        contentStore.release(sourceKeys);
+        storageCodec.forget(sourceKeys);
+        // Thumbnails are keyed by the original key; the new one gets its own on demand
+        thumbnailService.deleteFor(sourceKeys);
+        for (String key : sourceKeys) {
+            metadataStore.remove(key);
+            downloadCache.invalidate(key);
+        }
+    }
+
+    private synchronized MoveJob pendingJob(String sourcePrefix, String targetPrefix) {
+        for (MoveJob job : pendingJobs.values()) {
+            if (job.sourcePrefix().equals(sourcePrefix) && job.targetPrefix().equals(targetPrefix)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private boolean isEmpty(String prefix) {
+        return s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .maxKeys(1)
+                .build()).contents().isEmpty();
+    }
+
+    /**
+     * Keeps the upload's unique prefix so the renamed key cannot collide.
+     */
+    private static String targetName(String currentName, String newName) {
+        if (newName == null || newName.isEmpty()) {
+            return currentName;
+        }
+        if (newName.contains("/")) {
+            throw new IllegalArgumentException("File names cannot contain '/'");
+        }
+        Matcher prefix = UPLOAD_PREFIX.matcher(currentName);
+        return (prefix.lookingAt() ? prefix.group() : UUID.randomUUID() + "_") + newName;
+    }
+
+    private static String folderPathOf(String userId, String key) {
+        String relative = key.substring(userId.length() + 1);
+        int slash = relative.lastIndexOf('/');
+        return slash >= 0 ? relative.substring(0, slash) : "";
+    }
+
+    public record MoveJob(String id, String userId, String sourcePrefix, String targetPrefix) {
+    }
+
+    private static final class MoveProgress {
+        private final AtomicLong moved = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+        private void recordFailure(String key, String reason) {
+            failed.incrementAndGet();
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.put(key, String.valueOf(reason));
+            }
+        }
+
+        private MoveResult toResult() {
+            return new MoveResult(moved.get(), failed.get(), Map.copyOf(failures));
+        }
+    }
+
+    /**
+     * Outcome of a folder move. {@code failures} holds a sample of the keys
+     * left at the source, keyed to the reason. Repeating the same move
+     * retries them.
+     */
+    public record MoveResult(long moved, long failed, Map<String, String> failures) {
+        public boolean complete() {
+            return failed == 0;
+        }
+    }
+}
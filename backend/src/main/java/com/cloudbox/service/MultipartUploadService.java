@@ -0,0 +1,278 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams an upload of unknown length into S3 as a multipart upload. The
+ * input is cut into fixed-size parts which are sent in parallel on a shared
+ * worker pool; each upload owns a small ring of part buffers, so reading the
+ * source blocks once that many parts are in flight and memory stays bounded
+ * no matter how large the file is.
+ */
+@Service
+public class MultipartUploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(MultipartUploadService.class);
+
+    // S3 rejects multipart parts smaller than this, except for the last one.
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private ResumableUploadService resumableUploadService;
+
+    @Autowired
+    @Qualifier("partUploadExecutor")
+    private ExecutorService partUploadExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.upload.part-size-bytes:8388608}")
+    private int partSize;
+
+    @Value("${cloudbox.upload.max-buffered-parts:4}")
+    private int maxBufferedParts;
+
+    @Value("${cloudbox.upload.part-max-attempts:3}")
+    private int partMaxAttempts;
+
+    @Value("${cloudbox.upload.abandoned-after-ms:86400000}")
+    private long abandonedAfterMs;
+
+    public int getPartSize() {
+        return Math.max(partSize, MIN_PART_SIZE);
+    }
+
+    /**
+     * Uploads everything readable from {@code in} to {@code s3Key} and returns
+     * the number of bytes written. Inputs that fit in a single part are sent
+     * with one PutObject instead of a multipart upload.
+     */
+    public long upload(String s3Key, String contentType, InputStream in) throws IOException {
+        return upload(s3Key, contentType, Map.of(), in);
+    }
+
+    /**
+     * Like {@link #upload(String, String, InputStream)}, attaching
+     * {@code metadata} as S3 user metadata.
+     */
+    public long upload(String s3Key, String contentType, Map<String, String> metadata, InputStream in)
+            throws IOException {
+        int size = getPartSize();
+        byte[] first = new byte[size];
+        int firstLength = in.readNBytes(first, 0, size);
+
+        if (firstLength < size) {
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(s3Key)
+                            .contentType(contentType)
+                            .contentLength((long) firstLength)
+                            .metadata(metadata)
+                            .build(),
+                    partBody(first, firstLength));
+            return firstLength;
+        }
+
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .contentType(contentType)
+                .metadata(metadata)
+                .build()).uploadId();
+
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(Math.max(1, maxBufferedParts));
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        long total = 0;
+
+        try {
+            byte[] buffer = first;
+            int length = firstLength;
+            int partNumber = 1;
+
+            while (length > 0) {
+                total += length;
+                parts.add(submitPart(s3Key, uploadId, partNumber++, buffer, length, freeBuffers, failed));
+                if (failed.get()) {
+                    break;
+                }
+
+                buffer = nextBuffer(freeBuffers, parts.size(), size);
+                length = in.readNBytes(buffer, 0, size);
+            }
+
+            List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+            for (CompletableFuture<CompletedPart> part : parts) {
+                completedParts.add(part.join());
+            }
+
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build());
+            return total;
+        } catch (Exception e) {
+            // Parts still queued see the flag and skip their request; wait for
+            // the ones already sending, so none lands after the abort.
+            failed.set(true);
+            awaitSettled(parts);
+            abort(s3Key, uploadId);
+            if (e instanceof FileService.StorageLimitExceededException limitExceeded) {
+                throw limitExceeded;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            throw new IOException("Multipart upload of " + s3Key + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private byte[] nextBuffer(BlockingQueue<byte[]> freeBuffers, int partsSubmitted, int size)
+            throws InterruptedException {
+        // Allocate until the ring is full, then wait for a part to finish
+        // and reuse its buffer. This is what bounds memory per upload.
+        if (partsSubmitted < Math.max(1, maxBufferedParts)) {
+            return new byte[size];
+        }
+        return freeBuffers.take();
+    }
+
+    private CompletableFuture<CompletedPart> submitPart(String s3Key, String uploadId, int partNumber,
+                                                        byte[] buffer, int length,
+                                                        BlockingQueue<byte[]> freeBuffers,
+                                                        AtomicBoolean failed) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return uploadPartWithRetry(s3Key, uploadId, partNumber, buffer, length, failed);
+            } catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                freeBuffers.offer(buffer);
+            }
+        }, partUploadExecutor);
+    }
+
+    private CompletedPart uploadPartWithRetry(String s3Key, String uploadId, int partNumber,
+                                              byte[] buffer, int length, AtomicBoolean failed) {
+        for (int attempt = 1; ; attempt++) {
+            if (failed.get()) {
+                throw new CancellationException("Multipart upload " + uploadId + " is being aborted");
+            }
+            try {
+                UploadPartResponse response = s3Client.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucketName)
+                                .key(s3Key)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength((long) length)
+                                .build(),
+                        partBody(buffer, length));
+                return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+            } catch (RuntimeException e) {
+                if (attempt >= partMaxAttempts) {
+                    throw e;
+                }
+                log.warn("Part {} of {} failed (attempt {}/{}): {}",
+                        partNumber, s3Key, attempt, partMaxAttempts, e.getMessage());
+                sleepBeforeRetry(attempt);
+            }
+        }
+    }
+
+    private static void awaitSettled(List<CompletableFuture<CompletedPart>> parts) {
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CancellationException | CompletionException e) {
+            // Failures are reported by the caller; this only waits
+        }
+    }
+
+    private static RequestBody partBody(byte[] buffer, int length) {
+        // A content provider lets the SDK re-read the buffer on retry without
+        // the defensive copy RequestBody.fromBytes makes.
+        return RequestBody.fromContentProvider(
+                () -> new ByteArrayInputStream(buffer, 0, length), length, "application/octet-stream");
+    }
+
+    private static void sleepBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(200L << Math.min(attempt, 6));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying part upload", e);
+        }
+    }
+
+    public void abort(String s3Key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (Exception e) {
+            log.warn("Failed to abort multipart upload {} for {}: {}", uploadId, s3Key, e.getMessage());
+        }
+    }
+
+    /**
+     * Aborts multipart uploads left behind by crashed or disconnected clients,
+     * so their parts stop accruing storage charges.
+     */
+    @Scheduled(fixedDelayString = "${cloudbox.upload.abandoned-sweep-interval-ms:3600000}")
+    public void abortAbandonedUploads() {
+        Instant cutoff = Instant.now().minusMillis(abandonedAfterMs);
+        try {
+            ListMultipartUploadsRequest request = ListMultipartUploadsRequest.builder()
+                    .bucket(bucketName)
+                    .build();
+            ListMultipartUploadsResponse response;
+            do {
+                response = s3Client.listMultipartUploads(request);
+                for (MultipartUpload upload : response.uploads()) {
+                    // Resumable sessions may legitimately outlive the cutoff and
+                    // expire on their own schedule
+                    if (upload.initiated().isBefore(cutoff) && !resumableUploadService.isActive(upload.uploadId())) {
+                        log.info("Aborting abandoned multipart upload {} for {}", upload.uploadId(), upload.key());
+                        abort(upload.key(), upload.uploadId());
+                    }
+                }
+                request = request.toBuilder()
+                        .keyMarker(response.nextKeyMarker())
+                        .uploadIdMarker(response.nextUploadIdMarker())
+                        .build();
+            } while (Boolean.TRUE.equals(response.isTruncated()));
+        } catch (Exception e) {
+            log.warn("Abandoned multipart upload sweep failed: {}", e.getMessage());
+        }
+    }
+}
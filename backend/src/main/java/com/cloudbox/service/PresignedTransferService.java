@@ -0,0 +1,300 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Direct transfers between clients and S3. The backend only checks the
+ * request and signs short-lived URLs, so file bytes bypass it entirely:
+ * one presigned PUT for small uploads, a multipart upload with one presigned
+ * URL per part for large ones, and a presigned GET for downloads.
+ *
+ * Uploads have to be confirmed afterwards. The confirmation checks the
+ * stored object against what was authorized before it is accounted for.
+ * Authorized uploads are kept in memory only; an unconfirmed one simply
+ * expires, and its multipart upload is aborted. The authorized size is
+ * reserved against the user's quota until then.
+ */
+@Service
+public class PresignedTransferService {
+
+    private static final Logger log = LoggerFactory.getLogger(PresignedTransferService.class);
+
+    // S3 limits for multipart uploads
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    @Autowired
+    private S3Client s3Client;
+
+    // Absent with local storage, which has no URLs to hand out
+    @Autowired(required = false)
+    private S3Presigner s3Presigner;
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    private StorageUsageLedger usageLedger;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.presign.enabled:false}")
+    private boolean enabled;
+
+    @Value("${cloudbox.presign.ttl-seconds:900}")
+    private long ttlSeconds;
+
+    @Value("${cloudbox.presign.part-size-bytes:67108864}")
+    private long partSize;
+
+    private final Map<String, AuthorizedUpload> authorizedUploads = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled && s3Presigner != null;
+    }
+
+    /**
+     * Authorizes an upload of exactly {@code size} bytes to {@code s3Key} and
+     * returns the URLs to send it to. {@code capacity} is how much the user
+     * may have reserved in total.
+     */
+    public AuthorizedUpload authorizeUpload(String userId, String folderPath, String s3Key, String contentType,
+                                            long size, long capacity) throws FileService.StorageLimitExceededException {
+        requireEnabled();
+        if (size < 0) {
+            throw new IllegalArgumentException("Upload size must not be negative");
+        }
+        if (!usageLedger.tryReserve(s3Key, userId, size, capacity)) {
+            throw new FileService.StorageLimitExceededException();
+        }
+        try {
+            AuthorizedUpload upload = presignUpload(userId, folderPath, s3Key, contentType, size);
+            authorizedUploads.put(s3Key, upload);
+            return upload;
+        } catch (RuntimeException e) {
+            usageLedger.release(s3Key);
+            throw e;
+        }
+    }
+
+    private AuthorizedUpload presignUpload(String userId, String folderPath, String s3Key, String contentType,
+                                           long size) {
+        Duration ttl = Duration.ofSeconds(ttlSeconds);
+        Instant expiresAt = Instant.now().plus(ttl);
+
+        AuthorizedUpload upload;
+        if (size <= partSize) {
+            PutObjectRequest put = PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .contentType(contentType)
+                    .contentLength(size)
+                    .build();
+            String url = s3Presigner.presignPutObject(PutObjectPresignRequest.builder()
+                    .signatureDuration(ttl)
+                    .putObjectRequest(put)
+                    .build()).url().toString();
+            upload = new AuthorizedUpload(userId, folderPath, s3Key, size, null, size, List.of(url), expiresAt);
+        } else {
+            long effectivePartSize = Math.max(Math.max(partSize, MIN_PART_SIZE), (size + MAX_PARTS - 1) / MAX_PARTS);
+            String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .contentType(contentType)
+                    .build()).uploadId();
+
+            int parts = (int) ((size + effectivePartSize - 1) / effectivePartSize);
+            List<String> urls = new ArrayList<>(parts);
+            for (int partNumber = 1; partNumber <= parts; partNumber++) {
+                UploadPartRequest part = UploadPartRequest.builder()
+                        .bucket(bucketName)
+                        .key(s3Key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .build();
+                urls.add(s3Presigner.presignUploadPart(UploadPartPresignRequest.builder()
+                        .signatureDuration(ttl)
+                        .uploadPartRequest(part)
+                        .build()).url().toString());
+            }
+            upload = new AuthorizedUpload(userId, folderPath, s3Key, size, uploadId, effectivePartSize,
+                    List.copyOf(urls), expiresAt);
+        }
+        return upload;
+    }
+
+    /**
+     * Confirms a direct upload once the client has sent every byte. For
+     * multipart uploads the part ETags are collected with ListParts, since
+     * browsers cannot read the ETag header of a cross-origin response unless
+     * the bucket exposes it. Fails, deleting what was stored, if the object
+     * does not match what was authorized. On success the quota reservation is
+     * left for the caller to release once the file has been accounted for.
+     */
+    public AuthorizedUpload confirmUpload(String userId, String s3Key) {
+        requireEnabled();
+        AuthorizedUpload upload = authorizedUploads.get(s3Key);
+        if (upload == null || !upload.userId().equals(userId)) {
+            throw new IllegalArgumentException("No pending direct upload for " + s3Key);
+        }
+
+        if (upload.uploadId() != null) {
+            List<CompletedPart> parts = listUploadedParts(upload);
+            if (parts.size() != upload.partUrls().size()) {
+                throw new IllegalArgumentException("Received " + parts.size() + " of "
+                        + upload.partUrls().size() + " parts");
+            }
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .uploadId(upload.uploadId())
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build());
+        }
+
+        long stored;
+        try {
+            stored = s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(s3Key).build())
+                    .contentLength();
+        } catch (NoSuchKeyException e) {
+            throw new IllegalArgumentException("Nothing was uploaded to " + s3Key);
+        }
+        authorizedUploads.remove(s3Key, upload);
+        if (stored != upload.size()) {
+            usageLedger.release(s3Key);
+            s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(s3Key).build());
+            throw new IllegalArgumentException("Uploaded " + stored + " bytes, authorized " + upload.size());
+        }
+        return upload;
+    }
+
+    private List<CompletedPart> listUploadedParts(AuthorizedUpload upload) {
+        List<CompletedPart> parts = new ArrayList<>();
+        ListPartsRequest request = ListPartsRequest.builder()
+                .bucket(bucketName)
+                .key(upload.s3Key())
+                .uploadId(upload.uploadId())
+                .build();
+        ListPartsResponse response;
+        do {
+            response = s3Client.listParts(request);
+            for (Part part : response.parts()) {
+                parts.add(CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build());
+            }
+            request = request.toBuilder().partNumberMarker(response.nextPartNumberMarker()).build();
+        } while (Boolean.TRUE.equals(response.isTruncated()));
+        return parts;
+    }
+
+    public void cancelUpload(String userId, String s3Key) {
+        AuthorizedUpload upload = authorizedUploads.get(s3Key);
+        if (upload == null || !upload.userId().equals(userId)) {
+            throw new IllegalArgumentException("No pending direct upload for " + s3Key);
+        }
+        abort(upload);
+    }
+
+    /**
+     * Signs a GET for {@code s3Key} that downloads it as an attachment.
+     * Deduplicated files resolve to their blob, and compressed ones are
+     * served with a Content-Encoding the browser decodes.
+     */
+    public PresignedDownload authorizeDownload(String s3Key, String fileName) {
+        requireEnabled();
+        Duration ttl = Duration.ofSeconds(ttlSeconds);
+
+        HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(contentStore.resolve(s3Key))
+                .build());
+        GetObjectRequest.Builder get = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(contentStore.resolve(s3Key))
+                .responseContentDisposition(ContentDisposition.attachment()
+                        .filename(fileName, StandardCharsets.UTF_8)
+                        .build()
+                        .toString());
+        String codec = storageCodec.codecOf(head.metadata());
+        if (codec != null) {
+            get.responseContentEncoding(codec);
+        }
+        String url = s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                .signatureDuration(ttl)
+                .getObjectRequest(get.build())
+                .build()).url().toString();
+        return new PresignedDownload(url, Instant.now().plus(ttl));
+    }
+
+    @Scheduled(fixedDelayString = "${cloudbox.presign.sweep-interval-ms:300000}")
+    public void expireUploads() {
+        Instant now = Instant.now();
+        for (AuthorizedUpload upload : authorizedUploads.values()) {
+            if (upload.expiresAt().isBefore(now)) {
+                abort(upload);
+            }
+        }
+    }
+
+    private void abort(AuthorizedUpload upload) {
+        if (!authorizedUploads.remove(upload.s3Key(), upload)) {
+            return;
+        }
+        usageLedger.release(upload.s3Key());
+        if (upload.uploadId() == null) {
+            // A single PUT that already happened is left for reconciliation to account for
+            return;
+        }
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(upload.s3Key())
+                    .uploadId(upload.uploadId())
+                    .build());
+        } catch (Exception e) {
+            // The abandoned-upload sweep gets it eventually
+            log.warn("Failed to abort direct upload {}: {}", upload.s3Key(), e.getMessage());
+        }
+    }
+
+    private void requireEnabled() {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Direct transfers are disabled");
+        }
+    }
+
+    /**
+     * An upload the client may send straight to S3. {@code uploadId} is null
+     * for a single PUT; otherwise {@code partUrls} holds one URL per part of
+     * {@code partSize} bytes (the last part may be shorter).
+     */
+    public record AuthorizedUpload(String userId, String folderPath, String s3Key, long size, String uploadId,
+                                   long partSize, List<String> partUrls, Instant expiresAt) {
+    }
+
+    public record PresignedDownload(String url, Instant expiresAt) {
+    }
+}
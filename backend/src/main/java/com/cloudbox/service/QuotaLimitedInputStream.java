@@ -0,0 +1,60 @@
+package com.cloudbox.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes another stream through until more than {@code limit} bytes have been
+ * read, then fails. Used for bodies that declare no length up front, so a
+ * chunked upload cannot take a user past their quota: the upload reading it
+ * fails and aborts instead of completing.
+ */
+final class QuotaLimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long bytesRead;
+
+    QuotaLimitedInputStream(InputStream source, long limit) {
+        super(source);
+        this.limit = Math.max(0, limit);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // Read at most one byte past the limit, which is enough to detect it
+        int n = super.read(b, off, (int) Math.min(len, limit - bytesRead + 1));
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, limit - bytesRead + 1));
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) throws FileService.StorageLimitExceededException {
+        bytesRead += n;
+        if (bytesRead > limit) {
+            throw new FileService.StorageLimitExceededException();
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.cloudbox.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resumable upload sessions backed by S3 multipart uploads. Clients append
+ * bytes at the session's current offset and may reconnect and continue from
+ * that offset after a dropped connection or a server restart.
+ *
+ * Incoming bytes are spooled to a local file until a full part has arrived,
+ * since S3 parts (other than the last) must be at least 5 MB while client
+ * requests can be any size. Each session is a JSON file next to its spool;
+ * the spool for part N is only deleted after the session recording part N has
+ * been written, so a crash at any point leaves a consistent offset.
+ */
+@Service
+public class ResumableUploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(ResumableUploadService.class);
+
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final String SESSION_SUFFIX = ".json";
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private StorageUsageLedger usageLedger;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.upload.part-size-bytes:8388608}")
+    private int partSize;
+
+    @Value("${cloudbox.resumable.session-dir:data/upload-sessions}")
+    private String sessionDir;
+
+    @Value("${cloudbox.resumable.session-ttl-ms:86400000}")
+    private long sessionTtlMs;
+
+    private Path root;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void loadSessions() throws IOException {
+        root = Paths.get(sessionDir);
+        Files.createDirectories(root);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*" + SESSION_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    UploadSession session = objectMapper.readValue(file.toFile(), UploadSession.class);
+                    usageLedger.reserve(session.id(), session.userId(), session.length());
+                    sessions.put(session.id(), session);
+                    deleteStaleSpools(session);
+                } catch (IOException | IllegalArgumentException e) {
+                    log.warn("Ignoring unreadable upload session {}: {}", file.getFileName(), e.getMessage());
+                }
+            }
+        }
+        if (!sessions.isEmpty()) {
+            log.info("Restored {} resumable upload sessions", sessions.size());
+        }
+    }
+
+    /**
+     * Starts a session for a file of {@code length} bytes that will be stored
+     * at {@code s3Key}. The length is reserved against the user's quota until
+     * the session is completed, cancelled or expires; {@code capacity} is how
+     * much the user may have reserved in total.
+     */
+    public UploadSession create(String s3Key, String userId, String fileName, String folderPath,
+                                String contentType, long length, long capacity) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Upload length must not be negative");
+        }
+        String id = UUID.randomUUID().toString();
+        if (!usageLedger.tryReserve(id, userId, length, capacity)) {
+            throw new FileService.StorageLimitExceededException();
+        }
+
+        UploadSession session;
+        try {
+            String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .contentType(contentType)
+                    .build()).uploadId();
+
+            long now = System.currentTimeMillis();
+            session = new UploadSession(id, userId, fileName, folderPath, contentType, s3Key, uploadId, length,
+                    List.of(), 0, now, now);
+            try {
+                persist(session);
+            } catch (IOException e) {
+                abortQuietly(session);
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            usageLedger.release(id);
+            throw e;
+        }
+        sessions.put(session.id(), session);
+        return session;
+    }
+
+    public UploadSession get(String id, String userId) {
+        UploadSession session = sessions.get(id);
+        if (session == null || !session.userId().equals(userId)) {
+            throw new IllegalArgumentException("Upload session not found: " + id);
+        }
+        return session;
+    }
+
+    /**
+     * Returns how many bytes of the session have been received so far.
+     */
+    public long offsetOf(UploadSession session) throws IOException {
+        Path spool = spoolPath(session, session.parts().size() + 1);
+        return session.partsBytes() + (Files.exists(spool) ? Files.size(spool) : 0);
+    }
+
+    /**
+     * Appends the request body at {@code offset}, which must equal the
+     * session's current offset. Returns the new offset. Whatever was received
+     * before the stream broke is kept, so the client can resume from the
+     * offset reported afterwards.
+     */
+    public long append(String id, String userId, long offset, InputStream in) throws IOException {
+        ReentrantLock lock = lockFor(id);
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("Upload " + id + " is already receiving data");
+        }
+        try {
+            UploadSession session = get(id, userId);
+            long current = offsetOf(session);
+            if (offset != current) {
+                throw new OffsetMismatchException(current);
+            }
+
+            int size = getPartSize();
+            byte[] buffer = new byte[64 * 1024];
+            FileChannel spool = openSpool(session);
+            try {
+                long spooled = spool.size();
+                if (spooled >= size && current < session.length()) {
+                    // A full part whose upload was interrupted by a failure or restart
+                    spool.close();
+                    session = uploadSpooledPart(session);
+                    spool = openSpool(session);
+                    spooled = 0;
+                }
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (current + read > session.length()) {
+                        throw new IllegalArgumentException("Upload exceeds its declared length of "
+                                + session.length() + " bytes");
+                    }
+                    int position = 0;
+                    while (position < read) {
+                        int count = (int) Math.min(read - position, size - spooled);
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, position, count);
+                        while (bytes.hasRemaining()) {
+                            spool.write(bytes);
+                        }
+                        position += count;
+                        spooled += count;
+                        current += count;
+
+                        if (spooled == size && current < session.length()) {
+                            spool.force(false);
+                            spool.close();
+                            session = uploadSpooledPart(session);
+                            spool = openSpool(session);
+                            spooled = 0;
+                        }
+                    }
+                }
+            } finally {
+                if (spool.isOpen()) {
+                    spool.force(false);
+                    spool.close();
+                }
+                touch(session);
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Uploads the final part and completes the multipart upload. Every byte
+     * of the declared length must have been received. The session's quota
+     * reservation is left for the caller to release once the file has been
+     * accounted for.
+     */
+    public UploadSession complete(String id, String userId) throws IOException {
+        ReentrantLock lock = lockFor(id);
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("Upload " + id + " is still receiving data");
+        }
+        try {
+            UploadSession session = get(id, userId);
+            long received = offsetOf(session);
+            if (received != session.length()) {
+                throw new IllegalStateException("Upload is incomplete: " + received + " of "
+                        + session.length() + " bytes received");
+            }
+
+            Path spool = spoolPath(session, session.parts().size() + 1);
+            if (session.parts().isEmpty()) {
+                // Small enough for one part; a plain PUT avoids a one-part multipart upload
+                s3Client.putObject(PutObjectRequest.builder()
+                                .bucket(bucketName)
+                                .key(session.s3Key())
+                                .contentType(session.contentType())
+                                .build(),
+                        Files.exists(spool) ? RequestBody.fromFile(spool) : RequestBody.empty());
+                abortQuietly(session);
+            } else {
+                if (Files.exists(spool) && Files.size(spool) > 0) {
+                    session = uploadSpooledPart(session);
+                }
+                s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(session.s3Key())
+                        .uploadId(session.uploadId())
+                        .multipartUpload(CompletedMultipartUpload.builder()
+                                .parts(session.parts().stream()
+                                        .map(part -> CompletedPart.builder()
+                                                .partNumber(part.partNumber())
+                                                .eTag(part.eTag())
+                                                .build())
+                                        .toList())
+                                .build())
+                        .build());
+            }
+
+            discard(session);
+            return session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void cancel(String id, String userId) throws IOException {
+        ReentrantLock lock = lockFor(id);
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("Upload " + id + " is still receiving data");
+        }
+        try {
+            UploadSession session = get(id, userId);
+            abortQuietly(session);
+            discard(session);
+            usageLedger.release(session.id());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Collection<UploadSession> getSessions(String userId) {
+        return sessions.values().stream()
+                .filter(session -> session.userId().equals(userId))
+                .toList();
+    }
+
+    /**
+     * True if {@code uploadId} belongs to a live session, so the abandoned
+     * multipart sweep leaves it alone however old it is.
+     */
+    public boolean isActive(String uploadId) {
+        return sessions.values().stream().anyMatch(session -> session.uploadId().equals(uploadId));
+    }
+
+    /**
+     * Aborts sessions that have received nothing for the session TTL and
+     * removes their local state.
+     */
+    @Scheduled(fixedDelayString = "${cloudbox.resumable.sweep-interval-ms:600000}")
+    public void expireSessions() {
+        long cutoff = System.currentTimeMillis() - sessionTtlMs;
+        for (UploadSession session : sessions.values()) {
+            if (session.updatedAt() >= cutoff) {
+                continue;
+            }
+            ReentrantLock lock = lockFor(session.id());
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                log.info("Expiring resumable upload {} for {}", session.id(), session.s3Key());
+                abortQuietly(session);
+                discard(session);
+                usageLedger.release(session.id());
+            } catch (IOException e) {
+                log.warn("Failed to remove expired upload session {}: {}", session.id(), e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public int getPartSize() {
+        return Math.max(partSize, MIN_PART_SIZE);
+    }
+
+    private UploadSession uploadSpooledPart(UploadSession session) throws IOException {
+        int partNumber = session.parts().size() + 1;
+        Path spool = spoolPath(session, partNumber);
+        long length = Files.size(spool);
+
+        UploadPartResponse response = s3Client.uploadPart(UploadPartRequest.builder()
+                        .bucket(bucketName)
+                        .key(session.s3Key())
+                        .uploadId(session.uploadId())
+                        .partNumber(partNumber)
+                        .contentLength(length)
+                        .build(),
+                RequestBody.fromFile(spool));
+
+        List<PartState> parts = new ArrayList<>(session.parts());
+        parts.add(new PartState(partNumber, response.eTag(), length));
+        UploadSession updated = session.withParts(parts, session.partsBytes() + length);
+        persist(updated);
+        sessions.put(updated.id(), updated);
+        // Only now is the part durable in the session, so the spool can go
+        Files.deleteIfExists(spool);
+        return updated;
+    }
+
+    private FileChannel openSpool(UploadSession session) throws IOException {
+        return FileChannel.open(spoolPath(session, session.parts().size() + 1),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void touch(UploadSession session) throws IOException {
+        UploadSession touched = session.touched(System.currentTimeMillis());
+        persist(touched);
+        sessions.put(touched.id(), touched);
+    }
+
+    private void persist(UploadSession session) throws IOException {
+        Path file = root.resolve(session.id() + SESSION_SUFFIX);
+        Path temp = root.resolve(session.id() + SESSION_SUFFIX + ".tmp");
+        objectMapper.writeValue(temp.toFile(), session);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void discard(UploadSession session) throws IOException {
+        sessions.remove(session.id());
+        locks.remove(session.id());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, session.id() + ".*")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void deleteStaleSpools(UploadSession session) throws IOException {
+        // Left behind by a crash after a part was recorded but before its
+        // spool was deleted
+        for (int partNumber = 1; partNumber <= session.parts().size(); partNumber++) {
+            Files.deleteIfExists(spoolPath(session, partNumber));
+        }
+    }
+
+    private void abortQuietly(UploadSession session) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.s3Key())
+                    .uploadId(session.uploadId())
+                    .build());
+        } catch (Exception e) {
+            log.warn("Failed to abort multipart upload {} for {}: {}",
+                    session.uploadId(), session.s3Key(), e.getMessage());
+        }
+    }
+
+    private Path spoolPath(UploadSession session, int partNumber) {
+        return root.resolve(session.id() + ".part" + partNumber);
+    }
+
+    private ReentrantLock lockFor(String id) {
+        return locks.computeIfAbsent(id, key -> new ReentrantLock());
+    }
+
+    public record PartState(int partNumber, String eTag, long size) {
+    }
+
+    public record UploadSession(String id, String userId, String fileName, String folderPath, String contentType,
+                                String s3Key, String uploadId, long length, List<PartState> parts,
+                                long partsBytes, long createdAt, long updatedAt) {
+
+        UploadSession withParts(List<PartState> newParts, long newPartsBytes) {
+            return new UploadSession(id, userId, fileName, folderPath, contentType, s3Key, uploadId, length,
+                    List.copyOf(newParts), newPartsBytes, createdAt, System.currentTimeMillis());
+        }
+
+        UploadSession touched(long now) {
+            return new UploadSession(id, userId, fileName, folderPath, contentType, s3Key, uploadId, length,
+                    parts, partsBytes, createdAt, now);
+        }
+    }
+
+    /**
+     * Thrown when a client appends at an offset other than the session's
+     * current one, typically after a lost response. It should resume from
+     * {@link #getCurrentOffset()}.
+     */
+    public static class OffsetMismatchException extends RuntimeException {
+        private final long currentOffset;
+
+        public OffsetMismatchException(long currentOffset) {
+            super("Upload offset mismatch, expected " + currentOffset);
+            this.currentOffset = currentOffset;
+        }
+
+        public long getCurrentOffset() {
+            return currentOffset;
+        }
+    }
+}
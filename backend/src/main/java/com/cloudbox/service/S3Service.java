@@ -1,215 +1,551 @@
 package com.cloudbox.service;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 @Service
 public class S3Service {
 
+    private static final Logger log = LoggerFactory.getLogger(S3Service.class);
+
     @Autowired
     private S3Client s3Client;
 
+    @Autowired
+    private S3AsyncClient s3AsyncClient;
+
+    @Autowired
+    private StorageUsageLedger usageLedger;
+
+    @Autowired
+    private MultipartUploadService multipartUploadService;
+
+    @Autowired
+    private FolderDeletionService folderDeletionService;
+
+    @Autowired
+    private FolderListingCache folderListingCache;
+
+    @Autowired
+    private DownloadCache downloadCache;
+
+    @Autowired
+    private SegmentedDownloader segmentedDownloader;
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    private LogicalSizes logicalSizes;
+
+    @Autowired
+    private FolderArchiveService folderArchiveService;
+
+    @Autowired
+    private MetadataStore metadataStore;
+
+    // Only with local storage, where downloads can be sent from its files
+    @Autowired(required = false)
+    private StorageBackend storageBackend;
+
+    @Autowired
+    private MoveService moveService;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    @Qualifier("metadataIndexExecutor")
+    private ExecutorService metadataIndexExecutor;
+
+    @Autowired
+    @Qualifier("deleteExecutor")
+    private ExecutorService deleteExecutor;
+
+    // Users with an import into the metadata index queued or running
+    private final Set<String> indexing = ConcurrentHashMap.newKeySet();
+
     @Value("${aws.s3.bucket-name}")
     private String bucketName;
 
     public String uploadFile(MultipartFile file, String userId, String folderPath) throws IOException {
         try {
-            String s3Key = userId + "/";
-            if (folderPath != null && !folderPath.isEmpty()) {
-                s3Key += folderPath + "/";
-            }
-            s3Key += UUID.randomUUID().toString() + "_" + file.getOriginalFilename();
+            String s3Key = buildFileKey(userId, folderPath, file.getOriginalFilename());
             
-            System.out.println("Uploading file to S3 with key: " + s3Key);
-            System.out.println("Bucket: " + bucketName);
-            System.out.println("File size: " + file.getSize());
+            log.debug("Uploading {} ({} bytes) to bucket {}", s3Key, file.getSize(), bucketName);
             
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3Key)
-                    .contentType(file.getContentType())
-                    .contentLength(file.getSize())
-                    .build();
+            if (contentStore.isEnabled()) {
+                boolean deduplicated = contentStore.store(s3Key, file);
+                log.debug("Stored {} as content reference{}", s3Key, deduplicated ? " (duplicate content)" : "");
+            } else if (storageCodec.shouldCompress(file.getOriginalFilename(), file.getContentType(), file.getSize())) {
+                uploadCompressed(s3Key, file.getContentType(), file.getInputStream(), file.getSize());
+            } else if (file.getSize() > multipartUploadService.getPartSize()) {
+                try (InputStream in = file.getInputStream()) {
+                    multipartUploadService.upload(s3Key, file.getContentType(), in);
+                }
+            } else {
+                PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(s3Key)
+                        .contentType(file.getContentType())
+                        .contentLength(file.getSize())
+                        .build();
 
-            s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(file.getInputStream(), file.getSize()));
-            System.out.println("Successfully uploaded file to S3: " + s3Key);
+                s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(file.getInputStream(), file.getSize()));
+            }
+            usageLedger.recordAdded(userId, file.getSize());
+            metadataStore.putFile(s3Key, file.getSize(), null, System.currentTimeMillis());
+            folderListingCache.invalidate(userId, folderPath);
+            thumbnailService.enqueue(s3Key, file.getSize());
+            log.debug("Uploaded {}", s3Key);
             
             return s3Key;
         } catch (Exception e) {
-            System.err.println("S3 upload error: " + e.getMessage());
-            e.printStackTrace();
+            log.warn("Upload of {} failed", file.getOriginalFilename(), e);
             throw new IOException("Failed to upload file to S3: " + e.getMessage(), e);
         }
     }
 
-    public void createFolder(String userId, String folderPath) {
-        try {
-            String s3Key = userId + "/" + folderPath + "/";
-            
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3Key)
-                    .build();
+    /**
+     * Uploads a raw request body of unknown length without buffering it first.
+     * Returns the key and the number of bytes stored.
+     */
+    public StreamUploadResult uploadStream(InputStream in, String fileName, String contentType,
+                                           String userId, String folderPath) throws IOException {
+        return uploadStream(in, fileName, contentType, -1, userId, folderPath);
+    }
 
-            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(new byte[0]));
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to create folder in S3: " + e.getMessage(), e);
+    /**
+     * Like {@link #uploadStream(InputStream, String, String, String, String)}
+     * for a body whose length is declared up front (-1 if unknown). Only
+     * bodies of known length can be compressed, since the original length is
+     * recorded in metadata before the upload starts.
+     */
+    public StreamUploadResult uploadStream(InputStream in, String fileName, String contentType, long declaredLength,
+                                           String userId, String folderPath) throws IOException {
+        String s3Key = buildFileKey(userId, folderPath, fileName);
+        long size;
+        if (declaredLength >= 0 && storageCodec.shouldCompress(fileName, contentType, declaredLength)) {
+            uploadCompressed(s3Key, contentType, in, declaredLength);
+            size = declaredLength;
+        } else {
+            size = multipartUploadService.upload(s3Key, contentType, in);
         }
+        usageLedger.recordAdded(userId, size);
+        metadataStore.putFile(s3Key, size, null, System.currentTimeMillis());
+        folderListingCache.invalidate(userId, folderPath);
+        thumbnailService.enqueue(s3Key, size);
+        return new StreamUploadResult(s3Key, size);
     }
 
-    public void deleteFolder(String userId, String folderPath) {
-        try {
-            String prefix = userId + "/" + folderPath + "/";
-            System.out.println("S3Service: Deleting folder with prefix: " + prefix);
-            
-            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                    .bucket(bucketName)
-                    .prefix(prefix)
-                    .build();
+    public record StreamUploadResult(String key, long size) {
+    }
 
-            ListObjectsV2Response listResponse = s3Client.listObjectsV2(listRequest);
-            System.out.println("S3Service: Found " + listResponse.contents().size() + " objects to delete");
-            
-            if (listResponse.contents().isEmpty()) {
-                System.out.println("S3Service: No objects found with prefix: " + prefix);
-                return;
+    private void uploadCompressed(String s3Key, String contentType, InputStream in, long originalLength)
+            throws IOException {
+        try (GzipCompressingInputStream gzip = storageCodec.compress(in)) {
+            multipartUploadService.upload(s3Key, contentType, storageCodec.metadata(originalLength), gzip);
+            if (gzip.getBytesRead() != originalLength) {
+                // The recorded original length would be wrong; don't keep the object
+                s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(s3Key).build());
+                throw new IOException("Received " + gzip.getBytesRead() + " bytes, expected " + originalLength);
             }
+        }
+        storageCodec.recordEncoded(s3Key, originalLength);
+    }
+
+    /**
+     * Accounts for an object written outside {@link #uploadFile}, such as a
+     * completed resumable upload.
+     */
+    public void recordUpload(String userId, String folderPath, String s3Key, long size) {
+        usageLedger.recordAdded(userId, size);
+        metadataStore.putFile(s3Key, size, null, System.currentTimeMillis());
+        folderListingCache.invalidate(userId, folderPath);
+        thumbnailService.enqueue(s3Key, size);
+    }
+
+    public String buildFileKey(String userId, String folderPath, String fileName) {
+        String s3Key = userId + "/";
+        if (folderPath != null && !folderPath.isEmpty()) {
+            s3Key += folderPath + "/";
+        }
+        return s3Key + UUID.randomUUID().toString() + "_" + fileName;
+    }
+
+    public CompletableFuture<Void> createFolder(String userId, String folderPath) {
+        String s3Key = userId + "/" + folderPath + "/";
+        
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .build();
+
+        return failWith("Failed to create folder in S3", s3AsyncClient
+                .putObject(putObjectRequest, AsyncRequestBody.fromBytes(new byte[0]))
+                .thenRun(() -> {
+                    metadataStore.putFolder(s3Key, System.currentTimeMillis());
+                    folderListingCache.invalidate(userId, FolderListingCache.parentOf(folderPath));
+                    folderListingCache.invalidate(userId, folderPath);
+                }));
+    }
+
+    /**
+     * Deletes a folder and everything under it. A blank path is refused
+     * rather than read as the root; use {@link #deleteAll} for that.
+     */
+    public FolderDeletionService.DeletionResult deleteFolder(String userId, String folderPath) {
+        if (folderPath == null || folderPath.isBlank()) {
+            throw new IllegalArgumentException("Folder path is required");
+        }
+        return deleteTree(userId, folderPath);
+    }
+
+    /**
+     * Deletes every file and folder the user has.
+     */
+    public FolderDeletionService.DeletionResult deleteAll(String userId) {
+        return deleteTree(userId, "");
+    }
+
+    private FolderDeletionService.DeletionResult deleteTree(String userId, String folderPath) {
+        String prefix = folderPrefix(userId, folderPath);
+        // Refused before anything is touched if this folder is already being deleted
+        FolderDeletionService.DeletionProgress progress = folderDeletionService.start(userId, prefix);
+        try {
+            log.debug("Deleting folder {}", prefix);
             
-            for (S3Object object : listResponse.contents()) {
-                System.out.println("S3Service: Deleting object: " + object.key());
-                DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder()
-                        .bucket(bucketName)
-                        .key(object.key())
-                        .build();
-                s3Client.deleteObject(deleteRequest);
-                System.out.println("S3Service: Successfully deleted: " + object.key());
+            FolderDeletionService.DeletionResult result = null;
+            try {
+                result = folderDeletionService.deletePrefix(progress);
+            } finally {
+                // Even a partial delete changes what the folder contains
+                metadataStore.removeTree(prefix);
+                if (result == null || !result.complete()) {
+                    // Some objects survived; re-import so the index shows them
+                    indexUserAsync(userId);
+                }
+                folderListingCache.invalidateTree(userId, folderPath);
+                downloadCache.invalidatePrefix(prefix);
+                thumbnailService.deleteUnder(prefix);
             }
             
-            System.out.println("S3Service: Folder deletion completed");
+            log.debug("Deleted folder {}: {} objects deleted, {} failed", prefix, result.deleted(), result.failed());
+            return result;
             
         } catch (Exception e) {
-            System.err.println("S3Service: Failed to delete folder - " + e.getMessage());
-            e.printStackTrace();
+            log.warn("Failed to delete folder {} for user {}", folderPath, userId, e);
             throw new RuntimeException("Failed to delete folder from S3: " + e.getMessage(), e);
         }
     }
     
-    public Map<String, Object> listFiles(String userId, String folderPath) {
+    /**
+     * Moves or renames a file with a server-side copy and returns its new key.
+     */
+    public String moveFile(String userId, String s3Key, String targetFolderPath, String newName) {
         try {
-            String prefix = userId + "/";
-            if (folderPath != null && !folderPath.isEmpty()) {
-                prefix += folderPath + "/";
-            }
-            
-            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                    .bucket(bucketName)
-                    .prefix(prefix)
-                    .delimiter("/")
-                    .build();
+            return moveService.moveFile(userId, s3Key, targetFolderPath, newName);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to move file in S3: " + e.getMessage(), e);
+        }
+    }
 
-            ListObjectsV2Response listResponse = s3Client.listObjectsV2(listRequest);
-            
-            List<Map<String, Object>> files = new ArrayList<>();
-            List<Map<String, Object>> folders = new ArrayList<>();
-            
-            // Process files
-            int fileId = 1;
-            for (S3Object object : listResponse.contents()) {
-                if (!object.key().endsWith("/") && !object.key().equals(prefix)) {
-                    Map<String, Object> fileInfo = new HashMap<>();
-                    String fileName = object.key().substring(object.key().lastIndexOf("/") + 1);
-                    fileInfo.put("id", fileId++);
-                    fileInfo.put("name", fileName);
-                    fileInfo.put("size", formatFileSize(object.size()));
-                    fileInfo.put("modified", object.lastModified().toString());
-                    fileInfo.put("type", "file");
-                    fileInfo.put("key", object.key());
-                    fileInfo.put("sizeBytes", object.size());
-                    files.add(fileInfo);
-                }
+    public MoveService.MoveResult moveFolder(String userId, String sourcePath, String targetPath) {
+        try {
+            return moveService.moveFolder(userId, sourcePath, targetPath);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to move folder in S3: " + e.getMessage(), e);
+        }
+    }
+    
+    private String folderPrefix(String userId, String folderPath) {
+        String prefix = userId + "/";
+        if (folderPath != null && !folderPath.isEmpty()) {
+            prefix += folderPath + "/";
+        }
+        return prefix;
+    }
+    
+    public CompletableFuture<Listing> listFiles(String userId, String folderPath) {
+        return folderListingCache.get(userId, folderPath, () -> loadListing(userId, folderPath));
+    }
+    
+    private CompletableFuture<Listing> loadListing(String userId, String folderPath) {
+        if (metadataStore.isIndexed(userId)) {
+            return CompletableFuture.completedFuture(indexedListing(userId, folderPath));
+        }
+        indexUserAsync(userId);
+
+        String prefix = folderPrefix(userId, folderPath);
+        
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .delimiter("/")
+                .build();
+
+        List<FileEntry> files = new ArrayList<>();
+        List<FolderEntry> folders = new ArrayList<>();
+        
+        // The paginator delivers pages one at a time, so the lists need no locking
+        CompletableFuture<Void> pages = s3AsyncClient.listObjectsV2Paginator(listRequest).subscribe(listResponse ->
+                collectPage(listResponse, prefix, folderPath, files, folders));
+        
+        // Listings are shared through the cache, so hand out read-only views
+        return failWith("Failed to list files from S3", pages.thenApply(done ->
+                new Listing(List.copyOf(files), List.copyOf(folders))));
+    }
+    
+    /**
+     * Turns one page of a delimited S3 listing into file and folder entries.
+     */
+    void collectPage(ListObjectsV2Response listResponse, String prefix, String folderPath,
+                     List<FileEntry> files, List<FolderEntry> folders) {
+        // Process files
+        for (S3Object object : listResponse.contents()) {
+            if (!object.key().endsWith("/") && !object.key().equals(prefix)) {
+                String fileName = object.key().substring(object.key().lastIndexOf("/") + 1);
+                files.add(new FileEntry(stableId(object.key()), fileName, object.key(),
+                        logicalSizes.of(object.key(), object.size()), object.lastModified()));
             }
-            
-            // Process folders (only direct subfolders, not nested ones)
-            int folderId = 1;
-            for (CommonPrefix commonPrefix : listResponse.commonPrefixes()) {
-                String prefixStr = commonPrefix.prefix();
-                String folderName = prefixStr.substring(prefix.length());
-                if (folderName.endsWith("/")) {
-                    folderName = folderName.substring(0, folderName.length() - 1);
-                }
-                if (!folderName.isEmpty() && !folderName.contains("/")) {
-                    Map<String, Object> folderInfo = new HashMap<>();
-                    folderInfo.put("id", folderId++);
-                    folderInfo.put("name", folderName);
-                    folderInfo.put("type", "folder");
-                    folderInfo.put("modified", java.time.Instant.now().toString());
-                    folderInfo.put("fullPath", folderPath != null && !folderPath.isEmpty() ? 
-                                   folderPath + "/" + folderName : folderName);
-                    folders.add(folderInfo);
+        }
+        
+        // Process folders (only direct subfolders, not nested ones)
+        Instant now = Instant.now();
+        for (CommonPrefix commonPrefix : listResponse.commonPrefixes()) {
+            String prefixStr = commonPrefix.prefix();
+            String folderName = prefixStr.substring(prefix.length());
+            if (folderName.endsWith("/")) {
+                folderName = folderName.substring(0, folderName.length() - 1);
+            }
+            if (!folderName.isEmpty() && !folderName.contains("/")) {
+                folders.add(new FolderEntry(stableId(prefixStr), folderName,
+                        folderPath != null && !folderPath.isEmpty() ? folderPath + "/" + folderName : folderName,
+                        now));
+            }
+        }
+    }
+
+    /**
+     * Builds a folder listing from the metadata index, in the same shape as
+     * the S3-backed one.
+     */
+    Listing indexedListing(String userId, String folderPath) {
+        MetadataStore.FolderContents contents = metadataStore.list(folderPrefix(userId, folderPath));
+        if (contents == null) {
+            // S3 lists an unknown prefix as empty, so the index does too
+            return new Listing(List.of(), List.of());
+        }
+
+        List<FileEntry> files = new ArrayList<>(contents.files().size());
+        for (MetadataStore.Node node : contents.files()) {
+            files.add(new FileEntry(node.id(), node.name(), node.key(), node.size(),
+                    Instant.ofEpochMilli(node.modifiedAt())));
+        }
+
+        List<FolderEntry> folders = new ArrayList<>(contents.folders().size());
+        for (MetadataStore.Node node : contents.folders()) {
+            folders.add(new FolderEntry(node.id(), node.name(), node.path(), Instant.ofEpochMilli(node.modifiedAt())));
+        }
+        return new Listing(List.copyOf(files), List.copyOf(folders));
+    }
+
+    /**
+     * A folder's direct files and subfolders. Sizes are raw byte counts;
+     * formatting them for display is left to the client.
+     */
+    public record Listing(List<FileEntry> files, List<FolderEntry> folders) {
+    }
+
+    public record FileEntry(long id, String name, String key, long sizeBytes, Instant modified) {
+        @JsonProperty
+        public String type() {
+            return "file";
+        }
+    }
+
+    public record FolderEntry(long id, String name, String fullPath, Instant modified) {
+        @JsonProperty
+        public String type() {
+            return "folder";
+        }
+    }
+
+    /**
+     * Imports the user's tree into the metadata index in the background, the
+     * first time it is needed. Listings keep going to S3 until it finishes.
+     */
+    private void indexUserAsync(String userId) {
+        if (!indexing.add(userId)) {
+            return;
+        }
+        metadataIndexExecutor.execute(() -> {
+            try {
+                // A write racing the scan makes the import back off; retry a few times
+                for (int attempt = 0; attempt < 3 && !scanUserStorage(userId).indexed(); attempt++) {
+                    log.debug("Retrying metadata import for user {}", userId);
                 }
+                folderListingCache.invalidateTree(userId, "");
+            } catch (Exception e) {
+                log.warn("Failed to index user {}: {}", userId, e.getMessage());
+            } finally {
+                indexing.remove(userId);
             }
-            
-            Map<String, Object> result = new HashMap<>();
-            result.put("files", files);
-            result.put("folders", folders);
-            return result;
-            
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to list files from S3: " + e.getMessage(), e);
+        });
+    }
+
+    /**
+     * Imports the user's tree into the metadata index now if it is not there
+     * yet, for callers that cannot fall back to S3.
+     */
+    public void ensureIndexed(String userId) {
+        for (int attempt = 0; attempt < 3 && !metadataStore.isIndexed(userId); attempt++) {
+            scanUserStorage(userId);
         }
     }
-    
-    public long getUserStorageUsage(String userId) {
+
+    /**
+     * Resolves a folder ID to its path relative to the user's root, or null
+     * if the user has no such folder.
+     */
+    public String findFolderPath(String userId, long folderId) {
+        ensureIndexed(userId);
+        MetadataStore.Node node = metadataStore.get(folderId);
+        if (node == null || !node.folder() || !node.userId().equals(userId) || node.parentId() == 0) {
+            return null;
+        }
+        return node.path();
+    }
+
+    /**
+     * Opens one page of a folder listing starting at {@code cursor} (null for
+     * the first page). Entries are streamed by {@link FolderListing#writeTo}.
+     */
+    public FolderListing openListing(String userId, String folderPath, int pageSize, String cursor) {
         try {
-            String prefix = userId + "/";
             ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
                     .bucket(bucketName)
-                    .prefix(prefix)
+                    .prefix(folderPrefix(userId, folderPath))
+                    .delimiter("/")
+                    .continuationToken(FolderListing.decodeCursor(cursor))
                     .build();
-
-            long totalSize = 0;
-            ListObjectsV2Response listResponse;
-            
-            do {
-                listResponse = s3Client.listObjectsV2(listRequest);
-                for (S3Object object : listResponse.contents()) {
-                    if (!object.key().endsWith("/")) {
-                        totalSize += object.size();
-                    }
-                }
-                listRequest = listRequest.toBuilder()
-                        .continuationToken(listResponse.nextContinuationToken())
-                        .build();
-            } while (listResponse.isTruncated());
-            
-            return totalSize;
+            return new FolderListing(s3Client, logicalSizes, listRequest, folderPrefix(userId, folderPath),
+                    folderPath, pageSize);
+        } catch (IllegalArgumentException e) {
+            throw e;
         } catch (Exception e) {
-            System.err.println("AWS S3 connection error: " + e.getMessage());
-            return 0; // Return 0 if S3 is not accessible
+            throw new RuntimeException("Failed to list files from S3: " + e.getMessage(), e);
         }
     }
     
-    private String formatFileSize(Long bytes) {
-        if (bytes < 1024) return bytes + " B";
-        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
-        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    /**
+     * Derives a numeric ID from an object key or folder prefix, so the same
+     * entry keeps its ID across requests and pages. Masked to 53 bits so it
+     * survives a round trip through a JavaScript number.
+     */
+    public static long stableId(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash & 0x1FFFFFFFFFFFFFL;
     }
+    
+    public long getUserStorageUsage(String userId) {
+        if (!usageLedger.isTracked(userId)) {
+            try {
+                UsageScan scan = scanUserStorage(userId);
+                usageLedger.seed(userId, scan.bytes(), scan.objects());
+            } catch (Exception e) {
+                log.warn("Failed to scan storage of user {}: {}", userId, e.getMessage());
+                return 0; // Return 0 if S3 is not accessible
+            }
+        }
+        return usageLedger.getUsedBytes(userId);
+    }
+
+    /**
+     * Lists the user's whole prefix and totals it. This costs one request per
+     * 1000 objects, so it is only used to seed and reconcile the usage ledger
+     * and to sync the user's tree into the metadata index.
+     */
+    public UsageScan scanUserStorage(String userId) {
+        long indexVersion = metadataStore.getVersion(userId);
+        List<MetadataStore.Entry> entries = new ArrayList<>();
+        String prefix = userId + "/";
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .build();
 
+        long totalSize = 0;
+        long objectCount = 0;
+        ListObjectsV2Response listResponse;
+
+        do {
+            listResponse = s3Client.listObjectsV2(listRequest);
+            for (S3Object object : listResponse.contents()) {
+                long size = object.key().endsWith("/") ? 0 : logicalSizes.of(object.key(), object.size());
+                if (!object.key().endsWith("/")) {
+                    totalSize += size;
+                    objectCount++;
+                }
+                entries.add(new MetadataStore.Entry(object.key(), size, object.eTag(),
+                        object.lastModified().toEpochMilli()));
+            }
+            listRequest = listRequest.toBuilder()
+                    .continuationToken(listResponse.nextContinuationToken())
+                    .build();
+        } while (listResponse.isTruncated());
+
+        boolean indexed = metadataStore.sync(userId, indexVersion, entries);
+        return new UsageScan(totalSize, objectCount, indexed);
+    }
+
+    /**
+     * {@code indexed} is false if the metadata index changed during the scan
+     * and was left as it was.
+     */
+    public record UsageScan(long bytes, long objects, boolean indexed) {
+    }
+    
     public ResponseInputStream<GetObjectResponse> downloadFile(String s3Key) {
         try {
             GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                     .bucket(bucketName)
-                    .key(s3Key)
+                    .key(contentStore.resolve(s3Key))
                     .build();
 
             return s3Client.getObject(getObjectRequest);
@@ -218,15 +554,156 @@ public class S3Service {
         }
     }
     
-    public void deleteFile(String s3Key) {
+    public HeadObjectResponse getObjectMetadata(String s3Key) {
+        return s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(contentStore.resolve(s3Key))
+                .build());
+    }
+    
+    /**
+     * Returns a local copy of the object, either the stored file itself when
+     * storage is local disk or one from the download cache, or null if it
+     * should be streamed from S3 instead.
+     */
+    public DownloadCache.CachedObject getCachedDownload(String s3Key, HeadObjectResponse head) throws IOException {
+        String blobKey = contentStore.resolve(s3Key);
+        DownloadCache.CachedObject local = localDownload(blobKey, head);
+        // Keyed by blob, so every reference to the same content shares one copy
+        return local != null ? local : downloadCache.lookup(blobKey, head);
+    }
+
+    /**
+     * Like {@link #getCachedDownload} but never waits for the object to be
+     * fetched: on a cache miss it returns null and fills the cache in the
+     * background. For range requests, which only need part of the object.
+     */
+    public DownloadCache.CachedObject peekCachedDownload(String s3Key, HeadObjectResponse head) {
+        String blobKey = contentStore.resolve(s3Key);
+        DownloadCache.CachedObject local = localDownload(blobKey, head);
+        return local != null ? local : downloadCache.peek(blobKey, head);
+    }
+
+    private DownloadCache.CachedObject localDownload(String blobKey, HeadObjectResponse head) {
+        Path localFile = storageBackend != null ? storageBackend.localFile(blobKey) : null;
+        if (localFile == null) {
+            return null;
+        }
+        // Already on local disk; copying it into the cache would gain nothing
+        return new DownloadCache.CachedObject(localFile, head.eTag(), head.contentLength(), head.contentType(),
+                head.lastModified() != null ? head.lastModified().toEpochMilli() : -1);
+    }
+    
+    /**
+     * Fetches bytes {@code start} to {@code end} inclusive, failing if the
+     * object no longer has the given ETag.
+     */
+    public ResponseInputStream<GetObjectResponse> downloadRange(String s3Key, long start, long end, String etag) {
         try {
-            DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder()
+            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                     .bucket(bucketName)
-                    .key(s3Key)
+                    .key(contentStore.resolve(s3Key))
+                    .range("bytes=" + start + "-" + end)
+                    .ifMatch(etag)
                     .build();
-            s3Client.deleteObject(deleteRequest);
+
+            return s3Client.getObject(getObjectRequest);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to delete file from S3: " + e.getMessage(), e);
+            throw new RuntimeException("Failed to download file from S3: " + e.getMessage(), e);
         }
     }
+    
+    /**
+     * Writes bytes {@code start} to {@code end} inclusive to {@code out}.
+     * Large ranges are fetched as parallel segments; small ones use a single
+     * ranged GET.
+     */
+    public void writeRange(String s3Key, long start, long end, String etag, OutputStream out) throws IOException {
+        if (segmentedDownloader.shouldSegment(start, end)) {
+            segmentedDownloader.copy(contentStore.resolve(s3Key), etag, start, end, out);
+            return;
+        }
+        try (ResponseInputStream<GetObjectResponse> in = downloadRange(s3Key, start, end, etag)) {
+            in.transferTo(out);
+        }
+    }
+    
+    /**
+     * Streams the folder's contents, including subfolders, to {@code out} as
+     * a zip and returns the number of entries written.
+     */
+    public long writeFolderArchive(String userId, String folderPath, OutputStream out) throws IOException {
+        return folderArchiveService.write(folderPrefix(userId, folderPath), out);
+    }
+    
+    public CompletableFuture<Void> deleteFile(String s3Key) {
+        HeadObjectRequest headRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .build();
+        DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .build();
+
+        CompletableFuture<Long> size = s3AsyncClient.headObject(headRequest).handle((head, error) -> {
+            if (error == null) {
+                return logicalSizes.of(s3Key, head.contentLength());
+            }
+            if (unwrap(error) instanceof NoSuchKeyException) {
+                // Nothing to account for; the delete below is still idempotent.
+                return null;
+            }
+            throw new CompletionException(unwrap(error));
+        });
+
+        // The bookkeeping deletes cache files and appends to journals, so it
+        // runs on deleteExecutor rather than the S3 client's event loop
+        return failWith("Failed to delete file from S3", size.thenCompose(bytes -> s3AsyncClient
+                .deleteObject(deleteRequest)
+                .thenComposeAsync(deleted -> {
+                    // Concurrent deletes of the same key all succeed against S3;
+                    // only the one that removed the index entry is accounted.
+                    // Users not indexed yet have no entry to race on.
+                    boolean removed = metadataStore.remove(s3Key);
+                    if (bytes != null && !s3Key.endsWith("/")
+                            && (removed || !metadataStore.isIndexed(ownerOf(s3Key)))) {
+                        usageLedger.recordRemoved(ownerOf(s3Key), bytes, 1);
+                    }
+                    folderListingCache.invalidate(ownerOf(s3Key), folderOf(s3Key));
+                    downloadCache.invalidate(s3Key);
+                    storageCodec.forget(List.of(s3Key));
+                    return contentStore.releaseAsync(List.of(s3Key))
+                            .thenCompose(released -> thumbnailService.deleteForAsync(List.of(s3Key)));
+                }, deleteExecutor)));
+    }
+
+    /**
+     * Fails {@code future} with a RuntimeException carrying {@code message}
+     * and the underlying S3 error, matching what the blocking calls throw.
+     */
+    private static <T> CompletableFuture<T> failWith(String message, CompletableFuture<T> future) {
+        return future.handle((result, error) -> {
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                throw new CompletionException(new RuntimeException(message + ": " + cause.getMessage(), cause));
+            }
+            return result;
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private String folderOf(String s3Key) {
+        int first = s3Key.indexOf('/');
+        int last = s3Key.lastIndexOf('/');
+        return first >= 0 && last > first ? s3Key.substring(first + 1, last) : "";
+    }
+
+    private String ownerOf(String s3Key) {
+        int slash = s3Key.indexOf('/');
+        return slash > 0 ? s3Key.substring(0, slash) : s3Key;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Downloads a large byte range as fixed-size segments fetched concurrently
+ * over separate S3 connections, writing them to the output in order. At most
+ * {@code max-segments-in-flight} segments are fetched or buffered per request:
+ * the next segment is only requested once the oldest one has been written, so
+ * a slow client throttles S3 reads instead of growing the heap.
+ */
+@Service
+public class SegmentedDownloader {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentedDownloader.class);
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    @Qualifier("segmentDownloadExecutor")
+    private ExecutorService segmentDownloadExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.download.segmented-threshold-bytes:67108864}")
+    private long segmentedThreshold;
+
+    @Value("${cloudbox.download.segment-size-bytes:8388608}")
+    private int segmentSize;
+
+    @Value("${cloudbox.download.max-segments-in-flight:4}")
+    private int maxSegmentsInFlight;
+
+    @Value("${cloudbox.download.segment-max-attempts:3}")
+    private int segmentMaxAttempts;
+
+    public boolean shouldSegment(long start, long end) {
+        return maxSegmentsInFlight > 1 && end - start + 1 >= segmentedThreshold;
+    }
+
+    /**
+     * Writes bytes {@code start} to {@code end} inclusive of the object with
+     * the given ETag to {@code out}.
+     */
+    public void copy(String s3Key, String etag, long start, long end, OutputStream out) throws IOException {
+        Deque<CompletableFuture<byte[]>> window = new ArrayDeque<>(maxSegmentsInFlight);
+        long nextSegment = start;
+
+        try {
+            while (nextSegment <= end && window.size() < maxSegmentsInFlight) {
+                window.add(fetchAsync(s3Key, etag, nextSegment, Math.min(end, nextSegment + segmentSize - 1)));
+                nextSegment += segmentSize;
+            }
+
+            while (!window.isEmpty()) {
+                byte[] segment = window.removeFirst().join();
+                out.write(segment);
+                if (nextSegment <= end) {
+                    window.add(fetchAsync(s3Key, etag, nextSegment, Math.min(end, nextSegment + segmentSize - 1)));
+                    nextSegment += segmentSize;
+                }
+            }
+        } catch (CompletionException e) {
+            window.forEach(segment -> segment.cancel(true));
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new IOException("Segmented download of " + s3Key + " failed: " + cause.getMessage(), cause);
+        } catch (IOException | RuntimeException e) {
+            // Usually the client went away; stop fetching segments nobody will read
+            window.forEach(segment -> segment.cancel(true));
+            throw e;
+        }
+    }
+
+    private CompletableFuture<byte[]> fetchAsync(String s3Key, String etag, long start, long end) {
+        return CompletableFuture.supplyAsync(() -> fetchWithRetry(s3Key, etag, start, end), segmentDownloadExecutor);
+    }
+
+    private byte[] fetchWithRetry(String s3Key, String etag, long start, long end) {
+        for (int attempt = 1; ; attempt++) {
+            try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(s3Key)
+                    .range("bytes=" + start + "-" + end)
+                    .ifMatch(etag)
+                    .build())) {
+                return in.readAllBytes();
+            } catch (IOException | RuntimeException e) {
+                boolean objectChanged = e instanceof S3Exception s3e && s3e.statusCode() == 412;
+                if (objectChanged || attempt >= segmentMaxAttempts) {
+                    throw new CompletionException(e);
+                }
+                log.warn("Segment {}-{} of {} failed (attempt {}/{}): {}",
+                        start, end, s3Key, attempt, segmentMaxAttempts, e.getMessage());
+            }
+        }
+    }
+}
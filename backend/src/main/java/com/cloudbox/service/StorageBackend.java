@@ -0,0 +1,80 @@
+package com.cloudbox.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Object storage for nodes without S3. The services all talk to S3 through
+ * the SDK clients; with {@code cloudbox.storage.backend=local} those clients
+ * are an S3 emulation layer (see {@code LocalStorageConfig}) that serves each
+ * call from this interface. With the default, {@code s3}, there is no
+ * StorageBackend at all.
+ *
+ * Keys and listing semantics follow S3: keys are flat strings, listed in
+ * lexicographic order, with folders being nothing more than shared prefixes.
+ */
+public interface StorageBackend {
+
+    /**
+     * Stores {@code length} bytes from {@code in} under {@code key},
+     * replacing any existing object, and returns its new ETag.
+     */
+    String put(String key, InputStream in, long length, String contentType, Map<String, String> metadata)
+            throws IOException;
+
+    /**
+     * Returns the object's attributes, or null if there is no such key.
+     */
+    StoredObject stat(String key) throws IOException;
+
+    /**
+     * Opens bytes {@code start} to {@code end} inclusive of the object.
+     *
+     * @throws java.nio.file.NoSuchFileException if there is no such key
+     */
+    InputStream get(String key, long start, long end) throws IOException;
+
+    /**
+     * Lists up to {@code maxKeys} objects and common prefixes under
+     * {@code prefix}, after {@code startAfter} (null to start at the
+     * beginning). With a {@code delimiter}, keys containing it past the
+     * prefix are rolled up into one common prefix each, as S3 does.
+     */
+    ListPage list(String prefix, String delimiter, String startAfter, int maxKeys) throws IOException;
+
+    /**
+     * Deletes the object and returns whether it existed.
+     */
+    boolean delete(String key) throws IOException;
+
+    /**
+     * Copies an object, with its content type and metadata, and returns the
+     * copy's ETag.
+     *
+     * @throws java.nio.file.NoSuchFileException if there is no source key
+     */
+    String copy(String sourceKey, String targetKey) throws IOException;
+
+    /**
+     * Returns the file holding the object's bytes when the backend keeps
+     * them on local disk, so downloads can read it instead of going through
+     * GetObject and the download cache, or null.
+     */
+    default Path localFile(String key) {
+        return null;
+    }
+
+    record StoredObject(String key, long size, String etag, Instant lastModified, String contentType,
+                        Map<String, String> metadata) {
+    }
+
+    /**
+     * {@code nextStartAfter} is null on the last page.
+     */
+    record ListPage(List<StoredObject> objects, List<String> commonPrefixes, String nextStartAfter) {
+    }
+}
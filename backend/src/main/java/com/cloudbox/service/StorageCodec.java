@@ -0,0 +1,176 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Optional compression of compressible uploads. Objects are stored gzipped
+ * with their codec and original length in S3 user metadata; readers check the
+ * metadata and decode transparently.
+ *
+ * ListObjects does not return user metadata, so the original length of every
+ * compressed object is also kept in a local journal. That lets listings, quota
+ * accounting and reconciliation report logical sizes without a HEAD per object.
+ */
+@Service
+public class StorageCodec {
+
+    public static final String GZIP = "gzip";
+
+    static final String META_CODEC = "cloudbox-codec";
+    static final String META_ORIGINAL_LENGTH = "cloudbox-original-length";
+
+    private static final String ENCODED = "E";
+    private static final String FORGOTTEN = "F";
+
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json", "application/x-ndjson", "application/xml", "application/javascript",
+            "application/x-javascript", "application/yaml", "application/x-yaml", "application/sql",
+            "application/x-sh", "image/svg+xml");
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+            "txt", "log", "csv", "tsv", "json", "ndjson", "jsonl", "xml", "yaml", "yml", "md",
+            "html", "htm", "css", "js", "ts", "sql", "svg", "ini", "conf", "properties");
+
+    @Value("${cloudbox.compression.enabled:false}")
+    private boolean enabled;
+
+    @Value("${cloudbox.compression.min-bytes:4096}")
+    private long minBytes;
+
+    @Value("${cloudbox.compression.level:6}")
+    private int level;
+
+    @Value("${cloudbox.compression.index-path:data/compressed-objects.log}")
+    private String indexPath;
+
+    private final Map<String, Long> originalLengths = new HashMap<>();
+    private AppendOnlyJournal journal;
+
+    @PostConstruct
+    synchronized void open() throws IOException {
+        journal = new AppendOnlyJournal(Paths.get(indexPath));
+        journal.replay(fields -> {
+            if (fields.length == 3 && ENCODED.equals(fields[0])) {
+                originalLengths.put(fields[1], Long.parseLong(fields[2]));
+            } else if (fields.length == 2 && FORGOTTEN.equals(fields[0])) {
+                originalLengths.remove(fields[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown record type");
+            }
+        });
+
+        List<String[]> live = new ArrayList<>(originalLengths.size());
+        originalLengths.forEach((key, length) -> live.add(new String[] {ENCODED, key, Long.toString(length)}));
+        journal.rewrite(live);
+    }
+
+    @PreDestroy
+    synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * True for text-like uploads large enough for compression to pay off.
+     * {@code length} must be known up front, since it is recorded in the
+     * object metadata before the first byte is sent.
+     */
+    public boolean shouldCompress(String fileName, String contentType, long length) {
+        if (!enabled || length < minBytes) {
+            return false;
+        }
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            int parameters = type.indexOf(';');
+            if (parameters >= 0) {
+                type = type.substring(0, parameters).trim();
+            }
+            if (type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type)) {
+                return true;
+            }
+        }
+        int dot = fileName != null ? fileName.lastIndexOf('.') : -1;
+        return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Wraps {@code in} so reading it yields the gzip encoding of its bytes.
+     */
+    public GzipCompressingInputStream compress(InputStream in) {
+        return new GzipCompressingInputStream(in, level == -1 ? Deflater.DEFAULT_COMPRESSION : level);
+    }
+
+    public Map<String, String> metadata(long originalLength) {
+        return Map.of(META_CODEC, GZIP, META_ORIGINAL_LENGTH, Long.toString(originalLength));
+    }
+
+    public synchronized void recordEncoded(String s3Key, long originalLength) {
+        journal.append(ENCODED, s3Key, Long.toString(originalLength));
+        originalLengths.put(s3Key, originalLength);
+    }
+
+    /**
+     * Records a server-side copy, which keeps the source's encoding.
+     */
+    public synchronized void recordCopy(String sourceKey, String targetKey) {
+        Long original = originalLengths.get(sourceKey);
+        if (original != null) {
+            recordEncoded(targetKey, original);
+        }
+    }
+
+    public synchronized void forget(Collection<String> s3Keys) {
+        for (String key : s3Keys) {
+            if (originalLengths.remove(key) != null) {
+                journal.append(FORGOTTEN, key);
+            }
+        }
+    }
+
+    /**
+     * Returns the uncompressed size of {@code s3Key}, or {@code storedSize} if
+     * it is not stored compressed.
+     */
+    public synchronized long logicalSize(String s3Key, long storedSize) {
+        Long original = originalLengths.get(s3Key);
+        return original != null ? original : storedSize;
+    }
+
+    /**
+     * Returns the codec recorded in an object's metadata, or null if it is
+     * stored as is.
+     */
+    public String codecOf(Map<String, String> metadata) {
+        String codec = metadata != null ? metadata.get(META_CODEC) : null;
+        return GZIP.equals(codec) ? codec : null;
+    }
+
+    public long originalLength(Map<String, String> metadata, long storedLength) {
+        if (codecOf(metadata) == null) {
+            return storedLength;
+        }
+        return Long.parseLong(metadata.get(META_ORIGINAL_LENGTH));
+    }
+
+    /**
+     * Wraps a stored object's body so it reads as the original bytes.
+     */
+    public InputStream decode(Map<String, String> metadata, InputStream stored) throws IOException {
+        return codecOf(metadata) != null ? new GZIPInputStream(stored, 64 * 1024) : stored;
+    }
+}
@@ -0,0 +1,164 @@
+package com.cloudbox.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running per-user byte and object counts, so quota checks do not have to
+ * list the user's whole prefix. Entries are seeded from a full scan the first
+ * time a user is seen and then kept current by S3Service mutations; the
+ * StorageUsageReconciler periodically corrects any drift against the bucket.
+ *
+ * Uploads whose length is declared up front but whose bytes arrive later
+ * (resumable sessions, direct uploads) reserve that length here when they
+ * start, so quota checks made in the meantime see it. A reservation is
+ * released once the upload is accounted for, cancelled or expired.
+ */
+@Component
+public class StorageUsageLedger {
+
+    private final ConcurrentHashMap<String, Usage> usageByUser = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    public boolean isTracked(String userId) {
+        return usageByUser.containsKey(userId);
+    }
+
+    public Set<String> trackedUsers() {
+        return usageByUser.keySet();
+    }
+
+    public long getUsedBytes(String userId) {
+        Usage usage = usageByUser.get(userId);
+        return usage != null ? usage.bytes.get() : 0;
+    }
+
+    public long getObjectCount(String userId) {
+        Usage usage = usageByUser.get(userId);
+        return usage != null ? usage.objects.get() : 0;
+    }
+
+    /**
+     * Returns the mutation version of a user's entry, or -1 if the user is not
+     * tracked. The reconciler reads this before scanning so it can tell whether
+     * writes happened while the scan was in flight.
+     */
+    public long getVersion(String userId) {
+        Usage usage = usageByUser.get(userId);
+        return usage != null ? usage.version.get() : -1;
+    }
+
+    public void recordAdded(String userId, long bytes) {
+        recordDelta(userId, bytes, 1);
+    }
+
+    public void recordRemoved(String userId, long bytes, long objects) {
+        recordDelta(userId, -bytes, -objects);
+    }
+
+    private void recordDelta(String userId, long bytes, long objects) {
+        // Untracked users are seeded by a full scan on first read, which will
+        // already include this change.
+        Usage usage = usageByUser.get(userId);
+        if (usage == null) {
+            return;
+        }
+        synchronized (usage) {
+            usage.bytes.addAndGet(bytes);
+            usage.objects.addAndGet(objects);
+            usage.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Seeds a user's entry from a scan, unless another thread seeded it first.
+     */
+    public void seed(String userId, long bytes, long objects) {
+        usageByUser.putIfAbsent(userId, new Usage(bytes, objects));
+    }
+
+    /**
+     * Replaces a user's totals with scanned values, but only if no mutation was
+     * recorded since {@code expectedVersion} was read. Returns whether the
+     * scanned values were applied.
+     */
+    public boolean reconcile(String userId, long expectedVersion, long bytes, long objects) {
+        Usage usage = usageByUser.get(userId);
+        if (usage == null) {
+            return false;
+        }
+        synchronized (usage) {
+            if (usage.version.get() != expectedVersion) {
+                return false;
+            }
+            usage.bytes.set(bytes);
+            usage.objects.set(objects);
+            return true;
+        }
+    }
+
+    public long getReservedBytes(String userId) {
+        long bytes = 0;
+        for (Reservation reservation : reservations.values()) {
+            if (reservation.userId().equals(userId)) {
+                bytes += reservation.bytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reserves {@code bytes} for the user under {@code reservationId}, unless
+     * that would take the user's reservations past {@code capacity}. Returns
+     * whether the reservation was made. A negative amount is refused, since
+     * it would hand the user extra quota.
+     */
+    public synchronized boolean tryReserve(String reservationId, String userId, long bytes, long capacity) {
+        requireNotNegative(bytes);
+        if (getReservedBytes(userId) + bytes > capacity) {
+            return false;
+        }
+        reservations.put(reservationId, new Reservation(userId, bytes));
+        return true;
+    }
+
+    /**
+     * Reserves unconditionally, for uploads restored after a restart that
+     * were admitted before it.
+     */
+    public synchronized void reserve(String reservationId, String userId, long bytes) {
+        requireNotNegative(bytes);
+        reservations.put(reservationId, new Reservation(userId, bytes));
+    }
+
+    private static void requireNotNegative(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Cannot reserve a negative number of bytes");
+        }
+    }
+
+    public void release(String reservationId) {
+        reservations.remove(reservationId);
+    }
+
+    public void forget(String userId) {
+        usageByUser.remove(userId);
+    }
+
+    private record Reservation(String userId, long bytes) {
+    }
+
+    private static final class Usage {
+        private final AtomicLong bytes;
+        private final AtomicLong objects;
+        private final AtomicLong version = new AtomicLong();
+
+        private Usage(long bytes, long objects) {
+            this.bytes = new AtomicLong(bytes);
+            this.objects = new AtomicLong(objects);
+        }
+    }
+}
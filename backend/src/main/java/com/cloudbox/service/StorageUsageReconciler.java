@@ -0,0 +1,68 @@
+package com.cloudbox.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically rescans every tracked user's prefix and corrects the usage
+ * ledger, so that writes made outside this service (or lost updates after a
+ * failed request) do not leave quotas permanently wrong. Each scan also
+ * re-syncs the user's tree in the metadata index.
+ */
+@Component
+public class StorageUsageReconciler {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageUsageReconciler.class);
+
+    @Autowired
+    private S3Service s3Service;
+
+    @Autowired
+    private StorageUsageLedger usageLedger;
+
+    @Autowired
+    private MetadataStore metadataStore;
+
+    @Scheduled(initialDelayString = "${cloudbox.usage.reconcile-interval-ms:900000}",
+               fixedDelayString = "${cloudbox.usage.reconcile-interval-ms:900000}")
+    public void reconcileAll() {
+        for (String userId : usageLedger.trackedUsers()) {
+            try {
+                reconcile(userId);
+            } catch (Exception e) {
+                log.warn("Usage reconciliation failed for user {}: {}", userId, e.getMessage());
+            }
+        }
+        // Users whose tree is indexed but whose usage was never asked for;
+        // scanning them keeps the index in step with the bucket as well
+        for (String userId : metadataStore.indexedUsers()) {
+            if (usageLedger.isTracked(userId)) {
+                continue;
+            }
+            try {
+                s3Service.scanUserStorage(userId);
+            } catch (Exception e) {
+                log.warn("Metadata resync failed for user {}: {}", userId, e.getMessage());
+            }
+        }
+    }
+
+    public void reconcile(String userId) {
+        long version = usageLedger.getVersion(userId);
+        long ledgerBytes = usageLedger.getUsedBytes(userId);
+        S3Service.UsageScan scan = s3Service.scanUserStorage(userId);
+
+        if (!usageLedger.reconcile(userId, version, scan.bytes(), scan.objects())) {
+            // A write landed mid-scan; the next pass will pick it up.
+            log.debug("Skipped usage reconciliation for user {}: ledger changed during scan", userId);
+            return;
+        }
+        if (ledgerBytes != scan.bytes()) {
+            log.info("Corrected usage drift for user {}: ledger {} bytes, bucket {} bytes",
+                    userId, ledgerBytes, scan.bytes());
+        }
+    }
+}
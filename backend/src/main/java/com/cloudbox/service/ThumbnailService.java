@@ -0,0 +1,357 @@
+package com.cloudbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Generates JPEG thumbnails of uploaded images and stores them next to the
+ * originals under {@link #DERIVATIVE_PREFIX}, one object per size, so a
+ * folder of photos can be browsed without downloading the originals.
+ *
+ * Uploads queue their thumbnails on a bounded pool; when the queue is full the
+ * work is dropped and done on first request instead. Decoding uses ImageIO
+ * with source subsampling, so a large photo is never decoded at full
+ * resolution just to produce a small preview.
+ */
+@Service
+public class ThumbnailService {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    public static final String DERIVATIVE_PREFIX = "_derivatives/thumbnails/";
+
+    private static final int MAX_KEYS_PER_BATCH = 1000;
+
+    // Formats the JDK's ImageIO can decode without plugins
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif", "bmp", "wbmp",
+            "tif", "tiff");
+
+    private static final Map<String, Integer> SIZES = Map.of("small", 160, "medium", 480, "large", 1024);
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private ContentAddressedStore contentStore;
+
+    @Autowired
+    private StorageCodec storageCodec;
+
+    @Autowired
+    @Qualifier("thumbnailExecutor")
+    private ExecutorService thumbnailExecutor;
+
+    @Autowired
+    @Qualifier("deleteExecutor")
+    private ExecutorService deleteExecutor;
+
+    @Value("${aws.s3.bucket-name}")
+    private String bucketName;
+
+    @Value("${cloudbox.thumbnails.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cloudbox.thumbnails.max-source-bytes:52428800}")
+    private long maxSourceBytes;
+
+    @Value("${cloudbox.thumbnails.quality:0.8}")
+    private float quality;
+
+    // One generation per source at a time; requests for it join the running one
+    private final Map<String, CompletableFuture<Void>> inProgress = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void configureImageIO() {
+        // Decode from memory rather than spooling every source to a temp file
+        ImageIO.setUseCache(false);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static boolean isSupportedSize(String size) {
+        return SIZES.containsKey(size);
+    }
+
+    public boolean isImage(String s3Key) {
+        int dot = s3Key.lastIndexOf('.');
+        return dot > s3Key.lastIndexOf('/')
+                && IMAGE_EXTENSIONS.contains(s3Key.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public static String derivativeKey(String s3Key, String size) {
+        return DERIVATIVE_PREFIX + size + "/" + s3Key + ".jpg";
+    }
+
+    /**
+     * Queues thumbnails for a freshly uploaded file if it is an image. Never
+     * blocks; if the pool is saturated the thumbnails are made on demand.
+     */
+    public void enqueue(String s3Key, long size) {
+        if (!enabled || !isImage(s3Key) || size > maxSourceBytes) {
+            return;
+        }
+        try {
+            generate(s3Key);
+        } catch (RejectedExecutionException e) {
+            log.debug("Thumbnail queue full, deferring {}", s3Key);
+        }
+    }
+
+    /**
+     * Starts generating all sizes for {@code s3Key}, or joins a generation
+     * already under way.
+     */
+    public CompletableFuture<Void> generate(String s3Key) {
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> existing = inProgress.putIfAbsent(s3Key, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            thumbnailExecutor.execute(() -> {
+                try {
+                    render(s3Key);
+                    created.complete(null);
+                } catch (Throwable e) {
+                    log.warn("Failed to generate thumbnails for {}: {}", s3Key, e.getMessage());
+                    created.completeExceptionally(e);
+                } finally {
+                    inProgress.remove(s3Key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(s3Key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        return created;
+    }
+
+    /**
+     * Opens a stored thumbnail, or returns null if it has not been made yet.
+     */
+    public ResponseInputStream<GetObjectResponse> open(String s3Key, String size) {
+        try {
+            return s3Client.getObject(GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(derivativeKey(s3Key, size))
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the thumbnails of deleted or moved files.
+     */
+    public void deleteFor(Collection<String> s3Keys) {
+        List<ObjectIdentifier> identifiers = new ArrayList<>();
+        for (String key : s3Keys) {
+            if (isImage(key)) {
+                for (String size : SIZES.keySet()) {
+                    identifiers.add(ObjectIdentifier.builder().key(derivativeKey(key, size)).build());
+                }
+            }
+        }
+        for (int from = 0; from < identifiers.size(); from += MAX_KEYS_PER_BATCH) {
+            deleteBatch(identifiers.subList(from, Math.min(from + MAX_KEYS_PER_BATCH, identifiers.size())));
+        }
+    }
+
+    /**
+     * Like {@link #deleteFor}, but runs on the delete pool so async callers
+     * do not block an I/O thread.
+     */
+    public CompletableFuture<Void> deleteForAsync(Collection<String> s3Keys) {
+        if (s3Keys.stream().noneMatch(this::isImage)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> deleteFor(s3Keys), deleteExecutor);
+    }
+
+    /**
+     * Deletes the thumbnails of everything under a deleted folder.
+     */
+    public void deleteUnder(String prefix) {
+        try {
+            for (String size : SIZES.keySet()) {
+                deleteListed(DERIVATIVE_PREFIX + size + "/" + prefix);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to delete thumbnails under {}: {}", prefix, e.getMessage());
+        }
+    }
+
+    private void deleteListed(String prefix) {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .maxKeys(MAX_KEYS_PER_BATCH)
+                .build();
+        ListObjectsV2Response listResponse;
+        do {
+            listResponse = s3Client.listObjectsV2(listRequest);
+            List<ObjectIdentifier> identifiers = new ArrayList<>(listResponse.contents().size());
+            for (S3Object object : listResponse.contents()) {
+                identifiers.add(ObjectIdentifier.builder().key(object.key()).build());
+            }
+            deleteBatch(identifiers);
+            listRequest = listRequest.toBuilder()
+                    .continuationToken(listResponse.nextContinuationToken())
+                    .build();
+        } while (listResponse.isTruncated());
+    }
+
+    private void deleteBatch(List<ObjectIdentifier> identifiers) {
+        if (identifiers.isEmpty()) {
+            return;
+        }
+        try {
+            s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucketName)
+                    .delete(Delete.builder().objects(identifiers).quiet(true).build())
+                    .build());
+        } catch (Exception e) {
+            // Orphaned thumbnails are harmless; they are keyed by unique upload keys
+            log.warn("Failed to delete {} thumbnails: {}", identifiers.size(), e.getMessage());
+        }
+    }
+
+    private void render(String s3Key) throws IOException {
+        int largest = SIZES.values().stream().mapToInt(Integer::intValue).max().orElseThrow();
+        BufferedImage source = decode(s3Key, largest);
+        if (source == null) {
+            throw new IOException("Unsupported or unreadable image");
+        }
+
+        // Largest first, each size scaled from the previous one, which keeps
+        // the downscaling steps small enough for bilinear filtering to look good
+        List<Map.Entry<String, Integer>> sizes = new ArrayList<>(SIZES.entrySet());
+        sizes.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        BufferedImage current = source;
+        for (Map.Entry<String, Integer> size : sizes) {
+            current = scale(current, size.getValue());
+            byte[] jpeg = encode(current);
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(derivativeKey(s3Key, size.getKey()))
+                            .contentType("image/jpeg")
+                            .cacheControl("public, max-age=31536000, immutable")
+                            .build(),
+                    RequestBody.fromBytes(jpeg));
+        }
+    }
+
+    /**
+     * Decodes the first frame, subsampled so that it is no smaller than
+     * {@code target} on its longer side.
+     */
+    private BufferedImage decode(String s3Key, int target) throws IOException {
+        ResponseInputStream<GetObjectResponse> response = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(contentStore.resolve(s3Key))
+                .build());
+        if (response.response().contentLength() > maxSourceBytes) {
+            response.abort();
+            throw new IOException("Image too large for thumbnails");
+        }
+
+        try (InputStream in = storageCodec.decode(response.response().metadata(), response);
+             ImageInputStream images = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(images);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(images, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, longest / target);
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales to fit within {@code bound} on the longer side, never upscaling,
+     * onto an opaque RGB canvas since JPEG has no alpha.
+     */
+    private static BufferedImage scale(BufferedImage image, int bound) {
+        double ratio = Math.min(1.0, (double) bound / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        if (ratio == 1.0 && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream images = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(images);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+package com.cloudbox.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.web.method.HandlerMethod;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdmissionControlTest {
+
+    private AdmissionControl admissionControl;
+
+    @BeforeEach
+    void setUp() {
+        admissionControl = new AdmissionControl();
+        ReflectionTestUtils.setField(admissionControl, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(admissionControl, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(admissionControl, "enabled", true);
+        ReflectionTestUtils.setField(admissionControl, "maxConcurrent", 1);
+        ReflectionTestUtils.setField(admissionControl, "maxBulkConcurrent", 1);
+        ReflectionTestUtils.setField(admissionControl, "maxConcurrentPerUser", 8);
+        ReflectionTestUtils.setField(admissionControl, "maxBulkConcurrentPerUser", 2);
+        ReflectionTestUtils.setField(admissionControl, "queueTimeoutMs", 50L);
+        ReflectionTestUtils.setField(admissionControl, "maxQueued", 0);
+        ReflectionTestUtils.setField(admissionControl, "retryAfterSeconds", 1L);
+        ReflectionTestUtils.setField(admissionControl, "userBytesPerSecond", 1000L);
+        ReflectionTestUtils.setField(admissionControl, "burstSeconds", 1L);
+        admissionControl.init();
+    }
+
+    @Test
+    void rejectsAtOnceWhenTheWaitQueueIsFull() throws Exception {
+        ReflectionTestUtils.setField(admissionControl, "queueTimeoutMs", 10_000L);
+        assertThat(admit(request("alice", 0), new MockHttpServletResponse(), "interactive")).isTrue();
+
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        long started = System.nanoTime();
+        assertThat(admit(request("bob", 0), rejected, "interactive")).isFalse();
+
+        assertThat((System.nanoTime() - started) / 1_000_000).isLessThan(5_000);
+        assertThat(rejected.getStatus()).isEqualTo(429);
+        assertThat(rejected.getHeader("Retry-After")).isEqualTo("1");
+    }
+
+    @Test
+    void waitsBrieflyForASlotWhenQueueingIsAllowed() throws Exception {
+        ReflectionTestUtils.setField(admissionControl, "maxQueued", 1);
+        MockHttpServletRequest first = request("alice", 0);
+        MockHttpServletResponse firstResponse = new MockHttpServletResponse();
+        assertThat(admit(first, firstResponse, "interactive")).isTrue();
+
+        Thread finisher = new Thread(() -> {
+            sleep(10);
+            admissionControl.afterCompletion(first, firstResponse, null, null);
+        });
+        finisher.start();
+
+        assertThat(admit(request("bob", 0), new MockHttpServletResponse(), "interactive")).isTrue();
+        finisher.join();
+    }
+
+    @Test
+    void chargesDeclaredUploadLengthBeforeTheBodyArrives() throws Exception {
+        ReflectionTestUtils.setField(admissionControl, "maxConcurrent", 4);
+        admissionControl.init();
+
+        // Still reading its body, yet already over the user's budget
+        assertThat(admit(request("alice", 5000), new MockHttpServletResponse(), "metered")).isTrue();
+
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        assertThat(admit(request("alice", 0), rejected, "metered")).isFalse();
+        assertThat(rejected.getStatus()).isEqualTo(429);
+    }
+
+    @Test
+    void chargesDeclaredResponseLengthAndRefundsWhatWasNotSent() throws Exception {
+        ReflectionTestUtils.setField(admissionControl, "maxConcurrent", 4);
+        admissionControl.init();
+        AtomicReference<HttpServletResponse> wrapped = new AtomicReference<>();
+        MockHttpServletRequest download = request("alice", 0);
+        MockHttpServletResponse downloadResponse = new MockHttpServletResponse();
+
+        // Run the request through the counting filter, as the container does
+        new TransferCounter().doFilter(download, downloadResponse, (req, res) -> {
+            assertThat(admit((HttpServletRequest) req, (MockHttpServletResponse) downloadResponse, "metered"))
+                    .isTrue();
+            wrapped.set((HttpServletResponse) res);
+            ((HttpServletResponse) res).setContentLengthLong(5000);
+        });
+
+        MockHttpServletRequest next = request("alice", 0);
+        assertThat(admit(next, new MockHttpServletResponse(), "metered")).isFalse();
+
+        // The client went away after 100 bytes; the rest is given back
+        wrapped.get().getOutputStream().write(new byte[100]);
+        admissionControl.afterCompletion(download, downloadResponse, null, null);
+        assertThat(admit(request("alice", 0), new MockHttpServletResponse(), "metered")).isTrue();
+    }
+
+    private boolean admit(HttpServletRequest request, MockHttpServletResponse response, String handler)
+            throws IOException {
+        HandlerMethod method = new HandlerMethod(new Handlers(), ReflectionUtils.findMethod(Handlers.class, handler));
+        return admissionControl.preHandle(request, response, method);
+    }
+
+    private static MockHttpServletRequest request(String userId, int contentLength) {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/api/files");
+        request.setParameter("userId", userId);
+        if (contentLength > 0) {
+            request.setContent(new byte[contentLength]);
+        }
+        return request;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Handlers {
+
+        public void interactive() {
+        }
+
+        @BandwidthMetered
+        public void metered() {
+        }
+    }
+}
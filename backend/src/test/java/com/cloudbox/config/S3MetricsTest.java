@@ -0,0 +1,55 @@
+package com.cloudbox.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3MetricsTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private S3Metrics metrics;
+
+    @BeforeEach
+    void setUp() {
+        metrics = new S3Metrics();
+        ReflectionTestUtils.setField(metrics, "registry", registry);
+        metrics.registerGauges();
+    }
+
+    @Test
+    void repeatedCallsRecordIntoTheSameMeters() {
+        for (int i = 0; i < 3; i++) {
+            metrics.timeSync("GetObject", 0, () -> GetObjectResponse.builder().contentLength(100L).build());
+        }
+        metrics.timeSync("PutObject", 50, () -> null);
+
+        Timer gets = registry.get("cloudbox.s3.requests").tag("operation", "GetObject").tag("outcome", "success")
+                .timer();
+        assertThat(gets.count()).isEqualTo(3);
+        assertThat(registry.get("cloudbox.s3.bytes").tag("direction", "in").counter().count()).isEqualTo(300);
+        assertThat(registry.get("cloudbox.s3.bytes").tag("direction", "out").counter().count()).isEqualTo(50);
+        assertThat(registry.find("cloudbox.s3.requests").timers()).hasSize(2);
+    }
+
+    @Test
+    void failuresAreTimedUnderTheirOwnOutcome() {
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> metrics.timeSync("HeadObject", 0, () -> {
+                throw NoSuchKeyException.builder().statusCode(404).message("missing").build();
+            })).isInstanceOf(NoSuchKeyException.class);
+        }
+        metrics.timeSync("HeadObject", 0, () -> null);
+
+        assertThat(registry.get("cloudbox.s3.requests").tag("outcome", "client_error").timer().count())
+                .isEqualTo(2);
+        assertThat(registry.get("cloudbox.s3.requests").tag("outcome", "success").timer().count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,65 @@
+package com.cloudbox.config;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketTest {
+
+    @Test
+    void startsFullAndAdmits() {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+
+        assertThat(bucket.isFull()).isTrue();
+        assertThat(bucket.millisUntilAvailable()).isZero();
+    }
+
+    @Test
+    void admitsUntilBalanceGoesNegative() {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+
+        bucket.consume(1000);
+
+        assertThat(bucket.isFull()).isFalse();
+        assertThat(bucket.millisUntilAvailable()).isZero();
+    }
+
+    @Test
+    void debtIsPaidOffAtTheRefillRate() {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+
+        // Charged after the fact for a transfer larger than the bucket
+        bucket.consume(3000);
+
+        assertThat(bucket.millisUntilAvailable()).isBetween(1900L, 2000L);
+    }
+
+    @Test
+    void refillsOverTimeButNotPastCapacity() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1_000_000, 1000);
+        bucket.consume(1500);
+
+        Thread.sleep(20);
+
+        assertThat(bucket.millisUntilAvailable()).isZero();
+        assertThat(bucket.isFull()).isTrue();
+        bucket.consume(1000);
+        assertThat(bucket.isFull()).isFalse();
+        assertThat(bucket.millisUntilAvailable()).isZero();
+    }
+
+    @Test
+    void refundsNeverOverfillTheBucket() {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        bucket.consume(3000);
+
+        // Charged up front for more than was transferred
+        bucket.consume(-2500);
+
+        assertThat(bucket.millisUntilAvailable()).isZero();
+        bucket.consume(-5000);
+        assertThat(bucket.isFull()).isTrue();
+        bucket.consume(1001);
+        assertThat(bucket.millisUntilAvailable()).isPositive();
+    }
+}
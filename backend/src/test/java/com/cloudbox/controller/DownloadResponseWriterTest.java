@@ -0,0 +1,204 @@
+package com.cloudbox.controller;
+
+import com.cloudbox.service.DownloadCache;
+import com.cloudbox.service.FileService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DownloadResponseWriterTest {
+
+    private static final String KEY = "alice/file.bin";
+    private static final String ETAG = "\"etag\"";
+
+    @TempDir
+    Path dir;
+
+    private final FileService fileService = mock(FileService.class);
+    private final DownloadResponseWriter writer = new DownloadResponseWriter();
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(writer, "fileService", fileService);
+        content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+    }
+
+    @Test
+    void sendsTheWholeObjectWithoutARange() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletResponse response = get(null);
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getHeader("Accept-Ranges")).isEqualTo("bytes");
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void answersASingleRangeWith206() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletResponse response = get("bytes=10-19");
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader("Content-Range")).isEqualTo("bytes 10-19/1000");
+        assertThat(response.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(content, 10, 20));
+    }
+
+    @Test
+    void resolvesSuffixAndOpenEndedRanges() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletResponse suffix = get("bytes=-5");
+        assertThat(suffix.getHeader("Content-Range")).isEqualTo("bytes 995-999/1000");
+        assertThat(suffix.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(content, 995, 1000));
+
+        MockHttpServletResponse openEnded = get("bytes=990-");
+        assertThat(openEnded.getHeader("Content-Range")).isEqualTo("bytes 990-999/1000");
+
+        // An end past the object is clamped to its last byte
+        MockHttpServletResponse clamped = get("bytes=998-5000");
+        assertThat(clamped.getHeader("Content-Range")).isEqualTo("bytes 998-999/1000");
+    }
+
+    @Test
+    void answersAnUnsatisfiableRangeWith416() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletResponse response = get("bytes=2000-3000");
+
+        assertThat(response.getStatus()).isEqualTo(416);
+        assertThat(response.getHeader("Content-Range")).isEqualTo("bytes */1000");
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void skipsUnsatisfiableRangesWhenOthersCanBeServed() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletResponse response = get("bytes=2000-3000,0-3");
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader("Content-Range")).isEqualTo("bytes 0-3/1000");
+    }
+
+    @Test
+    void sendsSeveralRangesAsMultipartByteranges() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletResponse response = get("bytes=0-1,100-102");
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentType()).startsWith("multipart/byteranges; boundary=");
+        String body = new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        assertThat(body).contains("Content-Range: bytes 0-1/1000", "Content-Range: bytes 100-102/1000");
+        String boundary = response.getContentType().substring(response.getContentType().indexOf('=') + 1);
+        assertThat(body).endsWith("--" + boundary + "--\r\n");
+    }
+
+    @Test
+    void ignoresMalformedOrExcessiveRanges() throws IOException {
+        serveFromLocalFile(content.length);
+
+        assertThat(get("bytes=abc").getStatus()).isEqualTo(200);
+
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 16; i++) {
+            many.append(',').append(i * 10).append('-').append(i * 10);
+        }
+        MockHttpServletResponse excessive = get(many.toString());
+        assertThat(excessive.getStatus()).isEqualTo(200);
+        assertThat(excessive.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void sendsTheWholeObjectWhenIfRangeIsStale() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletRequest stale = request("bytes=0-9");
+        stale.addHeader("If-Range", "\"other\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.write(KEY, stale, response);
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).hasSize(content.length);
+
+        MockHttpServletRequest current = request("bytes=0-9");
+        current.addHeader("If-Range", ETAG);
+        response = new MockHttpServletResponse();
+        writer.write(KEY, current, response);
+        assertThat(response.getStatus()).isEqualTo(206);
+    }
+
+    @Test
+    void answersAMatchingIfNoneMatchWith304() throws IOException {
+        serveFromLocalFile(content.length);
+
+        MockHttpServletRequest request = request(null);
+        request.addHeader("If-None-Match", ETAG);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.write(KEY, request, response);
+
+        assertThat(response.getStatus()).isEqualTo(304);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void failsInsteadOfSpinningWhenTheLocalFileIsShort() throws IOException {
+        // The object was replaced by a shorter one after it was HEADed
+        serveFromLocalFile(content.length + 500);
+
+        assertThatThrownBy(() -> get(null))
+                .isInstanceOf(EOFException.class);
+    }
+
+    private MockHttpServletResponse get(String range) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.write(KEY, request(range), response);
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/download");
+        if (range != null) {
+            request.addHeader("Range", range);
+        }
+        return request;
+    }
+
+    private void serveFromLocalFile(long recordedLength) throws IOException {
+        Path file = Files.write(dir.resolve("object"), content);
+        HeadObjectResponse head = HeadObjectResponse.builder()
+                .contentLength(recordedLength)
+                .eTag(ETAG)
+                .lastModified(Instant.parse("2026-01-01T00:00:00Z"))
+                .contentType("application/octet-stream")
+                .build();
+        DownloadCache.CachedObject cached = new DownloadCache.CachedObject(file, ETAG, recordedLength,
+                head.contentType(), head.lastModified().toEpochMilli());
+        when(fileService.getObjectMetadata(KEY)).thenReturn(head);
+        when(fileService.getCachedDownload(any(), any())).thenReturn(cached);
+        when(fileService.peekCachedDownload(any(), any())).thenReturn(cached);
+    }
+}
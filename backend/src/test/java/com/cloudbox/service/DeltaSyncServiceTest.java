@@ -0,0 +1,181 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyPartResult;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DeltaSyncServiceTest {
+
+    private static final long PART = 5L * 1024 * 1024;
+    private static final String HASH_A = "a".repeat(64);
+    private static final String HASH_B = "b".repeat(64);
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final S3AsyncClient s3AsyncClient = mock(S3AsyncClient.class);
+    private DeltaSyncService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new DeltaSyncService();
+        ReflectionTestUtils.setField(service, "s3Client", s3Client);
+        ReflectionTestUtils.setField(service, "s3AsyncClient", s3AsyncClient);
+        ReflectionTestUtils.setField(service, "bucketName", "bucket");
+        ReflectionTestUtils.setField(service, "maxChunkBytes", 16 * 1024 * 1024);
+        ReflectionTestUtils.setField(service, "maxChunks", 10000);
+        ReflectionTestUtils.setField(service, "chunkRetentionMs", 2_592_000_000L);
+        ReflectionTestUtils.setField(service, "chunkRefreshWindowMs", 86_400_000L);
+        ReflectionTestUtils.setField(service, "maxPendingBytesPerUser", 1024L * 1024 * 1024);
+        ReflectionTestUtils.setField(service, "maxConcurrentChecks", 4);
+    }
+
+    @Test
+    void storeChunkRejectsContentNotMatchingItsHash() {
+        byte[] data = "chunk".getBytes(StandardCharsets.UTF_8);
+
+        assertThatThrownBy(() -> service.storeChunk("alice", HASH_A, new ByteArrayInputStream(data), 1000))
+                .isInstanceOf(IllegalArgumentException.class);
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void storeChunkWritesUnderTheUploader() throws Exception {
+        byte[] data = "chunk".getBytes(StandardCharsets.UTF_8);
+        String hash = sha256(data);
+
+        service.storeChunk("alice", hash, new ByteArrayInputStream(data), 1000);
+
+        ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(put.capture(), any(RequestBody.class));
+        assertThat(put.getValue().key()).isEqualTo("_chunks/sha256/alice/" + hash);
+    }
+
+    @Test
+    void storeChunkRefusesChunksBeyondTheQuota() {
+        byte[] data = "chunk".getBytes(StandardCharsets.UTF_8);
+
+        assertThatThrownBy(() -> service.storeChunk("alice", sha256(data), new ByteArrayInputStream(data), 4))
+                .isInstanceOf(FileService.StorageLimitExceededException.class);
+    }
+
+    @Test
+    void findMissingOnlyLooksAtTheCallersChunks() {
+        ArgumentCaptor<HeadObjectRequest> head = ArgumentCaptor.forClass(HeadObjectRequest.class);
+        when(s3AsyncClient.headObject(head.capture())).thenReturn(CompletableFuture.completedFuture(
+                HeadObjectResponse.builder().contentLength(PART).lastModified(Instant.now()).build()));
+
+        List<String> missing = service.findMissing("bob", manifest(HASH_A, HASH_A)).join();
+
+        assertThat(missing).isEmpty();
+        assertThat(head.getAllValues()).extracting(HeadObjectRequest::key)
+                .containsExactly("_chunks/sha256/bob/" + HASH_A);
+    }
+
+    @Test
+    void assembleCopiesTheUsersOwnChunksAsParts() throws Exception {
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload").build());
+        ArgumentCaptor<UploadPartCopyRequest> copy = ArgumentCaptor.forClass(UploadPartCopyRequest.class);
+        when(s3AsyncClient.uploadPartCopy(copy.capture())).thenReturn(CompletableFuture.completedFuture(
+                UploadPartCopyResponse.builder().copyPartResult(CopyPartResult.builder().eTag("e").build()).build()));
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenReturn(CompleteMultipartUploadResponse.builder().build());
+        when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(HeadObjectResponse.builder().contentLength(2 * PART).build());
+
+        long size = service.assemble("bob", manifest(HASH_A, HASH_B), "bob/file.bin", "application/octet-stream");
+
+        assertThat(size).isEqualTo(2 * PART);
+        assertThat(copy.getAllValues()).extracting(UploadPartCopyRequest::sourceKey)
+                .containsExactly("_chunks/sha256/bob/" + HASH_A, "_chunks/sha256/bob/" + HASH_B);
+        assertThat(copy.getAllValues()).extracting(UploadPartCopyRequest::partNumber).containsExactly(1, 2);
+    }
+
+    @Test
+    void assembleRejectsChunksTheUserDoesNotHave() {
+        when(s3Client.copyObject(any(CopyObjectRequest.class)))
+                .thenThrow(NoSuchKeyException.builder().message("no such key").build());
+
+        assertThatThrownBy(() -> service.assemble("bob", manifest(HASH_A), "bob/file.bin", null))
+                .isInstanceOf(IllegalArgumentException.class);
+        verify(s3Client, never()).headObject(any(HeadObjectRequest.class));
+    }
+
+    @Test
+    void assembleAbortsWhenAPartCannotBeCopied() {
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload").build());
+        when(s3AsyncClient.uploadPartCopy(any(UploadPartCopyRequest.class))).thenReturn(CompletableFuture.failedFuture(
+                NoSuchKeyException.builder().message("no such key").build()));
+
+        assertThatThrownBy(() -> service.assemble("bob", manifest(HASH_A, HASH_B), "bob/file.bin", null))
+                .isInstanceOf(IllegalArgumentException.class);
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    void assembleDeletesAFileThatDoesNotMatchTheManifest() {
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(CopyObjectResponse.builder().build());
+        when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(HeadObjectResponse.builder().contentLength(PART + 1).build());
+
+        assertThatThrownBy(() -> service.assemble("bob", manifest(HASH_A), "bob/file.bin", null))
+                .hasMessageContaining("manifest says " + PART);
+        verify(s3Client).deleteObject(any(DeleteObjectRequest.class));
+    }
+
+    @Test
+    void manifestsNeedPartSizedChunksBeforeTheLast() {
+        DeltaSyncService.ChunkManifest small = new DeltaSyncService.ChunkManifest(List.of(
+                new DeltaSyncService.Chunk(HASH_A, PART - 1), new DeltaSyncService.Chunk(HASH_B, 10)));
+
+        assertThatThrownBy(() -> service.assemble("bob", small, "bob/file.bin", null))
+                .isInstanceOf(IllegalArgumentException.class);
+        verify(s3Client, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    }
+
+    private static DeltaSyncService.ChunkManifest manifest(String... hashes) {
+        return new DeltaSyncService.ChunkManifest(List.of(hashes).stream()
+                .map(hash -> new DeltaSyncService.Chunk(hash, PART))
+                .toList());
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}
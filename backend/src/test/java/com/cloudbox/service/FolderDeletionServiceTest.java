@@ -0,0 +1,101 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FolderDeletionServiceTest {
+
+    private final AtomicInteger pagesBeforeFailure = new AtomicInteger(Integer.MAX_VALUE);
+    private final InMemoryS3Client s3Client = new InMemoryS3Client() {
+        @Override
+        public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+            if (pagesBeforeFailure.getAndDecrement() <= 0) {
+                throw S3Exception.builder().message("Slow down").statusCode(503).build();
+            }
+            return super.listObjectsV2(request);
+        }
+    };
+    private final ExecutorService deleteExecutor = Executors.newFixedThreadPool(2);
+    private final StorageUsageLedger usageLedger = new StorageUsageLedger();
+    private FolderDeletionService deletionService;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < 2500; i++) {
+            s3Client.put(String.format("alice/docs/%04d.txt", i), new byte[10]);
+        }
+        s3Client.put("alice/keep.txt", new byte[10]);
+        usageLedger.seed("alice", 25010, 2501);
+
+        LogicalSizes logicalSizes = mock(LogicalSizes.class);
+        when(logicalSizes.of(anyString(), anyLong())).thenAnswer(invocation -> invocation.getArgument(1));
+
+        deletionService = new FolderDeletionService();
+        ReflectionTestUtils.setField(deletionService, "s3Client", s3Client);
+        ReflectionTestUtils.setField(deletionService, "usageLedger", usageLedger);
+        ReflectionTestUtils.setField(deletionService, "contentStore", mock(ContentAddressedStore.class));
+        ReflectionTestUtils.setField(deletionService, "storageCodec", mock(StorageCodec.class));
+        ReflectionTestUtils.setField(deletionService, "logicalSizes", logicalSizes);
+        ReflectionTestUtils.setField(deletionService, "deleteExecutor", deleteExecutor);
+        ReflectionTestUtils.setField(deletionService, "bucketName", "bucket");
+        ReflectionTestUtils.setField(deletionService, "maxInFlightBatches", 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        deleteExecutor.shutdownNow();
+    }
+
+    @Test
+    void deletesEveryPageUnderThePrefix() {
+        FolderDeletionService.DeletionResult result =
+                deletionService.deletePrefix(deletionService.start("alice", "alice/docs/"));
+
+        assertThat(result.complete()).isTrue();
+        assertThat(result.deleted()).isEqualTo(2500);
+        assertThat(s3Client.keys("alice/")).containsExactly("alice/keep.txt");
+        assertThat(usageLedger.getUsedBytes("alice")).isEqualTo(10);
+        assertThat(usageLedger.getObjectCount("alice")).isEqualTo(1);
+        assertThat(deletionService.getActiveDeletions()).isEmpty();
+    }
+
+    @Test
+    void listingFailureReportsTheBatchesAlreadySent() {
+        pagesBeforeFailure.set(2);
+
+        FolderDeletionService.DeletionResult result =
+                deletionService.deletePrefix(deletionService.start("alice", "alice/docs/"));
+
+        assertThat(result.complete()).isFalse();
+        assertThat(result.error()).contains("Slow down");
+        assertThat(result.deleted()).isEqualTo(2000);
+        assertThat(result.failed()).isZero();
+        assertThat(s3Client.keys("alice/docs/")).hasSize(500);
+        assertThat(usageLedger.getObjectCount("alice")).isEqualTo(501);
+        assertThat(deletionService.getActiveDeletions()).isEmpty();
+    }
+
+    @Test
+    void refusesAPrefixAlreadyBeingDeleted() {
+        deletionService.start("alice", "alice/docs/");
+
+        assertThatThrownBy(() -> deletionService.start("alice", "alice/docs/"))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
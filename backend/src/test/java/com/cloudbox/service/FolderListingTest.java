@@ -0,0 +1,140 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FolderListingTest {
+
+    private static final String PREFIX = "alice/docs/";
+
+    private final S3Client s3Client = mock(S3Client.class);
+    private final LogicalSizes logicalSizes = mock(LogicalSizes.class);
+    // Listing order as S3 returns it; entries ending in "/" are common prefixes
+    private final List<String> entries = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        when(logicalSizes.of(any(), anyLong())).thenAnswer(invocation -> invocation.getArgument(1));
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            ListObjectsV2Request request = invocation.getArgument(0);
+            int from = request.continuationToken() != null ? Integer.parseInt(request.continuationToken()) : 0;
+            int to = Math.min(entries.size(), from + request.maxKeys());
+            List<S3Object> contents = new ArrayList<>();
+            List<CommonPrefix> prefixes = new ArrayList<>();
+            for (String entry : entries.subList(from, to)) {
+                if (entry.endsWith("/") && !entry.equals(PREFIX)) {
+                    prefixes.add(CommonPrefix.builder().prefix(entry).build());
+                } else {
+                    contents.add(S3Object.builder().key(entry).size(10L).lastModified(Instant.EPOCH).build());
+                }
+            }
+            return ListObjectsV2Response.builder()
+                    .contents(contents)
+                    .commonPrefixes(prefixes)
+                    .isTruncated(to < entries.size())
+                    .nextContinuationToken(to < entries.size() ? Integer.toString(to) : null)
+                    .build();
+        });
+    }
+
+    @Test
+    void cursorsWalkTheFolderOnceWithoutRepeats() throws IOException {
+        entries.add(PREFIX);
+        for (int i = 0; i < 7; i++) {
+            entries.add(PREFIX + "file" + i + ".txt");
+        }
+        entries.add(PREFIX + "sub1/");
+        entries.add(PREFIX + "sub2/");
+
+        List<String> seen = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        String cursor = null;
+        do {
+            Recorder page = new Recorder();
+            cursor = open(3, cursor).writeTo(page);
+            seen.addAll(page.entries);
+            pageSizes.add(page.entries.size());
+        } while (cursor != null);
+
+        // The folder marker is not an entry
+        assertThat(seen).hasSize(9).doesNotHaveDuplicates()
+                .contains("file:file0.txt", "file:file6.txt", "folder:sub1=docs/sub1", "folder:sub2=docs/sub2");
+        assertThat(pageSizes).allSatisfy(size -> assertThat(size).isLessThanOrEqualTo(3));
+    }
+
+    @Test
+    void largePagesAreFetchedInS3SizedRequests() throws IOException {
+        for (int i = 0; i < 2500; i++) {
+            entries.add(PREFIX + String.format("file%05d", i));
+        }
+
+        Recorder page = new Recorder();
+        String cursor = open(2200, null).writeTo(page);
+
+        assertThat(page.entries).hasSize(2200);
+        assertThat(cursor).isNotNull();
+        ArgumentCaptor<ListObjectsV2Request> requests = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        verify(s3Client, times(3)).listObjectsV2(requests.capture());
+        assertThat(requests.getAllValues()).extracting(ListObjectsV2Request::maxKeys)
+                .containsExactly(1000, 1000, 200);
+
+        Recorder rest = new Recorder();
+        assertThat(open(2200, cursor).writeTo(rest)).isNull();
+        assertThat(rest.entries).hasSize(300);
+    }
+
+    @Test
+    void cursorRoundTripsTheContinuationToken() {
+        String token = "1/ab+c=d?";
+
+        assertThat(FolderListing.decodeCursor(FolderListing.encodeCursor(token))).isEqualTo(token);
+        assertThat(FolderListing.decodeCursor(null)).isNull();
+        assertThat(FolderListing.decodeCursor("")).isNull();
+        assertThatThrownBy(() -> FolderListing.decodeCursor("not base64!"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private FolderListing open(int pageSize, String cursor) {
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket("bucket")
+                .prefix(PREFIX)
+                .delimiter("/")
+                .continuationToken(FolderListing.decodeCursor(cursor))
+                .build();
+        return new FolderListing(s3Client, logicalSizes, request, PREFIX, "docs", pageSize);
+    }
+
+    private static final class Recorder implements FolderListing.Sink {
+        private final List<String> entries = new ArrayList<>();
+
+        @Override
+        public void file(String key, String name, long sizeBytes, Instant modified) {
+            entries.add("file:" + name);
+        }
+
+        @Override
+        public void folder(String name, String fullPath) {
+            entries.add("folder:" + name + "=" + fullPath);
+        }
+    }
+}
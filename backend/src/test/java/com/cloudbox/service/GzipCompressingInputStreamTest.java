@@ -0,0 +1,74 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GzipCompressingInputStreamTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 65535, 65536, 65537, 3 * 1024 * 1024 + 17})
+    void roundTripsRandomBytes(int size) throws IOException {
+        byte[] original = new byte[size];
+        new Random(size).nextBytes(original);
+
+        GzipCompressingInputStream in = new GzipCompressingInputStream(
+                new ByteArrayInputStream(original), Deflater.DEFAULT_COMPRESSION);
+        byte[] compressed = in.readAllBytes();
+
+        assertThat(gunzip(compressed)).isEqualTo(original);
+        assertThat(in.getBytesRead()).isEqualTo(size);
+    }
+
+    @Test
+    void compressesRepetitiveContent() throws IOException {
+        byte[] original = "CloudBox stores files in S3.\n".repeat(20_000).getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = new GzipCompressingInputStream(
+                new ByteArrayInputStream(original), Deflater.BEST_SPEED).readAllBytes();
+
+        assertThat(compressed.length).isLessThan(original.length / 10);
+        assertThat(gunzip(compressed)).isEqualTo(original);
+    }
+
+    @Test
+    void roundTripsShortReadsOnBothSides() throws IOException {
+        byte[] original = new byte[200_000];
+        new Random(42).nextBytes(original);
+        // Sources such as sockets hand over a few bytes at a time
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(original)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (InputStream in = new GzipCompressingInputStream(trickle, Deflater.DEFAULT_COMPRESSION)) {
+            int b;
+            while ((b = in.read()) != -1) {
+                compressed.write(b);
+            }
+        }
+
+        assertThat(gunzip(compressed.toByteArray())).isEqualTo(original);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.cloudbox.service;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectResult;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Just enough of S3 in memory for services that list, copy and delete
+ * objects. Continuation tokens are the last key of the previous page.
+ * Copies from keys in {@link #failCopiesFrom} fail.
+ */
+class InMemoryS3Client implements S3Client {
+
+    final NavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    final Set<String> failCopiesFrom = ConcurrentHashMap.newKeySet();
+
+    void put(String key, byte[] content) {
+        objects.put(key, content);
+    }
+
+    List<String> keys(String prefix) {
+        return objects.keySet().stream().filter(key -> key.startsWith(prefix)).toList();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        String prefix = request.prefix() != null ? request.prefix() : "";
+        int maxKeys = request.maxKeys() != null ? request.maxKeys() : 1000;
+        Map<String, byte[]> tail = request.continuationToken() != null
+                ? objects.tailMap(request.continuationToken(), false)
+                : objects.tailMap(prefix, true);
+        List<S3Object> contents = new ArrayList<>();
+        boolean truncated = false;
+        for (Map.Entry<String, byte[]> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (contents.size() == maxKeys) {
+                truncated = true;
+                break;
+            }
+            contents.add(S3Object.builder()
+                    .key(entry.getKey())
+                    .size((long) entry.getValue().length)
+                    .lastModified(Instant.EPOCH)
+                    .build());
+        }
+        return ListObjectsV2Response.builder()
+                .contents(contents)
+                .isTruncated(truncated)
+                .nextContinuationToken(truncated ? contents.get(contents.size() - 1).key() : null)
+                .build();
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        byte[] content = objects.get(request.key());
+        if (content == null) {
+            throw NoSuchKeyException.builder().message("No such key: " + request.key()).build();
+        }
+        return HeadObjectResponse.builder().contentLength((long) content.length).eTag("\"" + request.key() + "\"")
+                .build();
+    }
+
+    @Override
+    public CopyObjectResponse copyObject(CopyObjectRequest request) {
+        if (failCopiesFrom.contains(request.sourceKey())) {
+            throw S3Exception.builder().message("Copy failed: " + request.sourceKey()).statusCode(500).build();
+        }
+        byte[] content = objects.get(request.sourceKey());
+        if (content == null) {
+            throw NoSuchKeyException.builder().message("No such key: " + request.sourceKey()).build();
+        }
+        objects.put(request.destinationKey(), content);
+        return CopyObjectResponse.builder()
+                .copyObjectResult(CopyObjectResult.builder().eTag("\"" + request.destinationKey() + "\"").build())
+                .build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+        objects.remove(request.key());
+        return DeleteObjectResponse.builder().build();
+    }
+
+    @Override
+    public DeleteObjectsResponse deleteObjects(DeleteObjectsRequest request) {
+        for (ObjectIdentifier identifier : request.delete().objects()) {
+            objects.remove(identifier.key());
+        }
+        return DeleteObjectsResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return "s3";
+    }
+
+    @Override
+    public void close() {
+    }
+}
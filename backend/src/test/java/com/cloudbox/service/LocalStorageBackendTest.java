@@ -0,0 +1,121 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocalStorageBackendTest {
+
+    private static final List<String> KEYS = List.of(
+            "alice/a.txt", "alice/d1/x", "alice/d1/y", "alice/d1/sub/q", "alice/d10/w", "alice/d2/z",
+            "alice/e.txt", "alicex/other", "bob/b.txt");
+
+    @TempDir
+    Path dir;
+
+    private LocalStorageBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        backend = open();
+        for (String key : KEYS) {
+            put(key, key);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        backend.close();
+    }
+
+    @Test
+    void rollsUpKeysUnderTheDelimiter() {
+        StorageBackend.ListPage page = backend.list("alice/", "/", null, 1000);
+
+        assertThat(keys(page.objects())).containsExactly("alice/a.txt", "alice/e.txt");
+        assertThat(page.commonPrefixes()).containsExactly("alice/d1/", "alice/d10/", "alice/d2/");
+        assertThat(page.nextStartAfter()).isNull();
+    }
+
+    @Test
+    void pagesCoverEveryEntryOnceWhateverThePageSize() {
+        for (int pageSize = 1; pageSize <= 6; pageSize++) {
+            List<String> objects = new ArrayList<>();
+            List<String> prefixes = new ArrayList<>();
+            String startAfter = null;
+            do {
+                StorageBackend.ListPage page = backend.list("alice/", "/", startAfter, pageSize);
+                assertThat(page.objects().size() + page.commonPrefixes().size()).isLessThanOrEqualTo(pageSize);
+                objects.addAll(keys(page.objects()));
+                prefixes.addAll(page.commonPrefixes());
+                startAfter = page.nextStartAfter();
+            } while (startAfter != null);
+
+            assertThat(objects).as("page size %d", pageSize).containsExactly("alice/a.txt", "alice/e.txt");
+            assertThat(prefixes).as("page size %d", pageSize)
+                    .containsExactly("alice/d1/", "alice/d10/", "alice/d2/");
+        }
+    }
+
+    @Test
+    void pageEndingOnACommonPrefixResumesAfterEverythingUnderIt() {
+        StorageBackend.ListPage first = backend.list("alice/", "/", null, 2);
+        assertThat(first.nextStartAfter()).isEqualTo("alice/d1/");
+
+        StorageBackend.ListPage second = backend.list("alice/", "/", first.nextStartAfter(), 1);
+
+        assertThat(second.commonPrefixes()).containsExactly("alice/d10/");
+    }
+
+    @Test
+    void listsRecursivelyWithoutADelimiter() {
+        StorageBackend.ListPage page = backend.list("alice/d1/", null, null, 1000);
+
+        assertThat(keys(page.objects())).containsExactly("alice/d1/sub/q", "alice/d1/x", "alice/d1/y");
+        assertThat(page.commonPrefixes()).isEmpty();
+    }
+
+    @Test
+    void journalRestoresObjectsAfterRestart() throws IOException {
+        backend.delete("alice/a.txt");
+        backend.close();
+
+        backend = open();
+
+        assertThat(backend.stat("alice/a.txt")).isNull();
+        assertThat(backend.stat("bob/b.txt").size()).isEqualTo("bob/b.txt".length());
+        try (InputStream in = backend.get("alice/d2/z", 0, "alice/d2/z".length() - 1)) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("alice/d2/z");
+        }
+    }
+
+    private LocalStorageBackend open() throws IOException {
+        LocalStorageBackend opened = new LocalStorageBackend();
+        ReflectionTestUtils.setField(opened, "rootDir", dir.toString());
+        ReflectionTestUtils.setField(opened, "mmapMaxBytes", 262144L);
+        ReflectionTestUtils.setField(opened, "compactMinRecords", 100000L);
+        opened.open();
+        return opened;
+    }
+
+    private void put(String key, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        backend.put(key, new ByteArrayInputStream(bytes), bytes.length, "text/plain", null);
+    }
+
+    private static List<String> keys(List<StorageBackend.StoredObject> objects) {
+        return objects.stream().map(StorageBackend.StoredObject::key).toList();
+    }
+}
@@ -0,0 +1,202 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetadataStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private MetadataStore store;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void replayRestoresTreeAfterRestart() throws IOException {
+        store = open(1_000_000);
+        store.putFile("alice/docs/a.txt", 10, "etag-a", 1000);
+        store.putFile("alice/docs/b.txt", 20, "etag-b", 2000);
+        store.putFile("alice/tmp/c.txt", 30, "etag-c", 3000);
+        store.putFolder("alice/empty/", 4000);
+        store.remove("alice/docs/a.txt");
+        store.removeTree("alice/tmp/");
+
+        store = reopen(1_000_000);
+
+        MetadataStore.FolderContents root = store.list("alice/");
+        assertThat(names(root.folders())).containsExactly("docs", "empty");
+        assertThat(root.files()).isEmpty();
+
+        MetadataStore.FolderContents docs = store.list("alice/docs/");
+        assertThat(names(docs.files())).containsExactly("b.txt");
+        MetadataStore.Node b = docs.files().get(0);
+        assertThat(b.size()).isEqualTo(20);
+        assertThat(b.etag()).isEqualTo("etag-b");
+        assertThat(b.modifiedAt()).isEqualTo(2000);
+
+        assertThat(store.list("alice/empty/").files()).isEmpty();
+        assertThat(store.getByKey("alice/docs/a.txt")).isNull();
+        assertThat(store.list("alice/tmp/")).isNull();
+    }
+
+    @Test
+    void implicitFoldersVanishWithLastChildButMarkersPersist() throws IOException {
+        store = open(1_000_000);
+        store.putFile("alice/implicit/x.txt", 1, "e", 1);
+        store.putFolder("alice/marked/", 1);
+        store.putFile("alice/marked/y.txt", 1, "e", 1);
+
+        store.remove("alice/implicit/x.txt");
+        store.remove("alice/marked/y.txt");
+
+        assertThat(store.list("alice/implicit/")).isNull();
+        assertThat(store.list("alice/marked/")).isNotNull();
+    }
+
+    @Test
+    void removeReportsWhetherTheKeyWasPresent() throws IOException {
+        store = open(1_000_000);
+        store.putFile("alice/a.txt", 5, "e", 1);
+        store.putFile("alice/docs/b.txt", 5, "e", 1);
+
+        assertThat(store.remove("alice/a.txt")).isTrue();
+        assertThat(store.remove("alice/a.txt")).isFalse();
+        // Implicit folders and user roots are not objects of their own
+        assertThat(store.remove("alice/docs/")).isFalse();
+        assertThat(store.remove("alice/")).isFalse();
+        assertThat(store.getByKey("alice/docs/b.txt")).isNotNull();
+    }
+
+    @Test
+    void replaySkipsTornFinalRecord() throws IOException {
+        store = open(1_000_000);
+        store.putFile("alice/a.txt", 5, "e", 1);
+        store.close();
+        // A crash mid-append leaves a record with too few fields
+        Files.writeString(journal(), "F\talice%2Fb.txt\t7\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        store = open(1_000_000);
+
+        assertThat(store.getByKey("alice/a.txt")).isNotNull();
+        assertThat(store.getByKey("alice/b.txt")).isNull();
+        assertThat(Files.readAllLines(journal())).noneMatch(line -> line.contains("b.txt"));
+    }
+
+    @Test
+    void compactionRewritesJournalToLiveState() throws IOException {
+        store = open(1);
+        store.putFolder("alice/kept/", 1);
+        for (int i = 0; i < 50; i++) {
+            store.putFile("alice/churn.txt", i, "e" + i, i);
+            store.remove("alice/churn.txt");
+        }
+        store.putFile("alice/kept/final.txt", 99, "e99", 99);
+        long before = Files.readAllLines(journal()).size();
+
+        store.compactIfNeeded();
+
+        // The user root, the marker and the one live file
+        List<String> lines = Files.readAllLines(journal());
+        assertThat(lines).hasSize(3).hasSizeLessThan((int) before);
+        assertThat(lines).noneMatch(line -> line.contains("churn"));
+
+        store = reopen(1);
+        assertThat(store.getByKey("alice/kept/final.txt").size()).isEqualTo(99);
+        assertThat(store.getByKey("alice/churn.txt")).isNull();
+        assertThat(store.list("alice/kept/")).isNotNull();
+    }
+
+    @Test
+    void compactionWaitsForMinimumRecords() throws IOException {
+        store = open(1_000_000);
+        for (int i = 0; i < 10; i++) {
+            store.putFile("alice/churn.txt", i, "e", i);
+            store.remove("alice/churn.txt");
+        }
+        long before = Files.readAllLines(journal()).size();
+
+        store.compactIfNeeded();
+
+        assertThat(Files.readAllLines(journal())).hasSize((int) before);
+    }
+
+    @Test
+    void syncReplacesTreeWithListing() throws IOException {
+        store = open(1_000_000);
+        store.putFile("alice/stale.txt", 1, "e", 1);
+        store.putFile("alice/changed.txt", 1, "old", 1);
+        store.putFolder("alice/gone/", 1);
+        assertThat(store.isIndexed("alice")).isFalse();
+
+        boolean applied = store.sync("alice", store.getVersion("alice"), List.of(
+                new MetadataStore.Entry("alice/changed.txt", 2, "new", 2),
+                new MetadataStore.Entry("alice/new/n.txt", 3, "n", 3),
+                new MetadataStore.Entry("alice/marker/", 0, null, 4)));
+
+        assertThat(applied).isTrue();
+        assertThat(store.isIndexed("alice")).isTrue();
+        assertThat(store.getByKey("alice/stale.txt")).isNull();
+        assertThat(store.list("alice/gone/")).isNull();
+        assertThat(store.getByKey("alice/changed.txt").etag()).isEqualTo("new");
+        assertThat(store.getByKey("alice/new/n.txt").size()).isEqualTo(3);
+        assertThat(store.list("alice/marker/")).isNotNull();
+
+        store = reopen(1_000_000);
+        assertThat(store.isIndexed("alice")).isTrue();
+        assertThat(store.indexedUsers()).containsExactly("alice");
+        assertThat(store.getByKey("alice/stale.txt")).isNull();
+        assertThat(store.getByKey("alice/changed.txt").etag()).isEqualTo("new");
+    }
+
+    @Test
+    void syncRejectsListingTakenBeforeLaterWrite() throws IOException {
+        store = open(1_000_000);
+        long version = store.getVersion("alice");
+        store.putFile("alice/uploaded-during-listing.txt", 1, "e", 1);
+
+        boolean applied = store.sync("alice", version, List.of());
+
+        assertThat(applied).isFalse();
+        assertThat(store.isIndexed("alice")).isFalse();
+        assertThat(store.getByKey("alice/uploaded-during-listing.txt")).isNotNull();
+    }
+
+    private MetadataStore open(long compactMinRecords) throws IOException {
+        MetadataStore opened = new MetadataStore();
+        ReflectionTestUtils.setField(opened, "journalPath", journal().toString());
+        ReflectionTestUtils.setField(opened, "compactMinRecords", compactMinRecords);
+        opened.open();
+        return opened;
+    }
+
+    private MetadataStore reopen(long compactMinRecords) throws IOException {
+        store.close();
+        store = null;
+        return open(compactMinRecords);
+    }
+
+    private Path journal() {
+        return dir.resolve("metadata.log");
+    }
+
+    private static List<String> names(List<MetadataStore.Node> nodes) {
+        return nodes.stream().map(MetadataStore.Node::name).toList();
+    }
+}
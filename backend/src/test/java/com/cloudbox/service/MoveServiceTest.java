@@ -0,0 +1,155 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MoveServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private final InMemoryS3Client s3Client = new InMemoryS3Client();
+    private final ExecutorService copyExecutor = Executors.newFixedThreadPool(4);
+    private MetadataStore metadataStore;
+    private MoveService moveService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        metadataStore = new MetadataStore();
+        ReflectionTestUtils.setField(metadataStore, "journalPath", dir.resolve("metadata.log").toString());
+        ReflectionTestUtils.setField(metadataStore, "compactMinRecords", 100000L);
+        metadataStore.open();
+
+        for (int i = 0; i < 25; i++) {
+            s3Client.put("alice/src/file" + i + ".txt", ("content " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        s3Client.put("alice/src/sub/", new byte[0]);
+        moveService = open();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        moveService.close();
+        metadataStore.close();
+        copyExecutor.shutdownNow();
+    }
+
+    @Test
+    void movesEveryObjectAcrossListingPages() {
+        ReflectionTestUtils.setField(moveService, "copyPartSize", 536870912L);
+
+        MoveService.MoveResult result = moveService.moveFolder("alice", "src", "dst");
+
+        assertThat(result.complete()).isTrue();
+        assertThat(result.moved()).isEqualTo(26);
+        assertThat(s3Client.keys("alice/src/")).isEmpty();
+        assertThat(s3Client.keys("alice/dst/")).hasSize(26).contains("alice/dst/sub/");
+        assertThat(new String(s3Client.objects.get("alice/dst/file7.txt"), StandardCharsets.UTF_8))
+                .isEqualTo("content 7");
+    }
+
+    @Test
+    void failedCopiesKeepTheirSourceAndTheJobPending() throws IOException {
+        s3Client.failCopiesFrom.add("alice/src/file3.txt");
+
+        MoveService.MoveResult result = moveService.moveFolder("alice", "src", "dst");
+
+        assertThat(result.complete()).isFalse();
+        assertThat(result.failures()).containsOnlyKeys("alice/src/file3.txt");
+        assertThat(s3Client.keys("alice/src/")).containsExactly("alice/src/file3.txt");
+        assertThat(pendingJobs(moveService)).hasSize(1);
+
+        // After a restart the job is still known, so a non-empty target is allowed
+        moveService.close();
+        moveService = open();
+        assertThat(pendingJobs(moveService)).hasSize(1);
+        s3Client.failCopiesFrom.clear();
+
+        MoveService.MoveResult retried = moveService.moveFolder("alice", "src", "dst");
+
+        assertThat(retried.complete()).isTrue();
+        assertThat(retried.moved()).isEqualTo(1);
+        assertThat(s3Client.keys("alice/src/")).isEmpty();
+        assertThat(s3Client.keys("alice/dst/")).hasSize(26);
+        assertThat(pendingJobs(moveService)).isEmpty();
+    }
+
+    @Test
+    void resumesUnfinishedMovesOnStartup() throws Exception {
+        s3Client.failCopiesFrom.add("alice/src/file0.txt");
+        moveService.moveFolder("alice", "src", "dst");
+        moveService.close();
+        s3Client.failCopiesFrom.clear();
+
+        moveService = open();
+        moveService.resumePendingMoves();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!pendingJobs(moveService).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(pendingJobs(moveService)).isEmpty();
+        assertThat(s3Client.keys("alice/src/")).isEmpty();
+        assertThat(s3Client.keys("alice/dst/")).hasSize(26);
+
+        // Marked finished in the journal, so the next startup has nothing to resume
+        moveService.close();
+        moveService = open();
+        assertThat(pendingJobs(moveService)).isEmpty();
+    }
+
+    @Test
+    void refusesATargetThatExistsUnlessResuming() {
+        s3Client.put("alice/dst/existing.txt", new byte[1]);
+
+        assertThatThrownBy(() -> moveService.moveFolder("alice", "src", "dst"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("already exists");
+        assertThat(s3Client.keys("alice/src/")).hasSize(26);
+    }
+
+    private MoveService open() throws IOException {
+        LogicalSizes logicalSizes = mock(LogicalSizes.class);
+        when(logicalSizes.of(anyString(), anyLong())).thenAnswer(invocation -> invocation.getArgument(1));
+
+        MoveService opened = new MoveService();
+        ReflectionTestUtils.setField(opened, "s3Client", s3Client);
+        ReflectionTestUtils.setField(opened, "contentStore", mock(ContentAddressedStore.class));
+        ReflectionTestUtils.setField(opened, "storageCodec", mock(StorageCodec.class));
+        ReflectionTestUtils.setField(opened, "logicalSizes", logicalSizes);
+        ReflectionTestUtils.setField(opened, "metadataStore", metadataStore);
+        ReflectionTestUtils.setField(opened, "folderListingCache", mock(FolderListingCache.class));
+        ReflectionTestUtils.setField(opened, "downloadCache", mock(DownloadCache.class));
+        ReflectionTestUtils.setField(opened, "thumbnailService", mock(ThumbnailService.class));
+        ReflectionTestUtils.setField(opened, "copyExecutor", copyExecutor);
+        ReflectionTestUtils.setField(opened, "bucketName", "bucket");
+        ReflectionTestUtils.setField(opened, "journalPath", dir.resolve("move-jobs.log").toString());
+        ReflectionTestUtils.setField(opened, "copyPartSize", 536870912L);
+        opened.open();
+        return opened;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, MoveService.MoveJob> pendingJobs(MoveService service) {
+        synchronized (service) {
+            return Map.copyOf((Map<String, MoveService.MoveJob>) ReflectionTestUtils.getField(service, "pendingJobs"));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.cloudbox.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StorageUsageLedgerTest {
+
+    private final StorageUsageLedger ledger = new StorageUsageLedger();
+
+    @Test
+    void reservationsCountUntilReleased() {
+        assertThat(ledger.tryReserve("session-1", "alice", 300, 1000)).isTrue();
+        assertThat(ledger.tryReserve("session-2", "alice", 200, 1000)).isTrue();
+        assertThat(ledger.tryReserve("session-3", "bob", 700, 1000)).isTrue();
+
+        assertThat(ledger.getReservedBytes("alice")).isEqualTo(500);
+        ledger.release("session-1");
+        assertThat(ledger.getReservedBytes("alice")).isEqualTo(200);
+        assertThat(ledger.getReservedBytes("bob")).isEqualTo(700);
+    }
+
+    @Test
+    void tryReserveRefusesToExceedCapacity() {
+        assertThat(ledger.tryReserve("session-1", "alice", 600, 1000)).isTrue();
+
+        assertThat(ledger.tryReserve("session-2", "alice", 401, 1000)).isFalse();
+        assertThat(ledger.tryReserve("session-2", "alice", 400, 1000)).isTrue();
+        assertThat(ledger.getReservedBytes("alice")).isEqualTo(1000);
+    }
+
+    @Test
+    void concurrentReservationsNeverOvershootCapacity() throws InterruptedException {
+        int threads = 16;
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            String id = "session-" + i;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (ledger.tryReserve(id, "alice", 100, 1000)) {
+                    granted.incrementAndGet();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertThat(granted.get()).isEqualTo(10);
+        assertThat(ledger.getReservedBytes("alice")).isEqualTo(1000);
+    }
+
+    @Test
+    void restoredReservationsAreNotCheckedAgainstCapacity() {
+        ledger.reserve("session-1", "alice", 5000);
+
+        assertThat(ledger.getReservedBytes("alice")).isEqualTo(5000);
+        assertThat(ledger.tryReserve("session-2", "alice", 1, 1000)).isFalse();
+    }
+
+    @Test
+    void refusesNegativeReservations() {
+        assertThatThrownBy(() -> ledger.tryReserve("upload", "alice", -100, 1000))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ledger.reserve("upload", "alice", -100))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(ledger.getReservedBytes("alice")).isZero();
+    }
+}
@@ -99,6 +99,12 @@ export default function Dashboard() {
     return `${day}-${month}-${year} ${hours}:${minutes}:${seconds}`;
   };
 
+  const formatFileSize = (bytes: number) => {
+    if (bytes < 1024) return `${bytes} B`;
+    if (bytes < 1024 * 1024) return `${(bytes / 1024).toFixed(1)} KB`;
+    return `${(bytes / (1024 * 1024)).toFixed(1)} MB`;
+  };
+
   const getRelativeDate = (dateString: string) => {
     const date = new Date(dateString);
     const today = new Date();
@@ -879,7 +885,7 @@ export default function Dashboard() {
                                 <h4 className="font-medium text-sm text-white mb-1" title={item.name}>
                                   {item.name.length > 15 ? `${item.name.substring(0, 15)}...` : item.name}
                                 </h4>
-                                {item.type === 'file' && <p className="text-xs text-gray-400">{item.size}</p>}
+                                {item.type === 'file' && <p className="text-xs text-gray-400">{formatFileSize(item.sizeBytes)}</p>}
                                 <p className="text-xs text-gray-500">{formatTimestamp(item.modified)}</p>
                               </CardContent>
                             </Card>
@@ -1036,7 +1042,7 @@ export default function Dashboard() {
                             <h4 className="font-medium text-sm mb-1" title={file.name}>
                               {file.name.length > 20 ? `${file.name.substring(0, 20)}...` : file.name}
                             </h4>
-                            <p className="text-xs text-gray-400">{file.size}</p>
+                            <p className="text-xs text-gray-400">{formatFileSize(file.sizeBytes)}</p>
                             <p className="text-xs text-gray-500">{formatTimestamp(file.modified)}</p>
                           </CardContent>
                         </Card>
@@ -1050,7 +1056,7 @@ export default function Dashboard() {
                             <File className="w-6 h-6 text-blue-400 flex-shrink-0" />
                             <div className="min-w-0 flex-1">
                               <h4 className="font-medium text-sm text-white truncate" title={file.name}>{file.name}</h4>
-                              <p className="text-xs text-gray-400">{file.size} • {formatTimestamp(file.modified)}</p>
+                              <p className="text-xs text-gray-400">{formatFileSize(file.sizeBytes)} • {formatTimestamp(file.modified)}</p>
                             </div>
                           </div>
                           <div className="flex items-center gap-1">
@@ -1120,7 +1126,7 @@ export default function Dashboard() {
                         <h4 className="font-medium text-sm mb-1" title={file.name}>
                           {file.name.length > 20 ? `${file.name.substring(0, 20)}...` : file.name}
                         </h4>
-                        <p className="text-xs text-gray-400">{file.size}</p>
+                        <p className="text-xs text-gray-400">{formatFileSize(file.sizeBytes)}</p>
                         <p className="text-xs text-gray-500">{formatTimestamp(file.modified)}</p>
                       </CardContent>
                     </Card>
@@ -1134,7 +1140,7 @@ export default function Dashboard() {
                         <File className="w-6 h-6 text-blue-400 flex-shrink-0" />
                         <div className="min-w-0 flex-1">
                           <h4 className="font-medium text-sm text-white truncate" title={file.name}>{file.name}</h4>
-                          <p className="text-xs text-gray-400">{file.size} • {formatTimestamp(file.modified)}</p>
+                          <p className="text-xs text-gray-400">{formatFileSize(file.sizeBytes)} • {formatTimestamp(file.modified)}</p>
                         </div>
                       </div>
                       <div className="flex items-center gap-1">
@@ -1256,7 +1262,7 @@ export default function Dashboard() {
                             <h4 className="font-medium text-sm mb-1" title={file.name}>
                               {file.name.length > 20 ? `${file.name.substring(0, 20)}...` : file.name}
                             </h4>
-                            <p className="text-xs text-gray-400">{file.size}</p>
+                            <p className="text-xs text-gray-400">{formatFileSize(file.sizeBytes)}</p>
                             <p className="text-xs text-gray-500">{formatTimestamp(file.modified)}</p>
                           </CardContent>
                         </Card>
@@ -1270,7 +1276,7 @@ export default function Dashboard() {
                             <File className="w-6 h-6 text-blue-400 flex-shrink-0" />
                             <div className="min-w-0 flex-1">
                               <h4 className="font-medium text-sm text-white truncate" title={file.name}>{file.name}</h4>
-                              <p className="text-xs text-gray-400">{file.size} • {formatTimestamp(file.modified)}</p>
+                              <p className="text-xs text-gray-400">{formatFileSize(file.sizeBytes)} • {formatTimestamp(file.modified)}</p>
                             </div>
                           </div>
                           <div className="flex items-center gap-1">
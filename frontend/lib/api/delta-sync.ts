@@ -0,0 +1,166 @@
+const SPRING_API_BASE = 'http://localhost:8080/api';
+
+// FastCDC parameters. Chunk boundaries depend only on content, so an edit
+// changes the chunks around it and every other chunk keeps its hash. The
+// server copies each chunk into the file as one S3 part, and every part but
+// the last must be at least 5 MiB.
+const MIN_CHUNK = 5 * 1024 * 1024;
+const AVG_CHUNK = 8 * 1024 * 1024;
+const MAX_CHUNK = 16 * 1024 * 1024;
+// Normalized chunking: a stricter mask before the average size and a looser
+// one after it keeps chunk sizes close to AVG_CHUNK.
+const MASK_STRICT = 0xffffff80; // 25 bits
+const MASK_LOOSE = 0xfffff800; // 21 bits
+
+const READ_BLOCK = 8 * 1024 * 1024;
+const UPLOAD_CONCURRENCY = 4;
+
+export interface DeltaChunk {
+  hash: string;
+  size: number;
+  offset: number;
+}
+
+// Deterministic gear table, so every client cuts the same file the same way
+// and chunks dedupe across clients as well as across versions.
+const GEAR = (() => {
+  const table = new Uint32Array(256);
+  let seed = 0x9e3779b9;
+  for (let i = 0; i < 256; i++) {
+    seed = (seed + 0x6d2b79f5) >>> 0;
+    let t = seed;
+    t = Math.imul(t ^ (t >>> 15), t | 1);
+    t ^= t + Math.imul(t ^ (t >>> 7), t | 61);
+    table[i] = (t ^ (t >>> 14)) >>> 0;
+  }
+  return table;
+})();
+
+const cutPoint = (data: Uint8Array, start: number, end: number): number => {
+  const length = end - start;
+  if (length <= MIN_CHUNK) {
+    return length;
+  }
+  const normal = Math.min(AVG_CHUNK, length);
+  const max = Math.min(MAX_CHUNK, length);
+  let hash = 0;
+  let i = MIN_CHUNK;
+  for (; i < normal; i++) {
+    hash = ((hash << 1) + GEAR[data[start + i]]) >>> 0;
+    if ((hash & MASK_STRICT) === 0) {
+      return i;
+    }
+  }
+  for (; i < max; i++) {
+    hash = ((hash << 1) + GEAR[data[start + i]]) >>> 0;
+    if ((hash & MASK_LOOSE) === 0) {
+      return i;
+    }
+  }
+  return max;
+};
+
+const sha256Hex = async (data: Uint8Array): Promise<string> => {
+  const digest = await crypto.subtle.digest('SHA-256', data);
+  return Array.from(new Uint8Array(digest), b => b.toString(16).padStart(2, '0')).join('');
+};
+
+/**
+ * Splits a file into content-defined chunks. The file is read in blocks, so
+ * memory use does not grow with file size.
+ */
+export const chunkFile = async (file: Blob): Promise<DeltaChunk[]> => {
+  const chunks: DeltaChunk[] = [];
+  let pending = new Uint8Array(0);
+  let pendingOffset = 0;
+  let readOffset = 0;
+
+  while (readOffset < file.size || pending.length > 0) {
+    if (readOffset < file.size && pending.length < MAX_CHUNK) {
+      const block = new Uint8Array(await file.slice(readOffset, readOffset + READ_BLOCK).arrayBuffer());
+      readOffset += block.length;
+      const merged = new Uint8Array(pending.length + block.length);
+      merged.set(pending);
+      merged.set(block, pending.length);
+      pending = merged;
+      continue;
+    }
+
+    // Only cut once a full MAX_CHUNK window is available, or at end of file
+    let start = 0;
+    while (pending.length - start >= MAX_CHUNK || (readOffset >= file.size && start < pending.length)) {
+      const size = cutPoint(pending, start, pending.length);
+      const hash = await sha256Hex(pending.subarray(start, start + size));
+      chunks.push({ hash, size, offset: pendingOffset + start });
+      start += size;
+    }
+    pending = pending.slice(start);
+    pendingOffset += start;
+  }
+
+  return chunks;
+};
+
+const manifestBody = (chunks: DeltaChunk[]) =>
+  JSON.stringify({ chunks: chunks.map(({ hash, size }) => ({ hash, size })) });
+
+/**
+ * Uploads a file using delta sync: only chunks the server does not already
+ * hold are sent, then the server assembles the file from its chunk store.
+ */
+export const uploadFileWithDeltaSync = async (file: File, userId: string, folderPath?: string) => {
+  const chunks = await chunkFile(file);
+
+  const userParams = new URLSearchParams({ userId });
+  const negotiateResponse = await fetch(`${SPRING_API_BASE}/files/upload/delta/negotiate?${userParams}`, {
+    method: 'POST',
+    headers: { 'Content-Type': 'application/json' },
+    body: manifestBody(chunks)
+  });
+  if (!negotiateResponse.ok) {
+    const errorText = await negotiateResponse.text();
+    throw new Error(`Delta negotiation failed: ${negotiateResponse.status} - ${errorText}`);
+  }
+  const { missing } = await negotiateResponse.json() as { missing: string[] };
+
+  const byHash = new Map(chunks.map(chunk => [chunk.hash, chunk] as const));
+  const queue = [...missing];
+  const uploadNext = async (): Promise<void> => {
+    const hash = queue.shift();
+    if (!hash) {
+      return;
+    }
+    const chunk = byHash.get(hash)!;
+    const response = await fetch(`${SPRING_API_BASE}/files/upload/delta/chunks/${hash}?${userParams}`, {
+      method: 'PUT',
+      headers: { 'Content-Type': 'application/octet-stream' },
+      body: file.slice(chunk.offset, chunk.offset + chunk.size)
+    });
+    if (!response.ok) {
+      const errorText = await response.text();
+      throw new Error(`Chunk upload failed: ${response.status} - ${errorText}`);
+    }
+    return uploadNext();
+  };
+  await Promise.all(Array.from({ length: Math.min(UPLOAD_CONCURRENCY, queue.length) }, uploadNext));
+
+  const params = new URLSearchParams({ userId, fileName: file.name });
+  if (folderPath) {
+    params.append('folderPath', folderPath);
+  }
+  if (file.type) {
+    params.append('contentType', file.type);
+  }
+  const commitResponse = await fetch(`${SPRING_API_BASE}/files/upload/delta/commit?${params}`, {
+    method: 'POST',
+    headers: { 'Content-Type': 'application/json' },
+    body: manifestBody(chunks)
+  });
+  if (!commitResponse.ok) {
+    const errorText = await commitResponse.text();
+    throw new Error(`Delta commit failed: ${commitResponse.status} - ${errorText}`);
+  }
+
+  const result = await commitResponse.json();
+  return { ...result, chunks: chunks.length, uploadedChunks: missing.length };
+};
@@ -3,7 +3,7 @@ const SPRING_API_BASE = 'http://localhost:8080/api';
 export interface FileResponse {
   id: number;
   name: string;
-  size: string;
+  sizeBytes: number;
   modified: string;
   type: string;
   key: string;
@@ -87,6 +87,87 @@ export const getFilesFromSpring = async (userId: string, folderPath?: string): P
   }
 };
 
+export interface SearchResponse {
+  files: (FileResponse & { category: string })[];
+  total: number;
+  categories: Record<string, number>;
+}
+
+export const searchFilesInSpring = async (
+  userId: string,
+  query: string,
+  options: { category?: string; offset?: number; limit?: number } = {}
+): Promise<SearchResponse> => {
+  const params = new URLSearchParams({ userId, q: query });
+  if (options.category) {
+    params.set('category', options.category);
+  }
+  if (options.offset !== undefined) {
+    params.set('offset', String(options.offset));
+  }
+  if (options.limit !== undefined) {
+    params.set('limit', String(options.limit));
+  }
+
+  const response = await fetch(`${SPRING_API_BASE}/files/search?${params}`);
+  if (!response.ok) {
+    const errorText = await response.text();
+    throw new Error(`Search failed: ${response.status} - ${errorText}`);
+  }
+
+  const data = await response.json();
+  return {
+    files: data.files || [],
+    total: data.total || 0,
+    categories: data.categories || {}
+  };
+};
+
+/**
+ * Uploads straight to S3 with presigned URLs, so the bytes skip the backend.
+ * Requires direct transfers to be enabled on the server.
+ */
+export const uploadFileDirect = async (file: File, userId: string, folderPath?: string) => {
+  const params = new URLSearchParams({
+    userId,
+    fileName: file.name,
+    size: String(file.size),
+    contentType: file.type || 'application/octet-stream'
+  });
+  if (folderPath) {
+    params.set('folderPath', folderPath);
+  }
+
+  const authorized = await fetch(`${SPRING_API_BASE}/files/direct/uploads?${params}`, { method: 'POST' });
+  if (!authorized.ok) {
+    throw new Error(`Upload failed: ${authorized.status} - ${await authorized.text()}`);
+  }
+  const upload: { key: string; multipart: boolean; partSize: number; urls: string[] } = await authorized.json();
+
+  // Part ETags are collected by the server on completion; browsers cannot
+  // read them from S3's cross-origin responses unless the bucket exposes them.
+  for (let i = 0; i < upload.urls.length; i++) {
+    const body = upload.multipart ? file.slice(i * upload.partSize, (i + 1) * upload.partSize) : file;
+    const response = await fetch(upload.urls[i], {
+      method: 'PUT',
+      body,
+      headers: upload.multipart ? {} : { 'Content-Type': file.type || 'application/octet-stream' }
+    });
+    if (!response.ok) {
+      throw new Error(`Upload failed: ${response.status}`);
+    }
+  }
+
+  const completeParams = new URLSearchParams({ userId, s3Key: upload.key });
+  const completed = await fetch(`${SPRING_API_BASE}/files/direct/uploads/complete?${completeParams}`, {
+    method: 'POST'
+  });
+  if (!completed.ok) {
+    throw new Error(`Upload failed: ${completed.status} - ${await completed.text()}`);
+  }
+  return completed.json();
+};
+
 export const downloadFileFromSpring = async (fileId: number, userId: string) => {
   const response = await fetch(`${SPRING_API_BASE}/files/download/${fileId}?userId=${userId}`);
   